@@ -15,4 +15,8 @@ public class IncompatibleTypeException extends RuntimeException {
 		super(string,e);
 	}
 
+	public IncompatibleTypeException(String string, Throwable e) {
+		super(string,e);
+	}
+
 }
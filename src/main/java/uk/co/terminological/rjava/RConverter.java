@@ -5,22 +5,28 @@ import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.types.RCharacter;
 import uk.co.terminological.rjava.types.RCharacterVector;
+import uk.co.terminological.rjava.types.RColumnBuilder;
 import uk.co.terminological.rjava.types.RDataframe;
 import uk.co.terminological.rjava.types.RDate;
 import uk.co.terminological.rjava.types.RDateVector;
@@ -32,7 +38,6 @@ import uk.co.terminological.rjava.types.RList;
 import uk.co.terminological.rjava.types.RLogical;
 import uk.co.terminological.rjava.types.RLogicalVector;
 import uk.co.terminological.rjava.types.RNamedList;
-import uk.co.terminological.rjava.types.RNamedPrimitives;
 import uk.co.terminological.rjava.types.RNumeric;
 import uk.co.terminological.rjava.types.RNumericVector;
 import uk.co.terminological.rjava.types.RObject;
@@ -250,216 +255,287 @@ public class RConverter {
 				);}
 	
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * A stream collector that converts a stream of objects into a dataframe with a column for each method of the 
+	 * type annotated with {@link RName}. The type of each column is decided from the return type of the method when
+	 * the collector is created, and the values are written directly into the column without reflection.
+	 * @param type - the class of the objects
+	 * @return A collector that works in a stream.collect(RConverter.annotatedCollector(X.class))
+	 */
 	public static <X> Collector<X,?,RDataframe> annotatedCollector(Class<X> type) {
-		List<MapRule<X>> rules = new ArrayList<>();
+		List<RColumnBuilder<X>> columns = new ArrayList<>();
 		for (Method m :type.getMethods()) {
 			if(m.isAnnotationPresent(RName.class)) {
-				rules.add(
-					mapping(
-						m.getAnnotation(RName.class).value(),
-						o -> {
-							try {
-								return m.invoke(o);
-							} catch (Exception e) {
-								throw new RuntimeException(e);
-							}
-						})
-				);
+				columns.add(RColumnBuilder.ofGetter(m.getAnnotation(RName.class).value(), m));
 			}
 		}
-		return dataframeCollector((MapRule<X>[]) rules.toArray(new MapRule[0]));
+		return columnCollector(columns);
 	}
 	
 	/**
-	 * A stream collector that collects a stream of maps and assembles it into a col major dataframe
-	 * @return A collector that works in a streamOfMaps.collect(RConvert.mapsToDataFrame())
+	 * As {@link #annotatedCollector(Class)} but for parallel streams whose order does not matter. The rows are 
+	 * collected concurrently into builders held by each thread, and are in no particular order.
+	 * @param type - the class of the objects
+	 * @return A collector that works in a stream.parallel().collect(RConverter.unorderedAnnotatedCollector(X.class))
 	 */
-	public static Collector<Map<String,Object>,?,RDataframe> dataframeCollector() {
-		return new Collector<Map<String,Object>,RDataframe,RDataframe>() {
+	public static <X> Collector<X,?,RDataframe> unorderedAnnotatedCollector(Class<X> type) {
+		return concurrent(annotatedCollector(type));
+	}
 	
-			@Override
-			public Supplier<RDataframe> supplier() {
-				return () -> new RDataframe();
-			}
+	// Collects each column into a builder, which are appended in order when a parallel stream is combined
+	private static <X> Collector<X,?,RDataframe> columnCollector(final List<RColumnBuilder<X>> columns) {
+		return Collector.<X,List<RColumnBuilder<X>>,RDataframe>of(
+				() -> columns.stream().map(RColumnBuilder::newBuilder).collect(Collectors.toList()),
+				(builders, o) -> {
+					for (RColumnBuilder<X> builder: builders) builder.accept(o);
+				},
+				(left, right) -> {
+					for (int i=0; i<left.size(); i++) left.get(i).append(right.get(i));
+					return left;
+				},
+				builders -> {
+					RDataframe out = new RDataframe();
+					for (RColumnBuilder<X> builder: builders) out.put(builder.label(), builder.build());
+					return out;
+				});
+	}
 	
-			@Override
-			public BiConsumer<RDataframe, Map<String,Object>> accumulator() {
-				return (lhm, o) -> lhm.addRow(o);
-			}
+	/**
+	 * Makes a collector concurrent for unordered parallel streams. Each thread accumulates into its own container 
+	 * of the wrapped collector, without any locking, and the containers are combined once when the collection 
+	 * finishes, in no particular order.
+	 */
+	private static <T,A,R> Collector<T,?,R> concurrent(final Collector<T,A,R> collector) {
+		return Collector.<T,PerThread<A>,R>of(
+				() -> new PerThread<A>(collector.supplier()),
+				(containers, o) -> collector.accumulator().accept(containers.get(), o),
+				(left, right) -> {
+					left.slots.addAll(right.slots);
+					return left;
+				},
+				containers -> collector.finisher().apply(containers.combine(collector.combiner())),
+				Collector.Characteristics.CONCURRENT,
+				Collector.Characteristics.UNORDERED);
+	}
 	
-			@Override
-			public BinaryOperator<RDataframe> combiner() {
-				return (lhm,rhm) -> {
-					synchronized(this) {
-						RDataframe out = new RDataframe();
-						out.bindRows(lhm);
-						out.bindRows(rhm);
-						return out;
-					}
-				};
+	// The containers of a concurrent collection, one for each thread which accumulates into it
+	private static class PerThread<A> {
+		final Supplier<A> supplier;
+		final ConcurrentLinkedQueue<A[]> slots = new ConcurrentLinkedQueue<>();
+		// a slot rather than the container itself, so the containers are not held by the threads after finishing
+		final ThreadLocal<A[]> local;
+		
+		@SuppressWarnings("unchecked")
+		PerThread(Supplier<A> supplier) {
+			this.supplier = supplier;
+			this.local = ThreadLocal.withInitial(() -> {
+				A[] slot = (A[]) new Object[] {supplier.get()};
+				slots.add(slot);
+				return slot;
+			});
+		}
+		
+		A get() {
+			return local.get()[0];
+		}
+		
+		A combine(BinaryOperator<A> combiner) {
+			A out = null;
+			for (A[] slot: slots) {
+				out = out == null ? slot[0] : combiner.apply(out, slot[0]);
+				slot[0] = null;
 			}
+			local.remove();
+			return out == null ? supplier.get() : out;
+		}
+	}
 	
-			@Override
-			public Function<RDataframe, RDataframe> finisher() {
-				return a -> a;
-				
-			}
+	/**
+	 * A stream collector that collects a stream of maps and assembles it into a col major dataframe. The columns
+	 * are the keys of the maps in the order they are first seen, and keys missing from a map are NA in that row. 
+	 * The type of each column is decided by its first value which is not null.
+	 * @return A collector that works in a streamOfMaps.collect(RConvert.mapsToDataFrame())
+	 */
+	public static Collector<Map<String,Object>,?,RDataframe> dataframeCollector() {
+		return Collector.<Map<String,Object>,MapColumns,RDataframe>of(
+				MapColumns::new,
+				MapColumns::accept,
+				MapColumns::append,
+				MapColumns::build);
+	}
 	
-			@Override
-			public Set<Characteristics> characteristics() {
-				return new HashSet<>(
-						Arrays.asList(
-								Characteristics.UNORDERED,
-								Characteristics.CONCURRENT,
-								Characteristics.IDENTITY_FINISH
-								));
-			}
+	/**
+	 * As {@link #dataframeCollector()} but for parallel streams whose order does not matter. The rows are 
+	 * collected concurrently into builders held by each thread, and are in no particular order.
+	 * @return A collector that works in a streamOfMaps.parallel().collect(RConvert.unorderedDataframeCollector())
+	 */
+	public static Collector<Map<String,Object>,?,RDataframe> unorderedDataframeCollector() {
+		return concurrent(dataframeCollector());
+	}
 	
-			
-			
-		};
+	// The columns of a stream of maps, which are added as new keys are found
+	private static class MapColumns {
+		final LinkedHashMap<String,RColumnBuilder<Map<String,Object>>> columns = new LinkedHashMap<>();
+		int nrow = 0;
+		
+		void accept(Map<String,Object> row) {
+			for (String key: row.keySet()) column(key);
+			for (RColumnBuilder<Map<String,Object>> column: columns.values()) column.accept(row);
+			nrow++;
+		}
+		
+		// a new column is filled with NA for the rows before it was found
+		private RColumnBuilder<Map<String,Object>> column(String key) {
+			RColumnBuilder<Map<String,Object>> column = columns.get(key);
+			if (column == null) {
+				column = RColumnBuilder.ofObjects(key, m -> m.get(key));
+				for (int i=0; i<nrow; i++) column.accept(Collections.emptyMap());
+				columns.put(key, column);
+			}
+			return column;
+		}
+		
+		MapColumns append(MapColumns other) {
+			for (String key: other.columns.keySet()) column(key);
+			for (Map.Entry<String,RColumnBuilder<Map<String,Object>>> column: columns.entrySet()) {
+				RColumnBuilder<Map<String,Object>> right = other.columns.get(column.getKey());
+				if (right != null) {
+					column.getValue().append(right);
+				} else {
+					for (int i=0; i<other.nrow; i++) column.getValue().accept(Collections.emptyMap());
+				}
+			}
+			nrow += other.nrow;
+			return this;
+		}
+		
+		RDataframe build() {
+			RDataframe out = new RDataframe();
+			columns.forEach((key, column) -> out.put(key, column.build()));
+			return out;
+		}
 	}
 	
 	/**
-	 * A stream collector that applies mapping rules and coverts a stream of objects into a dataframe
+	 * A stream collector that applies mapping rules and coverts a stream of objects into a dataframe. Each rule
+	 * fills a column builder, whose type is decided by the first value it is given (see 
+	 * {@link RColumnBuilder#ofObjects(String, Function)}), or by the rule for rules created with 
+	 * {@link #integerMapping(String, ToIntFunction)} and {@link #doubleMapping(String, ToDoubleFunction)}.
 	 * @param rules - an array of mapping(X.class, "colname", x -> x.getValue()) entries that define
 	 * the data frame columns
 	 * @return A collector that works in a stream.collect(RConvert.toDataFrame(mapping1, mapping2, ...))
 	 */
 	@SafeVarargs
 	public static <X> Collector<X,?,RDataframe> dataframeCollector(final MapRule<X>... rules) {
-		return new Collector<X,RDataframe,RDataframe>() {
-	
-			@Override
-			public Supplier<RDataframe> supplier() {
-				return () -> new RDataframe();
-			}
-	
-			@Override
-			public BiConsumer<RDataframe, X> accumulator() {
-				return (lhm, o) -> {
-					synchronized(lhm) {
-						RNamedPrimitives tmp = new RNamedPrimitives();
-						for (MapRule<X> rule: rules) {
-							//TODO: this woudl possibly be quicker with an interim List<RVector<?>> collectors and a finisher which assembled them.
-							//Maybe wouldn't make huge difference....
-							Object tmp2 = rule.rule().apply(o);
-							try {
-								tmp.put(rule.label(), RConverter.convertObjectToPrimitive(tmp2));
-							} catch (UnconvertableTypeException e) {
-								// Fall back to string 
-								tmp.put(rule.label(), RConverter.convertObjectToPrimitiveUnsafe(tmp2.toString()));
-							}
-						}
-						lhm.addRow(tmp);
-					}
-				};
-			}
-	
-			@Override
-			public BinaryOperator<RDataframe> combiner() {
-				return (lhm,rhm) -> {
-					RDataframe out = new RDataframe();
-					out.bindRows(lhm);
-					out.bindRows(rhm);
-					return out;
-				};
-			}
+		List<RColumnBuilder<X>> columns = new ArrayList<>();
+		for (MapRule<X> rule: rules) columns.add(columnFor(rule));
+		return columnCollector(columns);
+	}
 	
-			@Override
-			public Function<RDataframe, RDataframe> finisher() {
-				return a -> a;
-			}
+	/**
+	 * As {@link #dataframeCollector(MapRule...)} but for parallel streams whose order does not matter. The rows are 
+	 * collected concurrently into builders held by each thread, and are in no particular order.
+	 * @param rules - an array of mapping(X.class, "colname", x -> x.getValue()) entries that define
+	 * the data frame columns
+	 * @return A collector that works in a stream.parallel().collect(RConvert.unorderedDataframeCollector(mapping1, mapping2, ...))
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public static <X> Collector<X,?,RDataframe> unorderedDataframeCollector(final MapRule<X>... rules) {
+		return concurrent(dataframeCollector(rules));
+	}
 	
-			@Override
-			public Set<Characteristics> characteristics() {
-				return new HashSet<>(
-						Arrays.asList(
-								Characteristics.UNORDERED,
-								Characteristics.CONCURRENT,
-								Characteristics.IDENTITY_FINISH
-								));
-			}
-		};
+	private static <X> RColumnBuilder<X> columnFor(MapRule<X> rule) {
+		if (rule instanceof IntegerMapRule) return RColumnBuilder.ofInts(rule.label(), ((IntegerMapRule<X>) rule).intRule);
+		if (rule instanceof DoubleMapRule) return RColumnBuilder.ofDoubles(rule.label(), ((DoubleMapRule<X>) rule).doubleRule);
+		return RColumnBuilder.ofObjects(rule.label(), rule.rule());
 	}
 
 	/**
-	 * A stream collector that applies mapping rules and coverts a stream of objects into a dataframe
+	 * A stream collector that applies mapping rules and coverts a stream of objects into a dataframe with a row
+	 * for each child of each object, given by a flatMapping(x -> x.getChildren(), mapping(...), ...). The values 
+	 * of the object are collected once with the number of children, and are repeated for each child when the
+	 * collection finishes. Objects with no children have no rows.
+	 * @param streamRule - a flatMapping(...) entry defining the children and the child columns
 	 * @param rules - an array of mapping(X.class, "colname", x -> x.getValue()) entries that define
 	 * the data frame columns
 	 * @return A collector that works in a stream.collect(RConvert.toDataFrame(mapping1, mapping2, ...))
 	 */
 	@SafeVarargs
 	public static <X,W> Collector<X,?,RDataframe> flatteningDataframeCollector(final StreamRule<X,W> streamRule, final MapRule<X>... rules) {
-		return new Collector<X,RDataframe,RDataframe>() {
-	
-			@Override
-			public Supplier<RDataframe> supplier() {
-				return () -> new RDataframe();
-			}
-	
-			@Override
-			public BiConsumer<RDataframe, X> accumulator() {
-				return (lhm, o) -> {
-					synchronized(lhm) {
-						RNamedPrimitives tmp = new RNamedPrimitives();
-						for (MapRule<X> rule: rules) {
-							//TODO: this woudl possibly be quicker with an interim List<RVector<?>> collectors and a finisher which assembled them.
-							//Maybe wouldn't make huge difference....
-							Object tmp2 = rule.rule().apply(o);
-							try {
-								tmp.put(rule.label(), RConverter.convertObjectToPrimitive(tmp2));
-							} catch (UnconvertableTypeException e) {
-								// Fall back to string 
-								tmp.put(rule.label(), RConverter.convertObjectToPrimitiveUnsafe(tmp2.toString()));
-							}
-						}
-						Stream<W> st = streamRule.streamRule().apply(o);
-						st.forEach(w -> {
-							RNamedPrimitives tmp2 = new RNamedPrimitives(tmp);
-							for (MapRule<W> rule: streamRule.mapRules()) {
-								Object tmp3 = rule.rule().apply(w);
-								try {
-									tmp2.put(rule.label(), RConverter.convertObjectToPrimitive(tmp3));
-								} catch (UnconvertableTypeException e) {
-									// Fall back to string 
-									tmp2.put(rule.label(), RConverter.convertObjectToPrimitiveUnsafe(tmp3.toString()));
-								}
-							}
-							lhm.addRow(tmp2);
-						});
-					}
-				};
-			}
-	
-			@Override
-			public BinaryOperator<RDataframe> combiner() {
-				return (lhm,rhm) -> {
-					RDataframe out = new RDataframe();
-					out.bindRows(lhm);
-					out.bindRows(rhm);
-					return out;
-				};
-			}
+		List<RColumnBuilder<X>> parents = new ArrayList<>();
+		for (MapRule<X> rule: rules) parents.add(columnFor(rule));
+		List<RColumnBuilder<W>> children = new ArrayList<>();
+		for (MapRule<W> rule: streamRule.mapRules()) children.add(columnFor(rule));
+		return Collector.<X,FlatColumns<X,W>,RDataframe>of(
+				() -> new FlatColumns<X,W>(parents, children),
+				(columns, o) -> columns.accept(o, streamRule.streamRule().apply(o)),
+				FlatColumns::append,
+				FlatColumns::build);
+	}
 	
-			@Override
-			public Function<RDataframe, RDataframe> finisher() {
-				return a -> a;
-			}
+	/**
+	 * As {@link #flatteningDataframeCollector(StreamRule, MapRule...)} but for parallel streams whose order does
+	 * not matter. The rows are collected concurrently into builders held by each thread, and the children of an
+	 * object are in order but the objects are in no particular order.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public static <X,W> Collector<X,?,RDataframe> unorderedFlatteningDataframeCollector(final StreamRule<X,W> streamRule, final MapRule<X>... rules) {
+		return concurrent(flatteningDataframeCollector(streamRule, rules));
+	}
 	
-			@Override
-			public Set<Characteristics> characteristics() {
-				return new HashSet<>(
-						Arrays.asList(
-								Characteristics.UNORDERED,
-								Characteristics.CONCURRENT,
-								Characteristics.IDENTITY_FINISH
-								));
+	// The columns of the objects, with the number of children of each, and the columns of the children
+	private static class FlatColumns<X,W> {
+		final List<RColumnBuilder<X>> parents = new ArrayList<>();
+		final List<RColumnBuilder<W>> children = new ArrayList<>();
+		int[] runs = new int[16];
+		int nparents = 0;
+		
+		FlatColumns(List<RColumnBuilder<X>> parents, List<RColumnBuilder<W>> children) {
+			for (RColumnBuilder<X> parent: parents) this.parents.add(parent.newBuilder());
+			for (RColumnBuilder<W> child: children) this.children.add(child.newBuilder());
+		}
+		
+		void accept(X parent, Stream<W> stream) {
+			int[] count = new int[1];
+			stream.forEachOrdered(w -> {
+				for (RColumnBuilder<W> child: children) child.accept(w);
+				count[0]++;
+			});
+			// objects without children add no rows
+			if (count[0] == 0) return;
+			for (RColumnBuilder<X> column: parents) column.accept(parent);
+			addRun(count[0]);
+		}
+		
+		private void addRun(int run) {
+			if (nparents == runs.length) runs = Arrays.copyOf(runs, runs.length + (runs.length >> 1));
+			runs[nparents++] = run;
+		}
+		
+		FlatColumns<X,W> append(FlatColumns<X,W> other) {
+			for (int i=0; i<parents.size(); i++) parents.get(i).append(other.parents.get(i));
+			for (int i=0; i<children.size(); i++) children.get(i).append(other.children.get(i));
+			for (int i=0; i<other.nparents; i++) addRun(other.runs[i]);
+			return this;
+		}
+		
+		RDataframe build() {
+			int nrow = 0;
+			for (int i=0; i<nparents; i++) nrow += runs[i];
+			int[] rows = new int[nrow];
+			for (int i=0, k=0; i<nparents; i++) {
+				Arrays.fill(rows, k, k+runs[i], i);
+				k += runs[i];
 			}
-		};
+			RDataframe out = new RDataframe();
+			for (RColumnBuilder<X> column: parents) out.put(column.label(), column.build().subset(rows));
+			for (RColumnBuilder<W> column: children) out.put(column.label(), column.build());
+			return out;
+		}
 	}
-
+	
 	
 	
 	public static String rQuote(String in,String quote) {
@@ -527,6 +603,59 @@ public class RConverter {
 		};
 	}
 	
+	/**
+	 * Create a mapping to an integer column, whose values are collected without boxing. Integer.MIN_VALUE is NA. e.g.
+	 * 
+	 * integerMapping("length", s -> s.length())
+	 * 
+	 * @param label - the target column label in the R dataframe
+	 * @param rule -  a lambda mapping an object to the value of the column 
+	 * @return a mapping rule
+	 */
+	public static <Z> MapRule<Z> integerMapping(final String label, final ToIntFunction<Z> rule) {
+		return new IntegerMapRule<Z>(label, rule);
+	}
+	
+	/**
+	 * Create a mapping to a numeric column, whose values are collected without boxing. e.g.
+	 * 
+	 * doubleMapping("area", s -> s.getWidth() * s.getHeight())
+	 * 
+	 * @param label - the target column label in the R dataframe
+	 * @param rule -  a lambda mapping an object to the value of the column 
+	 * @return a mapping rule
+	 */
+	public static <Z> MapRule<Z> doubleMapping(final String label, final ToDoubleFunction<Z> rule) {
+		return new DoubleMapRule<Z>(label, rule);
+	}
+	
+	private static class IntegerMapRule<Z> implements MapRule<Z> {
+		final String label;
+		final ToIntFunction<Z> intRule;
+		IntegerMapRule(String label, ToIntFunction<Z> intRule) {
+			this.label = label;
+			this.intRule = intRule;
+		}
+		@Override public String label() {return label;}
+		@Override public Function<Z, Object> rule() {
+			return z -> {
+				int v = intRule.applyAsInt(z);
+				return v == RInteger.NA.rPrimitive() ? null : v;
+			};
+		}
+	}
+	
+	private static class DoubleMapRule<Z> implements MapRule<Z> {
+		final String label;
+		final ToDoubleFunction<Z> doubleRule;
+		DoubleMapRule(String label, ToDoubleFunction<Z> doubleRule) {
+			this.label = label;
+			this.doubleRule = doubleRule;
+		}
+		@Override public String label() {return label;}
+		@Override public Function<Z, Object> rule() {return doubleRule::applyAsDouble;}
+	}
+	
 	/**
 	 * Create a mapping using a to allow us to extract data from an object of type defined by clazz and associate it
 	 * with a label. This can be used to create a custom data mapping. e.g.
@@ -0,0 +1,87 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+
+/**
+ * A minimal open addressing hash map from primitive long keys to non negative int values. This is used to assign
+ * dense codes to values when indexing vectors, without boxing each key.
+ * @author terminological
+ *
+ */
+final class LongIntHashMap {
+
+	static final int ABSENT = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	LongIntHashMap() {
+		this(16);
+	}
+
+	LongIntHashMap(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+		this.keys = new long[tableSize];
+		this.values = new int[tableSize];
+		Arrays.fill(values, ABSENT);
+		this.mask = tableSize - 1;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * @param key - the key
+	 * @return the value for the key or ABSENT
+	 */
+	int get(long key) {
+		int i = hash(key) & mask;
+		while (values[i] != ABSENT) {
+			if (keys[i] == key) return values[i];
+			i = (i + 1) & mask;
+		}
+		return ABSENT;
+	}
+
+	/**
+	 * @param key - the key
+	 * @param value - a non negative value to associate with the key if it is not already present
+	 * @return the existing value for the key, or the new value if it was absent
+	 */
+	int putIfAbsent(long key, int value) {
+		int i = hash(key) & mask;
+		while (values[i] != ABSENT) {
+			if (keys[i] == key) return values[i];
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		if (size * 2 > keys.length) resize();
+		return value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		Arrays.fill(values, ABSENT);
+		mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldValues[j] == ABSENT) continue;
+			int i = hash(oldKeys[j]) & mask;
+			while (values[i] != ABSENT) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
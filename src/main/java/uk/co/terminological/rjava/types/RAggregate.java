@@ -0,0 +1,288 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+
+import uk.co.terminological.rjava.IncompatibleTypeException;
+import uk.co.terminological.rjava.NameNotFoundException;
+import uk.co.terminological.rjava.UnexpectedNaValueException;
+
+/**
+ * A named summary of a dataframe column, for use with {@link RDataframe#summarise(RAggregate...)}. Summaries
+ * are calculated for every group in a single pass over the primitive values of the column, and follow the R
+ * conventions for missing values: unless {@link #naRm()} is specified any NA in a group gives an NA result.
+ *
+ * <pre>
+ * df.groupBy("cut").summarise(
+ * 		RAggregate.n("count"),
+ * 		RAggregate.mean("mean_price","price").naRm(),
+ * 		RAggregate.quantile("median_price","price",0.5)
+ * );
+ * </pre>
+ * @author terminological
+ *
+ */
+public class RAggregate {
+
+	enum Function {SUM, MEAN, MIN, MAX, N, N_DISTINCT, FIRST, LAST, QUANTILE}
+
+	private final String name;
+	private final String column;
+	private final Function function;
+	private final boolean naRm;
+	private final double probability;
+
+	private RAggregate(String name, String column, Function function, boolean naRm, double probability) {
+		this.name = name;
+		this.column = column;
+		this.function = function;
+		this.naRm = naRm;
+		this.probability = probability;
+	}
+
+	private RAggregate(String name, String column, Function function) {
+		this(name, column, function, false, Double.NaN);
+	}
+
+	public String name() {return name;}
+	public String column() {return column;}
+
+	/**
+	 * @return a copy of this summary which ignores NA (and NaN) values, as the R na.rm=TRUE parameter
+	 */
+	public RAggregate naRm() {
+		return new RAggregate(name, column, function, true, probability);
+	}
+
+	/**
+	 * The sum of a numeric, integer or logical column. Integer and logical sums are integers, and are NA if the
+	 * sum overflows an R integer.
+	 */
+	public static RAggregate sum(String name, String column) {
+		return new RAggregate(name, column, Function.SUM);
+	}
+
+	/**
+	 * The mean of a numeric, integer, logical or date column. The mean of an empty group is NaN.
+	 */
+	public static RAggregate mean(String name, String column) {
+		return new RAggregate(name, column, Function.MEAN);
+	}
+
+	/**
+	 * The minimum of a numeric, integer, logical or date column. The minimum of an empty numeric group is Inf, and of
+	 * other types is NA.
+	 */
+	public static RAggregate min(String name, String column) {
+		return new RAggregate(name, column, Function.MIN);
+	}
+
+	/**
+	 * The maximum of a numeric, integer, logical or date column. The maximum of an empty numeric group is -Inf, and of
+	 * other types is NA.
+	 */
+	public static RAggregate max(String name, String column) {
+		return new RAggregate(name, column, Function.MAX);
+	}
+
+	/**
+	 * The number of rows in each group, as dplyr::n()
+	 */
+	public static RAggregate n(String name) {
+		return new RAggregate(name, null, Function.N);
+	}
+
+	/**
+	 * The number of distinct values of a column of any type. NA is counted as a value unless {@link #naRm()} is specified.
+	 */
+	public static RAggregate nDistinct(String name, String column) {
+		return new RAggregate(name, column, Function.N_DISTINCT);
+	}
+
+	/**
+	 * The first value of a column of any type in each group.
+	 */
+	public static RAggregate first(String name, String column) {
+		return new RAggregate(name, column, Function.FIRST);
+	}
+
+	/**
+	 * The last value of a column of any type in each group.
+	 */
+	public static RAggregate last(String name, String column) {
+		return new RAggregate(name, column, Function.LAST);
+	}
+
+	/**
+	 * A sample quantile of a numeric, integer or logical column, calculated as the R default (type 7) quantile.
+	 * As in R, a group containing NA values is an error unless {@link #naRm()} is specified.
+	 * @param probability - a probability between 0 and 1
+	 */
+	public static RAggregate quantile(String name, String column, double probability) {
+		if (!(probability >= 0 && probability <= 1)) throw new IllegalArgumentException("Quantile probability must be between 0 and 1: "+probability);
+		return new RAggregate(name, column, Function.QUANTILE, false, probability);
+	}
+
+	/**
+	 * Calculate the summary for each group of a dataframe
+	 * @param dataframe - the dataframe
+	 * @param index - the groups of the dataframe
+	 * @return a vector with one value per group
+	 */
+	RVector<?> summarise(RDataframe dataframe, RGroupIndex index) {
+		int ngroups = index.ngroups();
+		if (function == Function.N) return new RIntegerVector(index.groupSizes());
+		if (!dataframe.containsKey(column)) throw new NameNotFoundException(column);
+		RVector<?> vector = dataframe.get(column);
+		switch (function) {
+		case FIRST:
+		case LAST:
+			return ends(vector, index);
+		case N_DISTINCT:
+			return nDistinct(vector, index);
+		default:
+		}
+
+		double[] doubles = null;
+		int[] ints = null;
+		if (vector instanceof RNumericVector) {
+			doubles = ((RNumericVector) vector).values;
+		} else if (
+				vector instanceof RIntegerVector || vector instanceof RLogicalVector ||
+				(vector instanceof RDateVector && function != Function.SUM && function != Function.QUANTILE)) {
+			ints = ((RIntBackedVector<?>) vector).values;
+		} else if (vector instanceof RUntypedNaVector) {
+			ints = new int[vector.size()];
+			Arrays.fill(ints, RIntBackedVector.NA_VALUE);
+		} else {
+			throw new IncompatibleTypeException("Cannot calculate "+function.name().toLowerCase()+" of "+column+" which is a "+vector.getClass().getSimpleName());
+		}
+
+		if (function == Function.QUANTILE) return quantile(doubles, ints, index);
+
+		int nrow = vector.size();
+		double[] acc = new double[ngroups];
+		long[] longAcc = new long[ngroups];
+		int[] count = new int[ngroups];
+		boolean[] na = new boolean[ngroups];
+		if (function == Function.MIN) Arrays.fill(acc, Double.POSITIVE_INFINITY);
+		if (function == Function.MAX) Arrays.fill(acc, Double.NEGATIVE_INFINITY);
+
+		for (int i=0; i<nrow; i++) {
+			int g = index.group(i);
+			double x;
+			if (doubles != null) {
+				x = doubles[i];
+				if (Double.doubleToRawLongBits(x) == RNumeric.NA_VALUE_LONG || (naRm && Double.isNaN(x))) {
+					na[g] |= !naRm;
+					continue;
+				}
+			} else {
+				if (ints[i] == RIntBackedVector.NA_VALUE) {
+					na[g] |= !naRm;
+					continue;
+				}
+				x = ints[i];
+				longAcc[g] += ints[i];
+			}
+			count[g]++;
+			switch (function) {
+			case SUM:
+			case MEAN:
+				acc[g] += x; break;
+			case MIN:
+				acc[g] = Math.min(acc[g], x); break;
+			case MAX:
+				acc[g] = Math.max(acc[g], x); break;
+			default:
+			}
+		}
+
+		if (doubles != null) {
+			double[] out = new double[ngroups];
+			for (int g=0; g<ngroups; g++) {
+				if (na[g]) out[g] = RNumeric.NA_VALUE;
+				else if (function == Function.MEAN) out[g] = count[g] == 0 ? Double.NaN : acc[g] / count[g];
+				else out[g] = acc[g];
+			}
+			return new RNumericVector(out);
+		}
+
+		if (function == Function.MEAN && !(vector instanceof RDateVector)) {
+			double[] out = new double[ngroups];
+			for (int g=0; g<ngroups; g++) {
+				out[g] = na[g] ? RNumeric.NA_VALUE : count[g] == 0 ? Double.NaN : (double) longAcc[g] / count[g];
+			}
+			return new RNumericVector(out);
+		}
+
+		int[] out = new int[ngroups];
+		for (int g=0; g<ngroups; g++) {
+			if (na[g]) out[g] = RIntBackedVector.NA_VALUE;
+			else if (function == Function.SUM) out[g] = Math.abs(longAcc[g]) > Integer.MAX_VALUE ? RIntBackedVector.NA_VALUE : (int) longAcc[g];
+			else if (count[g] == 0) out[g] = RIntBackedVector.NA_VALUE;
+			else if (function == Function.MEAN) out[g] = (int) Math.floorDiv(longAcc[g], (long) count[g]);
+			else out[g] = (int) acc[g];
+		}
+		return vector instanceof RDateVector ? new RDateVector(out) : new RIntegerVector(out);
+	}
+
+	private RVector<?> ends(RVector<?> vector, RGroupIndex index) {
+		int ngroups = index.ngroups();
+		int[] rows = new int[ngroups];
+		for (int g=0; g<ngroups; g++) {
+			int[] groupRows = index.rows(g);
+			// the single group of an empty dataframe has no first value
+			if (groupRows.length == 0) {
+				RVector<?> out = RVector.empty(vector.getType(), ngroups);
+				out.fillNA(ngroups);
+				return out;
+			}
+			rows[g] = function == Function.FIRST ? groupRows[0] : groupRows[groupRows.length-1];
+		}
+		return vector.subset(rows);
+	}
+
+	private RVector<?> nDistinct(RVector<?> vector, RGroupIndex index) {
+		int nrow = vector.size();
+		int[] codes = new int[nrow];
+		int cardinality = RGroupIndex.codes(vector, codes);
+		int[] out = new int[index.ngroups()];
+		LongIntHashMap seen = new LongIntHashMap();
+		for (int i=0; i<nrow; i++) {
+			if (naRm && vector.isNa(i)) continue;
+			int g = index.group(i);
+			int before = seen.size();
+			seen.putIfAbsent(((long) g) * cardinality + codes[i], before);
+			if (seen.size() > before) out[g]++;
+		}
+		return new RIntegerVector(out);
+	}
+
+	private RVector<?> quantile(double[] doubles, int[] ints, RGroupIndex index) {
+		int ngroups = index.ngroups();
+		double[] out = new double[ngroups];
+		for (int g=0; g<ngroups; g++) {
+			int[] rows = index.rows(g);
+			double[] tmp = new double[rows.length];
+			int n = 0;
+			for (int row: rows) {
+				boolean isNa = doubles != null ? Double.isNaN(doubles[row]) : ints[row] == RIntBackedVector.NA_VALUE;
+				if (isNa) {
+					if (naRm) continue;
+					throw new UnexpectedNaValueException("missing values and NaN's not allowed if 'na.rm' is FALSE in quantile of "+column);
+				}
+				tmp[n++] = doubles != null ? doubles[row] : ints[row];
+			}
+			if (n == 0) {
+				out[g] = RNumeric.NA_VALUE;
+				continue;
+			}
+			Arrays.sort(tmp, 0, n);
+			// R type 7: linear interpolation between the order statistics
+			double h = (n - 1) * probability;
+			int lo = (int) Math.floor(h);
+			out[g] = lo+1 < n ? tmp[lo] + (h - lo) * (tmp[lo+1] - tmp[lo]) : tmp[lo];
+		}
+		return new RNumericVector(out);
+	}
+}
@@ -0,0 +1,1024 @@
+package uk.co.terminological.rjava.types;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads and writes dataframes in the Apache Arrow IPC stream and file formats, so that they can be exchanged with
+ * the R arrow package or other tools in a single transfer. The message metadata is encoded with a minimal
+ * flatbuffer writer and reader, so there is no dependency on the arrow java libraries.
+ * <p>
+ * Columns are written as: numeric - float64, integer - int32, logical - bool, date - date32, character - utf8,
+ * factor - dictionary encoded utf8 with int32 indices, and untyped NA - null. R NA values are arrow nulls. Grouping
+ * is not written. When reading, signed integers of up to 32 bits are integer columns, other integers and floats are
+ * numeric, date64 is read as dates and dictionary encoded strings as factors. Nested types and compressed batches
+ * are not supported.
+ * <p>
+ * See https://arrow.apache.org/docs/format/Columnar.html#serialization-and-interprocess-communication-ipc
+ */
+final class RArrowFormat {
+
+	private static final byte[] FILE_MAGIC = {'A','R','R','O','W','1'};
+	// the most rows in each record batch written
+	static final int BATCH_ROWS = 1 << 20;
+	// the most bytes estimated for the body of each record batch written, which keeps the body within a java array
+	// and the string offsets of a batch within 32 bits
+	static final long BATCH_BYTES = 1L << 30;
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	private static final short METADATA_V4 = 3;
+	private static final short METADATA_V5 = 4;
+
+	// MessageHeader union
+	private static final byte SCHEMA = 1;
+	private static final byte DICTIONARY_BATCH = 2;
+	private static final byte RECORD_BATCH = 3;
+
+	// Type union
+	private static final byte NULL = 1;
+	private static final byte INT = 2;
+	private static final byte FLOATING_POINT = 3;
+	private static final byte UTF8 = 5;
+	private static final byte BOOL = 6;
+	private static final byte DATE = 8;
+	private static final byte LARGE_UTF8 = 20;
+
+	private static final short PRECISION_SINGLE = 1;
+	private static final short PRECISION_DOUBLE = 2;
+	private static final short DATE_DAY = 0;
+	private static final short DATE_MILLISECOND = 1;
+
+	private RArrowFormat() {}
+
+	// Writing
+
+	/**
+	 * Write a dataframe as an arrow IPC stream, or file if requested. Each flatbuffer is built in the same order as
+	 * by the arrow java library, so the metadata is laid out identically.
+	 */
+	static void write(RDataframe df, OutputStream os, boolean file) throws IOException {
+		write(df, os, file, BATCH_BYTES);
+	}
+
+	static void write(RDataframe df, OutputStream os, boolean file, long batchBytes) throws IOException {
+		Sink out = new Sink(os);
+		List<String> names = new ArrayList<>(df.keySet());
+		List<RVector<?>> columns = new ArrayList<>(df.values());
+		if (file) {
+			out.write(FILE_MAGIC);
+			out.write(new byte[2]);
+		}
+		Builder b = new Builder();
+		out.message(b, SCHEMA, schema(b, names, columns), new Body());
+		List<long[]> dictionaries = new ArrayList<>();
+		for (int j=0; j<columns.size(); j++) {
+			if (!(columns.get(j) instanceof RFactorVector)) continue;
+			String[] levels = ((RFactorVector) columns.get(j)).rLevels();
+			Body body = new Body();
+			List<long[]> nodes = new ArrayList<>();
+			writeStrings(body, nodes, levels.length, i -> levels[i]);
+			b = new Builder();
+			int data = recordBatch(b, levels.length, nodes, body.buffers);
+			b.startTable(3);
+			b.addLong(0, j, 0);
+			b.addOffset(1, data);
+			dictionaries.add(out.message(b, DICTIONARY_BATCH, b.endTable(), body));
+		}
+		List<long[]> batches = new ArrayList<>();
+		int nrow = df.nrow();
+		for (int start = 0, end; start < nrow; start = end) {
+			end = batchEnd(columns, start, nrow, batchBytes);
+			Body body = new Body();
+			List<long[]> nodes = new ArrayList<>();
+			for (RVector<?> column: columns) writeColumn(body, nodes, column, start, end);
+			b = new Builder();
+			batches.add(out.message(b, RECORD_BATCH, recordBatch(b, end-start, nodes, body.buffers), body));
+		}
+		// end of stream
+		out.putInt(-1);
+		out.putInt(0);
+		if (file) {
+			b = new Builder();
+			int schema = schema(b, names, columns);
+			int dictionaryBlocks = blocks(b, dictionaries);
+			int batchBlocks = blocks(b, batches);
+			b.startTable(5);
+			b.addOffset(1, schema);
+			b.addOffset(2, dictionaryBlocks);
+			b.addOffset(3, batchBlocks);
+			b.addShort(0, METADATA_V5, 0);
+			byte[] footer = b.finish(b.endTable());
+			out.write(footer);
+			out.putInt(footer.length);
+			out.write(FILE_MAGIC);
+		}
+		os.flush();
+	}
+
+	private static int schema(Builder b, List<String> names, List<RVector<?>> columns) throws IOException {
+		int[] fields = new int[columns.size()];
+		for (int j=0; j<columns.size(); j++) fields[j] = field(b, names.get(j), columns.get(j), j);
+		int fieldVector = b.createOffsets(fields);
+		int metadata = b.createOffsets(new int[0]);
+		b.startTable(4);
+		b.addOffset(1, fieldVector);
+		b.addOffset(2, metadata);
+		return b.endTable();
+	}
+
+	// a nullable field, with a dictionary of the given id for factors
+	private static int field(Builder b, String name, RVector<?> column, long id) throws IOException {
+		int nameOffset = b.createString(name);
+		byte type;
+		int typeOffset;
+		if (column instanceof RNumericVector) {
+			type = FLOATING_POINT;
+			b.startTable(1);
+			b.addShort(0, PRECISION_DOUBLE, 0);
+			typeOffset = b.endTable();
+		} else if (column instanceof RIntegerVector) {
+			type = INT;
+			typeOffset = int32(b);
+		} else if (column instanceof RLogicalVector) {
+			type = BOOL;
+			typeOffset = empty(b);
+		} else if (column instanceof RDateVector) {
+			type = DATE;
+			b.startTable(1);
+			b.addShort(0, DATE_DAY, DATE_MILLISECOND);
+			typeOffset = b.endTable();
+		} else if (column instanceof RCharacterVector || column instanceof RFactorVector) {
+			type = UTF8;
+			typeOffset = empty(b);
+		} else if (column instanceof RUntypedNaVector) {
+			type = NULL;
+			typeOffset = empty(b);
+		} else {
+			throw new IOException("Cannot write a "+column.getClass().getSimpleName()+" as arrow");
+		}
+		int dictionary = 0;
+		if (column instanceof RFactorVector) {
+			int indexType = int32(b);
+			b.startTable(4);
+			b.addLong(0, id, 0);
+			b.addOffset(1, indexType);
+			dictionary = b.endTable();
+		}
+		// arrow C++ requires the children, even if empty
+		int children = b.createOffsets(new int[0]);
+		int metadata = b.createOffsets(new int[0]);
+		b.startTable(7);
+		b.addOffset(0, nameOffset);
+		b.addByte(1, 1, 0);
+		b.addByte(2, type, 0);
+		b.addOffset(3, typeOffset);
+		b.addOffset(5, children);
+		b.addOffset(6, metadata);
+		b.addOffset(4, dictionary);
+		return b.endTable();
+	}
+
+	private static int int32(Builder b) {
+		b.startTable(2);
+		b.addInt(0, 32, 0);
+		b.addByte(1, 1, 0);
+		return b.endTable();
+	}
+
+	private static int empty(Builder b) {
+		b.startTable(0);
+		return b.endTable();
+	}
+
+	// a record batch of the given nodes and buffers, each of which is a pair of longs
+	private static int recordBatch(Builder b, long length, List<long[]> nodes, List<long[]> buffers) {
+		int nodeVector = b.createStructs(nodes);
+		int bufferVector = b.createStructs(buffers);
+		b.startTable(4);
+		b.addLong(0, length, 0);
+		b.addOffset(1, nodeVector);
+		b.addOffset(2, bufferVector);
+		return b.endTable();
+	}
+
+	// a vector of Block structs, each of which is a long offset, an int metadata length and a long body length
+	private static int blocks(Builder b, List<long[]> blocks) {
+		b.startVector(24, blocks.size(), 8);
+		for (int i=blocks.size()-1; i>=0; i--) {
+			long[] block = blocks.get(i);
+			b.prep(8, 24);
+			b.putLong(block[2]);
+			b.pad(4);
+			b.putInt((int) block[1]);
+			b.putLong(block[0]);
+		}
+		return b.endVector();
+	}
+
+	// the end of a record batch from a start row, with at most BATCH_ROWS rows and an estimated body of at most
+	// batchBytes, unless a single row is larger than that. Strings are taken to be 3 bytes per char, which is the most
+	// they can be in UTF-8, and each column is allowed a byte per row for its validity bitmap.
+	private static int batchEnd(List<RVector<?>> columns, int start, int nrow, long batchBytes) {
+		int max = (int) Math.min(nrow, (long) start + BATCH_ROWS);
+		long rowBytes = 0;
+		List<RCharacterVector> strings = new ArrayList<>();
+		for (RVector<?> column: columns) {
+			if (column instanceof RNumericVector) rowBytes += 9;
+			else if (column instanceof RLogicalVector) rowBytes += 2;
+			else if (column instanceof RIntBackedVector) rowBytes += 5;
+			else if (column instanceof RCharacterVector) {
+				rowBytes += 5;
+				strings.add((RCharacterVector) column);
+			}
+		}
+		if (strings.isEmpty()) return (int) Math.min(max, start + Math.max(1, batchBytes / Math.max(1, rowBytes)));
+		long bytes = 0;
+		int end = start;
+		while (end < max) {
+			long row = rowBytes;
+			for (RCharacterVector column: strings) {
+				String value = column.rPrimitive(end);
+				if (value != null) row += 3L * value.length();
+			}
+			if (end > start && bytes + row > batchBytes) break;
+			bytes += row;
+			end++;
+		}
+		return end;
+	}
+
+	private static void writeColumn(Body body, List<long[]> nodes, RVector<?> column, int start, int end) {
+		int n = end-start;
+		if (column instanceof RNumericVector) {
+			double[] values = ((RNumericVector) column).values;
+			IntTest isNull = i -> Double.doubleToRawLongBits(values[start+i]) == RNumeric.NA_VALUE_LONG;
+			int nulls = body.validity(n, isNull);
+			if (nulls == 0) {
+				body.doubles(values, start, n);
+			} else {
+				// the values of null slots are zero, as written by the arrow libraries
+				double[] tmp = new double[n];
+				for (int i=0; i<n; i++) if (!isNull.test(i)) tmp[i] = values[start+i];
+				body.doubles(tmp, 0, n);
+			}
+			nodes.add(new long[] {n, nulls});
+		} else if (column instanceof RFactorVector) {
+			int[] values = ((RFactorVector) column).values;
+			int nulls = body.validity(n, i -> values[start+i] == RIntBackedVector.NA_VALUE);
+			int[] indices = new int[n];
+			for (int i=0; i<n; i++) indices[i] = values[start+i] == RIntBackedVector.NA_VALUE ? 0 : values[start+i]-1;
+			body.ints(indices, 0, n);
+			nodes.add(new long[] {n, nulls});
+		} else if (column instanceof RLogicalVector) {
+			int[] values = ((RLogicalVector) column).values;
+			int nulls = body.validity(n, i -> values[start+i] == RIntBackedVector.NA_VALUE);
+			body.bits(n, i -> values[start+i] == 1);
+			nodes.add(new long[] {n, nulls});
+		} else if (column instanceof RIntBackedVector) {
+			// integers and dates
+			int[] values = ((RIntBackedVector<?>) column).values;
+			int nulls = body.validity(n, i -> values[start+i] == RIntBackedVector.NA_VALUE);
+			if (nulls == 0) {
+				body.ints(values, start, n);
+			} else {
+				int[] tmp = new int[n];
+				for (int i=0; i<n; i++) if (values[start+i] != RIntBackedVector.NA_VALUE) tmp[i] = values[start+i];
+				body.ints(tmp, 0, n);
+			}
+			nodes.add(new long[] {n, nulls});
+		} else if (column instanceof RCharacterVector) {
+			RCharacterVector chars = (RCharacterVector) column;
+			writeStrings(body, nodes, n, i -> chars.rPrimitive(start+i));
+		} else {
+			// null columns have no buffers
+			nodes.add(new long[] {n, n});
+		}
+	}
+
+	private static void writeStrings(Body body, List<long[]> nodes, int n, IntFunction<String> strings) {
+		byte[][] encoded = new byte[n][];
+		int[] offsets = new int[n+1];
+		for (int i=0; i<n; i++) {
+			String s = strings.apply(i);
+			encoded[i] = s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+			offsets[i+1] = offsets[i] + (s == null ? 0 : encoded[i].length);
+		}
+		int nulls = body.validity(n, i -> encoded[i] == null);
+		body.ints(offsets, 0, n+1);
+		body.start();
+		for (byte[] bytes: encoded) if (bytes != null) body.out.put(bytes, 0, bytes.length);
+		body.end();
+		nodes.add(new long[] {n, nulls});
+	}
+
+	@FunctionalInterface
+	private interface IntFunction<Y> {
+		Y apply(int i);
+	}
+
+	@FunctionalInterface
+	private interface IntTest {
+		boolean test(int i);
+	}
+
+	// The body of a message, as a sequence of buffers each of which starts on an 8 byte boundary
+	private static final class Body {
+		final Flat out = new Flat();
+		final List<long[]> buffers = new ArrayList<>();
+		private int start;
+
+		void start() {
+			out.align(8);
+			start = out.size;
+		}
+
+		void end() {
+			buffers.add(new long[] {start, out.size - start});
+			out.align(8);
+		}
+
+		// a validity bitmap, which is empty if there are no nulls
+		int validity(int n, IntTest isNull) {
+			int nulls = 0;
+			for (int i=0; i<n; i++) if (isNull.test(i)) nulls++;
+			if (nulls == 0) {
+				start();
+				end();
+			} else {
+				bits(n, i -> !isNull.test(i));
+			}
+			return nulls;
+		}
+
+		void bits(int n, IntTest set) {
+			start();
+			byte[] bits = new byte[(n + 7) >>> 3];
+			for (int i=0; i<n; i++) if (set.test(i)) bits[i >>> 3] |= 1 << (i & 7);
+			out.put(bits, 0, bits.length);
+			end();
+		}
+
+		void doubles(double[] values, int from, int n) {
+			start();
+			out.ensure(n << 3);
+			ByteBuffer.wrap(out.bytes, out.size, n << 3).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(values, from, n);
+			out.size += n << 3;
+			end();
+		}
+
+		void ints(int[] values, int from, int n) {
+			start();
+			out.ensure(n << 2);
+			ByteBuffer.wrap(out.bytes, out.size, n << 2).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(values, from, n);
+			out.size += n << 2;
+			end();
+		}
+	}
+
+	// Writes encapsulated messages to a stream, keeping track of the position for the blocks of the file footer
+	private static final class Sink {
+		final OutputStream os;
+		long position = 0;
+
+		Sink(OutputStream os) {
+			this.os = os;
+		}
+
+		void write(byte[] bytes) throws IOException {
+			write(bytes, 0, bytes.length);
+		}
+
+		void write(byte[] bytes, int off, int len) throws IOException {
+			os.write(bytes, off, len);
+			position += len;
+		}
+
+		void putInt(int i) throws IOException {
+			write(new byte[] {(byte) i, (byte) (i >>> 8), (byte) (i >>> 16), (byte) (i >>> 24)});
+		}
+
+		// writes a message and returns its block: offset, metadata length and body length
+		long[] message(Builder b, byte type, int header, Body body) throws IOException {
+			b.startTable(5);
+			b.addByte(1, type, 0);
+			b.addOffset(2, header);
+			b.addShort(0, METADATA_V5, 0);
+			b.addLong(3, body.out.size, 0);
+			byte[] metadata = b.finish(b.endTable());
+			// the metadata is padded so the body starts on an 8 byte boundary
+			int padding = (8 - metadata.length % 8) % 8;
+			long start = position;
+			putInt(-1);
+			putInt(metadata.length + padding);
+			write(metadata);
+			write(new byte[padding]);
+			write(body.out.bytes, 0, body.out.size);
+			return new long[] {start, 8 + metadata.length + padding, body.out.size};
+		}
+	}
+
+	// a growable byte array for message bodies
+	private static final class Flat {
+		byte[] bytes = new byte[256];
+		int size = 0;
+
+		void ensure(int n) {
+			long needed = (long) size + n;
+			if (needed > bytes.length) {
+				if (needed > MAX_ARRAY) throw new IllegalStateException("Arrow message body is larger than "+MAX_ARRAY+" bytes");
+				bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_ARRAY, Math.max(needed, 2L * bytes.length)));
+			}
+		}
+
+		void align(int n) {
+			int pad = (n - size % n) % n;
+			ensure(pad);
+			Arrays.fill(bytes, size, size + pad, (byte) 0);
+			size += pad;
+		}
+
+		void put(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, bytes, size, len);
+			size += len;
+		}
+	}
+
+	// Flatbuffers. This follows the reference flatbuffers builder: objects are written backwards from the end of the
+	// buffer, each after the objects it refers to, and identical vtables are shared. Offsets are from the end.
+	private static final class Builder {
+		private byte[] bytes = new byte[1024];
+		private int space = bytes.length;
+		private int minalign = 1;
+		// the positions of the fields of the table being built, by slot
+		private int[] vtable = new int[16];
+		private int vtableInUse;
+		private int objectStart;
+		// the positions of the vtables written so far
+		private int[] vtables = new int[16];
+		private int numVtables;
+		private int vectorElements;
+
+		int offset() {
+			return bytes.length - space;
+		}
+
+		// pad so that after writing additional bytes the next value of the given size is aligned
+		void prep(int size, int additional) {
+			if (size > minalign) minalign = size;
+			int alignSize = (~(bytes.length - space + additional) + 1) & (size - 1);
+			while (space < alignSize + size + additional) {
+				int old = bytes.length;
+				byte[] grown = new byte[old * 2];
+				System.arraycopy(bytes, 0, grown, old, old);
+				bytes = grown;
+				space += old;
+			}
+			pad(alignSize);
+		}
+
+		void pad(int n) {
+			for (int i=0; i<n; i++) bytes[--space] = 0;
+		}
+
+		void putByte(int v) {
+			bytes[--space] = (byte) v;
+		}
+
+		void putShort(int v) {
+			putByte(v >>> 8);
+			putByte(v);
+		}
+
+		void putInt(int v) {
+			for (int i=3; i>=0; i--) putByte(v >>> (8*i));
+		}
+
+		void putLong(long v) {
+			putInt((int) (v >>> 32));
+			putInt((int) v);
+		}
+
+		void addOffset(int off) {
+			prep(4, 0);
+			putInt(offset() - off + 4);
+		}
+
+		void startVector(int elementSize, int n, int alignment) {
+			vectorElements = n;
+			prep(4, elementSize * n);
+			prep(alignment, elementSize * n);
+		}
+
+		int endVector() {
+			putInt(vectorElements);
+			return offset();
+		}
+
+		int createString(String s) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			prep(1, 0);
+			putByte(0);
+			startVector(1, utf8.length, 1);
+			space -= utf8.length;
+			System.arraycopy(utf8, 0, bytes, space, utf8.length);
+			return endVector();
+		}
+
+		// a vector of tables or strings
+		int createOffsets(int[] offsets) {
+			startVector(4, offsets.length, 4);
+			for (int i=offsets.length-1; i>=0; i--) addOffset(offsets[i]);
+			return endVector();
+		}
+
+		// a vector of structs of two longs, such as FieldNode and Buffer
+		int createStructs(List<long[]> structs) {
+			startVector(16, structs.size(), 8);
+			for (int i=structs.size()-1; i>=0; i--) {
+				prep(8, 16);
+				putLong(structs.get(i)[1]);
+				putLong(structs.get(i)[0]);
+			}
+			return endVector();
+		}
+
+		void startTable(int nslots) {
+			if (vtable.length < nslots) vtable = new int[nslots];
+			vtableInUse = nslots;
+			Arrays.fill(vtable, 0, nslots, 0);
+			objectStart = offset();
+		}
+
+		// scalar fields equal to their default are not written
+		void addByte(int slot, int v, int def) {if (v != def) {prep(1, 0); putByte(v); vtable[slot] = offset();}}
+		void addShort(int slot, int v, int def) {if (v != def) {prep(2, 0); putShort(v); vtable[slot] = offset();}}
+		void addInt(int slot, int v, int def) {if (v != def) {prep(4, 0); putInt(v); vtable[slot] = offset();}}
+		void addLong(int slot, long v, long def) {if (v != def) {prep(8, 0); putLong(v); vtable[slot] = offset();}}
+		void addOffset(int slot, int off) {if (off != 0) {addOffset(off); vtable[slot] = offset();}}
+
+		int endTable() {
+			prep(4, 0);
+			putInt(0);
+			int table = offset();
+			int i = vtableInUse - 1;
+			while (i >= 0 && vtable[i] == 0) i--;
+			int trimmed = i + 1;
+			for (; i >= 0; i--) {
+				prep(2, 0);
+				putShort(vtable[i] != 0 ? table - vtable[i] : 0);
+			}
+			prep(2, 0);
+			putShort(table - objectStart);
+			prep(2, 0);
+			putShort((trimmed + 2) * 2);
+			// reuse an identical vtable if there is one
+			int existing = 0;
+			search:
+			for (int v=0; v<numVtables; v++) {
+				int vt1 = bytes.length - vtables[v];
+				int length = getShort(vt1);
+				if (length != getShort(space)) continue;
+				for (int j=2; j<length; j+=2) if (getShort(vt1 + j) != getShort(space + j)) continue search;
+				existing = vtables[v];
+				break;
+			}
+			if (existing != 0) {
+				space = bytes.length - table;
+				putIntAt(space, existing - table);
+			} else {
+				if (numVtables == vtables.length) vtables = Arrays.copyOf(vtables, numVtables * 2);
+				vtables[numVtables++] = offset();
+				putIntAt(bytes.length - table, offset() - table);
+			}
+			return table;
+		}
+
+		private int getShort(int p) {
+			return (bytes[p] & 0xFF) | (bytes[p+1] & 0xFF) << 8;
+		}
+
+		private void putIntAt(int p, int v) {
+			for (int i=0; i<4; i++) bytes[p+i] = (byte) (v >>> (8*i));
+		}
+
+		// the finished flatbuffer, with a root offset to the given table
+		byte[] finish(int root) {
+			prep(minalign, 4);
+			addOffset(root);
+			return Arrays.copyOfRange(bytes, space, bytes.length);
+		}
+	}
+
+	// a table read from a flatbuffer
+	private static final class Reader {
+		final ByteBuffer bb;
+		final int pos;
+
+		Reader(ByteBuffer bb, int pos) {
+			this.bb = bb;
+			this.pos = pos;
+		}
+
+		static Reader root(ByteBuffer bb) {
+			return new Reader(bb, bb.getInt(0));
+		}
+
+		// the position of a field, or -1 if it is absent
+		int field(int slot) {
+			int vtable = pos - bb.getInt(pos);
+			int entry = 4 + 2*slot;
+			if (entry >= (bb.getShort(vtable) & 0xFFFF)) return -1;
+			int offset = bb.getShort(vtable + entry) & 0xFFFF;
+			return offset == 0 ? -1 : pos + offset;
+		}
+
+		long getLong(int slot, long def) {int p = field(slot); return p == -1 ? def : bb.getLong(p);}
+		int getInt(int slot, int def) {int p = field(slot); return p == -1 ? def : bb.getInt(p);}
+		short getShort(int slot, short def) {int p = field(slot); return p == -1 ? def : bb.getShort(p);}
+		byte getByte(int slot, byte def) {int p = field(slot); return p == -1 ? def : bb.get(p);}
+
+		private int target(int p) {
+			return p + bb.getInt(p);
+		}
+
+		Reader table(int slot) {
+			int p = field(slot);
+			return p == -1 ? null : new Reader(bb, target(p));
+		}
+
+		String string(int slot) {
+			int p = field(slot);
+			if (p == -1) return null;
+			int s = target(p);
+			byte[] bytes = new byte[bb.getInt(s)];
+			for (int i=0; i<bytes.length; i++) bytes[i] = bb.get(s+4+i);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int vectorLength(int slot) {
+			int p = field(slot);
+			return p == -1 ? 0 : bb.getInt(target(p));
+		}
+
+		// the position of the first element of a vector
+		int vector(int slot) {
+			return target(field(slot)) + 4;
+		}
+
+		Reader tableAt(int slot, int i) {
+			return new Reader(bb, target(vector(slot) + 4*i));
+		}
+	}
+
+	// Reading
+
+	// a field of the schema
+	private static final class Field {
+		String name;
+		byte type;
+		Reader typeTable;
+		long dictionary = -1;
+		Reader indexType;
+	}
+
+	// Arrow data being read. A file is read one message at a time, so it may be larger than a single buffer.
+	private interface Source {
+		long size();
+		ByteBuffer slice(long pos, int length) throws IOException;
+	}
+
+	private static final class BufferSource implements Source {
+		final ByteBuffer bb;
+
+		BufferSource(ByteBuffer bb) {
+			this.bb = bb;
+		}
+
+		public long size() {
+			return bb.limit();
+		}
+
+		public ByteBuffer slice(long pos, int length) throws IOException {
+			if (pos + length > bb.limit()) throw new IOException("Truncated arrow data");
+			return RArrowFormat.slice(bb, (int) pos, length);
+		}
+	}
+
+	// Message bodies are memory mapped and anything smaller is read onto the heap
+	private static final class ChannelSource implements Source {
+		static final int MAP_BYTES = 1 << 16;
+		final FileChannel channel;
+		final long size;
+
+		ChannelSource(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public ByteBuffer slice(long pos, int length) throws IOException {
+			if (pos + length > size || length < 0) throw new IOException("Truncated arrow data");
+			if (length >= MAP_BYTES) return channel.map(FileChannel.MapMode.READ_ONLY, pos, length).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer out = ByteBuffer.allocate(length);
+			while (out.hasRemaining()) {
+				if (channel.read(out, pos + out.position()) < 0) throw new IOException("Truncated arrow data");
+			}
+			((Buffer) out).flip();
+			return out.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Read a dataframe from an arrow IPC stream or file
+	 * @param bb - the whole stream or file
+	 */
+	static RDataframe read(ByteBuffer bb) throws IOException {
+		return read(new BufferSource(bb.duplicate()));
+	}
+
+	/**
+	 * Read a dataframe from an arrow IPC stream or file, mapping the body of each message separately so the file
+	 * may be larger than 2GB. Each message must be smaller than 2GB.
+	 * @param channel - the whole stream or file
+	 */
+	static RDataframe read(FileChannel channel) throws IOException {
+		return read(new ChannelSource(channel));
+	}
+
+	private static RDataframe read(Source source) throws IOException {
+		long pos = 0;
+		long end = source.size();
+		if (end >= FILE_MAGIC.length + 6 && startsWith(source.slice(0, FILE_MAGIC.length), FILE_MAGIC)) {
+			// the stream within a file is followed by the footer, its length, and the magic number again
+			end = end - FILE_MAGIC.length - 4;
+			end -= source.slice(end, 4).getInt(0);
+			pos = 8;
+		}
+		List<Field> fields = null;
+		List<RVector<?>> columns = new ArrayList<>();
+		Map<Long, List<String>> dictionaries = new HashMap<>();
+		Set<Long> used = new HashSet<>();
+		while (pos + 4 <= end) {
+			int length = source.slice(pos, 4).getInt(0);
+			pos += 4;
+			// before arrow 0.15 there was no continuation marker
+			if (length == -1) {
+				length = source.slice(pos, 4).getInt(0);
+				pos += 4;
+			}
+			if (length == 0) break;
+			Reader message = Reader.root(source.slice(pos, length));
+			pos += length;
+			short version = message.getShort(0, (short) 0);
+			if (version != METADATA_V4 && version != METADATA_V5) throw new IOException("Unsupported arrow metadata version: "+version);
+			long bodyLength = message.getLong(3, 0);
+			if (bodyLength > MAX_ARRAY) throw new IOException("Arrow messages larger than "+MAX_ARRAY+" bytes are not supported");
+			ByteBuffer body = source.slice(pos, (int) bodyLength);
+			pos += bodyLength;
+			byte type = message.getByte(1, (byte) 0);
+			Reader header = message.table(2);
+			if (type == SCHEMA) {
+				fields = readSchema(header);
+				for (Field field: fields) columns.add(RVector.empty(primitiveType(field), 0));
+			} else if (type == DICTIONARY_BATCH) {
+				long id = header.getLong(0, 0);
+				boolean delta = header.getByte(2, (byte) 0) != 0;
+				if (!delta && used.contains(id)) throw new IOException("Replacement arrow dictionaries are not supported");
+				Field values = new Field();
+				values.type = dictionaryValueType(fields, id);
+				RVector<?> levels = readBatch(header.table(1), body, Arrays.asList(values), dictionaries).get(0);
+				List<String> labels = delta ? dictionaries.get(id) : new ArrayList<>();
+				for (RPrimitive level: levels) labels.add(((RCharacter) level).get());
+				dictionaries.put(id, labels);
+			} else if (type == RECORD_BATCH) {
+				if (fields == null) throw new IOException("Arrow record batch before the schema");
+				List<RVector<?>> batch = readBatch(header, body, fields, dictionaries);
+				for (int j=0; j<columns.size(); j++) {
+					if (fields.get(j).dictionary != -1) used.add(fields.get(j).dictionary);
+					columns.set(j, columns.get(j).addAllUnsafe(batch.get(j)));
+				}
+			} else {
+				throw new IOException("Unsupported arrow message type: "+type);
+			}
+		}
+		if (fields == null) throw new IOException("No arrow schema found");
+		RDataframe out = new RDataframe();
+		for (int j=0; j<fields.size(); j++) out.put(fields.get(j).name, columns.get(j));
+		return out;
+	}
+
+	private static boolean startsWith(ByteBuffer bb, byte[] prefix) {
+		for (int i=0; i<prefix.length; i++) if (bb.get(i) != prefix[i]) return false;
+		return true;
+	}
+
+	private static ByteBuffer slice(ByteBuffer bb, int pos, int length) throws IOException {
+		if (pos + length > bb.limit() || length < 0) throw new IOException("Truncated arrow data");
+		ByteBuffer tmp = bb.duplicate();
+		((Buffer) tmp).position(pos);
+		((Buffer) tmp).limit(pos + length);
+		return tmp.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static List<Field> readSchema(Reader schema) throws IOException {
+		List<Field> out = new ArrayList<>();
+		for (int j=0; j<schema.vectorLength(1); j++) {
+			Reader f = schema.tableAt(1, j);
+			Field field = new Field();
+			field.name = f.string(0);
+			field.type = f.getByte(2, (byte) 0);
+			field.typeTable = f.table(3);
+			Reader dictionary = f.table(4);
+			if (dictionary != null) {
+				field.dictionary = dictionary.getLong(0, 0);
+				field.indexType = dictionary.table(1);
+				if (field.type != UTF8 && field.type != LARGE_UTF8) throw new IOException("Only string arrow dictionaries are supported: "+field.name);
+			}
+			if (f.vectorLength(5) > 0) throw new IOException("Nested arrow types are not supported: "+field.name);
+			primitiveType(field);
+			out.add(field);
+		}
+		return out;
+	}
+
+	private static byte dictionaryValueType(List<Field> fields, long id) throws IOException {
+		if (fields != null) for (Field field: fields) if (field.dictionary == id) return field.type;
+		throw new IOException("Arrow dictionary "+id+" is not used in the schema");
+	}
+
+	private static Class<? extends RPrimitive> primitiveType(Field field) throws IOException {
+		if (field.dictionary != -1) return RFactor.class;
+		switch (field.type) {
+		case NULL: return RUntypedNa.class;
+		case INT:
+			int bits = field.typeTable.getInt(0, 0);
+			boolean signed = field.typeTable.getByte(1, (byte) 0) != 0;
+			return bits < 32 || (bits == 32 && signed) ? RInteger.class : RNumeric.class;
+		case FLOATING_POINT:
+			if (field.typeTable.getShort(0, (short) 0) < PRECISION_SINGLE) throw new IOException("Half precision arrow floats are not supported: "+field.name);
+			return RNumeric.class;
+		case BOOL: return RLogical.class;
+		case DATE: return RDate.class;
+		case UTF8:
+		case LARGE_UTF8: return RCharacter.class;
+		default: throw new IOException("Unsupported arrow type "+field.type+" for: "+field.name);
+		}
+	}
+
+	// the nodes and buffers of a record batch, which are used in order by the fields
+	private static final class Batch {
+		final Reader header;
+		final ByteBuffer body;
+		int node = 0;
+		int buffer = 0;
+
+		Batch(Reader header, ByteBuffer body) {
+			this.header = header;
+			this.body = body;
+		}
+
+		long[] nextNode() {
+			int p = header.vector(1) + 16 * node++;
+			return new long[] {header.bb.getLong(p), header.bb.getLong(p+8)};
+		}
+
+		// the next buffer, as a little endian view of the body
+		ByteBuffer nextBuffer() throws IOException {
+			int p = header.vector(2) + 16 * buffer++;
+			return slice(body, (int) header.bb.getLong(p), (int) header.bb.getLong(p+8));
+		}
+	}
+
+	private static List<RVector<?>> readBatch(Reader header, ByteBuffer body, List<Field> fields, Map<Long, List<String>> dictionaries) throws IOException {
+		if (header.table(3) != null) throw new IOException("Compressed arrow record batches are not supported");
+		Batch batch = new Batch(header, body);
+		List<RVector<?>> out = new ArrayList<>();
+		for (Field field: fields) {
+			long[] node = batch.nextNode();
+			int n = (int) node[0];
+			if (field.type == NULL) {
+				out.add(new RUntypedNaVector(n));
+				continue;
+			}
+			ByteBuffer validity = batch.nextBuffer();
+			IntTest isNull = node[1] == 0 || validity.limit() == 0 ? i -> false : i -> (validity.get(i >>> 3) & (1 << (i & 7))) == 0;
+			ByteBuffer data = batch.nextBuffer();
+			if (field.dictionary != -1) {
+				int[] codes = readInts(data, field.indexType, n, isNull);
+				for (int i=0; i<n; i++) if (codes[i] != RIntBackedVector.NA_VALUE) codes[i]++;
+				List<String> levels = dictionaries.get(field.dictionary);
+				if (levels == null) throw new IOException("Missing arrow dictionary for: "+field.name);
+				RFactorVector factor = new RFactorVector(levels.toArray(new String[0]));
+				factor.values = codes;
+				factor.size = n;
+				out.add(factor);
+				continue;
+			}
+			switch (field.type) {
+			case INT:
+				if (primitiveType(field).equals(RInteger.class)) {
+					out.add(RIntegerVector.wrap(readInts(data, field.typeTable, n, isNull)));
+				} else {
+					int bits = field.typeTable.getInt(0, 0);
+					boolean signed = field.typeTable.getByte(1, (byte) 0) != 0;
+					double[] values = new double[n];
+					for (int i=0; i<n; i++) {
+						if (isNull.test(i)) values[i] = RNumeric.NA_VALUE;
+						else if (bits == 32) values[i] = data.getInt(i << 2) & 0xFFFFFFFFL;
+						else if (signed) values[i] = data.getLong(i << 3);
+						else values[i] = unsigned(data.getLong(i << 3));
+					}
+					out.add(RNumericVector.wrap(values));
+				}
+				break;
+			case FLOATING_POINT: {
+				boolean single = field.typeTable.getShort(0, (short) 0) == PRECISION_SINGLE;
+				double[] values = new double[n];
+				for (int i=0; i<n; i++) {
+					values[i] = isNull.test(i) ? RNumeric.NA_VALUE : single ? data.getFloat(i << 2) : data.getDouble(i << 3);
+				}
+				out.add(RNumericVector.wrap(values));
+				break;
+			}
+			case BOOL: {
+				RLogicalVector logical = new RLogicalVector(n);
+				for (int i=0; i<n; i++) {
+					logical.values[i] = isNull.test(i) ? RIntBackedVector.NA_VALUE : (data.get(i >>> 3) >>> (i & 7)) & 1;
+				}
+				logical.size = n;
+				out.add(logical);
+				break;
+			}
+			case DATE: {
+				boolean millis = field.typeTable.getShort(0, DATE_MILLISECOND) == DATE_MILLISECOND;
+				RDateVector dates = new RDateVector(n);
+				for (int i=0; i<n; i++) {
+					dates.values[i] = isNull.test(i) ? RIntBackedVector.NA_VALUE : millis ? (int) Math.floorDiv(data.getLong(i << 3), 86400000L) : data.getInt(i << 2);
+				}
+				dates.size = n;
+				out.add(dates);
+				break;
+			}
+			default: {
+				// utf8, with offsets in the first data buffer
+				boolean large = field.type == LARGE_UTF8;
+				ByteBuffer bytes = batch.nextBuffer();
+				byte[] utf8 = new byte[bytes.limit()];
+				bytes.get(utf8);
+				String[] values = new String[n];
+				for (int i=0; i<n; i++) {
+					if (isNull.test(i)) continue;
+					int from = large ? (int) data.getLong(i << 3) : data.getInt(i << 2);
+					int to = large ? (int) data.getLong((i+1) << 3) : data.getInt((i+1) << 2);
+					values[i] = new String(utf8, from, to-from, StandardCharsets.UTF_8);
+				}
+				out.add(new RCharacterVector(values));
+			}
+			}
+		}
+		return out;
+	}
+
+	private static double unsigned(long value) {
+		double out = (double) (value >>> 1) * 2.0;
+		return out + (value & 1);
+	}
+
+	// integers of up to 32 bits, with nulls as NA
+	private static int[] readInts(ByteBuffer data, Reader intType, int n, IntTest isNull) {
+		int bits = intType == null ? 32 : intType.getInt(0, 32);
+		boolean signed = intType == null || intType.getByte(1, (byte) 0) != 0;
+		int[] out = new int[n];
+		for (int i=0; i<n; i++) {
+			if (isNull.test(i)) {
+				out[i] = RIntBackedVector.NA_VALUE;
+			} else if (bits == 8) {
+				out[i] = signed ? data.get(i) : data.get(i) & 0xFF;
+			} else if (bits == 16) {
+				out[i] = signed ? data.getShort(i << 1) : data.getShort(i << 1) & 0xFFFF;
+			} else if (bits == 32) {
+				out[i] = data.getInt(i << 2);
+			} else {
+				out[i] = (int) data.getLong(i << 3);
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,565 @@
+package uk.co.terminological.rjava.types;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A columnar binary form of dataframes and vectors used by {@link RObject#writeRDS(java.io.FileOutputStream)} and
+ * {@link RObject#readRDS(Class, InputStream)}. Each vector is written as a type code and a length followed by its
+ * storage array in bulk, with character vectors written as a dictionary and codes if they are dictionary encoded.
+ * The header holds {@link RObject#datatypeVersion} and a file written by a different version cannot be read.
+ * Numbers are little endian. The columns of a dataframe file can also be read a range of rows at a time, with the
+ * fixed width columns memory mapped, see {@link RMappedDataframe}.
+ */
+final class RBinaryFormat {
+
+	private static final byte[] MAGIC = {'R','J','C','F'};
+	private static final byte DATAFRAME = 1;
+	private static final byte VECTOR = 2;
+
+	private static final byte NUMERIC = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LOGICAL = 3;
+	private static final byte DATE = 4;
+	private static final byte FACTOR = 5;
+	private static final byte CHARACTER = 6;
+	private static final byte CHARACTER_DICTIONARY = 7;
+	private static final byte UNTYPED_NA = 8;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	// n.b. buffers are cast to Buffer for flip, clear and position, which only return ByteBuffer from Java 9, and
+	// mapped buffers to ByteBuffer for duplicate
+
+	private RBinaryFormat() {}
+
+	/**
+	 * @return true if the object can be written in this format, otherwise it is written with java serialisation
+	 */
+	static boolean supports(RObject object) {
+		if (object instanceof RVector) return typeOf((RVector<?>) object) != 0;
+		// subclasses such as RBoundDataframe keep their own state so are not supported
+		if (object != null && object.getClass().equals(RDataframe.class)) {
+			for (RVector<?> column: ((RDataframe) object).values()) if (typeOf(column) == 0) return false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param in - a stream which supports mark
+	 * @return true if the stream starts with this format, the stream is reset to the start
+	 */
+	static boolean isFormat(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] start = new byte[MAGIC.length];
+		int n = 0;
+		while (n < start.length) {
+			int read = in.read(start, n, start.length-n);
+			if (read == -1) break;
+			n += read;
+		}
+		in.reset();
+		if (n < start.length) return false;
+		for (int i=0; i<MAGIC.length; i++) if (start[i] != MAGIC[i]) return false;
+		return true;
+	}
+
+	private static byte typeOf(RVector<?> vector) {
+		Class<?> type = vector.getClass();
+		if (type.equals(RNumericVector.class)) return NUMERIC;
+		if (type.equals(RIntegerVector.class)) return INTEGER;
+		if (type.equals(RLogicalVector.class)) return LOGICAL;
+		if (type.equals(RDateVector.class)) return DATE;
+		if (type.equals(RFactorVector.class)) return FACTOR;
+		if (type.equals(RCharacterVector.class)) return ((RCharacterVector) vector).isDictionaryEncoded() ? CHARACTER_DICTIONARY : CHARACTER;
+		if (type.equals(RUntypedNaVector.class)) return UNTYPED_NA;
+		return 0;
+	}
+
+	static void write(RObject object, OutputStream out) throws IOException {
+		Writer w = new Writer(Channels.newChannel(out));
+		w.bytes(MAGIC);
+		w.putLong(RObject.datatypeVersion);
+		if (object instanceof RDataframe) {
+			RDataframe df = (RDataframe) object;
+			w.put(DATAFRAME);
+			String[] groups = df.getGroups();
+			w.putInt(groups.length);
+			for (String group: groups) w.putString(group);
+			w.putInt(df.size());
+			for (Map.Entry<String, RVector<? extends RPrimitive>> column: df.entrySet()) {
+				w.putString(column.getKey());
+				writeVector(w, column.getValue());
+			}
+		} else {
+			w.put(VECTOR);
+			writeVector(w, (RVector<?>) object);
+		}
+		w.flush();
+	}
+
+	private static void writeVector(Writer w, RVector<?> vector) throws IOException {
+		byte type = typeOf(vector);
+		if (type == 0) throw new IOException("Cannot write a "+vector.getClass().getSimpleName()+" in columnar form");
+		w.put(type);
+		w.putInt(vector.size());
+		switch (type) {
+		case NUMERIC:
+			RNumericVector numeric = (RNumericVector) vector;
+			w.putDoubles(numeric.values, numeric.size);
+			break;
+		case FACTOR:
+			String[] levels = ((RFactorVector) vector).rLevels();
+			w.putInt(levels.length);
+			for (String level: levels) w.putString(level);
+			// fall through
+		case INTEGER:
+		case LOGICAL:
+		case DATE:
+			RIntBackedVector<?> ints = (RIntBackedVector<?>) vector;
+			w.putInts(ints.values, ints.size);
+			break;
+		case CHARACTER_DICTIONARY:
+			RCharacterVector dict = (RCharacterVector) vector;
+			w.putInt(dict.dictionarySize);
+			for (int i=0; i<dict.dictionarySize; i++) w.putString(dict.dictionary[i]);
+			w.putInts(dict.codes, dict.size);
+			break;
+		case CHARACTER:
+			RCharacterVector chars = (RCharacterVector) vector;
+			for (int i=0; i<chars.size; i++) w.putString(chars.values[i]);
+			break;
+		default:
+			// untyped NA vectors are just a length
+		}
+	}
+
+	// checks the header and returns the kind of object
+	private static byte readHeader(Reader r) throws IOException {
+		byte[] magic = r.bytes(MAGIC.length);
+		for (int i=0; i<MAGIC.length; i++) if (magic[i] != MAGIC[i]) throw new IOException("Not a columnar R data file");
+		long version = r.getLong();
+		if (version != RObject.datatypeVersion) throw new IOException("An incompatible serialisation format is being used: version "+version+" but expected "+RObject.datatypeVersion);
+		return r.get();
+	}
+
+	static RObject read(InputStream in) throws IOException {
+		Reader r = new Reader(Channels.newChannel(in));
+		byte kind = readHeader(r);
+		if (kind == VECTOR) return readVector(r);
+		if (kind != DATAFRAME) throw new IOException("Unknown object type: "+kind);
+		String[] groups = new String[r.getInt()];
+		for (int i=0; i<groups.length; i++) groups[i] = r.getString();
+		int ncol = r.getInt();
+		RDataframe out = new RDataframe();
+		for (int i=0; i<ncol; i++) {
+			String name = r.getString();
+			out.put(name, readVector(r));
+		}
+		out.groupBy(groups);
+		return out;
+	}
+
+	private static RVector<?> readVector(Reader r) throws IOException {
+		byte type = r.get();
+		int size = r.getInt();
+		switch (type) {
+		case NUMERIC:
+			return RNumericVector.wrap(r.getDoubles(size));
+		case INTEGER:
+			return RIntegerVector.wrap(r.getInts(size));
+		case LOGICAL:
+			return wrap(new RLogicalVector(0), r.getInts(size));
+		case DATE:
+			return wrap(new RDateVector(0), r.getInts(size));
+		case FACTOR:
+			return wrap(new RFactorVector(r.getStrings(r.getInt())), r.getInts(size));
+		case CHARACTER_DICTIONARY:
+			String[] dictionary = r.getStrings(r.getInt());
+			return dictionaryVector(dictionary, r.getInts(size));
+		case CHARACTER:
+			String[] values = new String[size];
+			for (int i=0; i<size; i++) values[i] = r.getString();
+			return new RCharacterVector(values);
+		case UNTYPED_NA:
+			return new RUntypedNaVector(size);
+		default:
+			throw new IOException("Unknown vector type: "+type);
+		}
+	}
+
+	// an int backed vector which takes ownership of an array of stored values
+	private static <V extends RIntBackedVector<?>> V wrap(V vector, int[] values) {
+		vector.values = values;
+		vector.size = values.length;
+		return vector;
+	}
+
+	// the dictionary must be exactly the length of its entries, as it may be shared by several vectors
+	private static RCharacterVector dictionaryVector(String[] dictionary, int[] codes) {
+		RCharacterVector out = new RCharacterVector(0);
+		out.values = null;
+		out.dictionary = dictionary;
+		out.dictionarySize = dictionary.length;
+		out.codes = codes;
+		out.size = codes.length;
+		return out;
+	}
+
+	// Random access to the columns of a file
+
+	// plain character columns record the position of every this many strings
+	private static final int STRING_INDEX_STEP = 1 << 10;
+	// fixed width columns are mapped in segments of at most this many bytes
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	/**
+	 * A column of a dataframe file, with where its values start. The fixed width values are memory mapped in segments 
+	 * when they are first read.
+	 */
+	static final class Column {
+		final String name;
+		final byte type;
+		final int size;
+		// the start of the stored values, or the first string of a plain character column
+		long offset;
+		// factor levels or the character dictionary
+		String[] labels;
+		// the position of every STRING_INDEX_STEP'th string of a plain character column
+		long[] stringIndex;
+		private MappedByteBuffer[] segments;
+
+		private Column(String name, byte type, int size) {
+			this.name = name;
+			this.type = type;
+			this.size = size;
+		}
+
+		Class<? extends RPrimitive> primitiveType() {
+			switch (type) {
+			case NUMERIC: return RNumeric.class;
+			case INTEGER: return RInteger.class;
+			case LOGICAL: return RLogical.class;
+			case DATE: return RDate.class;
+			case FACTOR: return RFactor.class;
+			case CHARACTER:
+			case CHARACTER_DICTIONARY: return RCharacter.class;
+			default: return RUntypedNa.class;
+			}
+		}
+
+		private int width() {
+			return type == NUMERIC ? 8 : 4;
+		}
+
+		// a little endian view of a mapped segment, which is not shared with other threads
+		private synchronized ByteBuffer segment(FileChannel file, int k) throws IOException {
+			long bytes = (long) size * width();
+			if (segments == null) segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+			if (segments[k] == null) {
+				long start = k * SEGMENT_BYTES;
+				segments[k] = file.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(SEGMENT_BYTES, bytes - start));
+			}
+			return ((ByteBuffer) segments[k]).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Find the columns of a dataframe file without reading their values, except for the dictionaries and factor 
+	 * levels. Plain character columns are scanned to index the position of their strings.
+	 * @param file - a file written by {@link #write(RObject, OutputStream)}
+	 * @param groups - filled with the grouping columns
+	 * @return the columns in order
+	 */
+	static List<Column> index(FileChannel file, List<String> groups) throws IOException {
+		PositionalChannel channel = new PositionalChannel(file, 0);
+		Reader r = new Reader(channel);
+		if (readHeader(r) != DATAFRAME) throw new IOException("The file does not contain a dataframe");
+		groups.addAll(Arrays.asList(r.getStrings(r.getInt())));
+		int ncol = r.getInt();
+		List<Column> out = new ArrayList<>();
+		for (int i=0; i<ncol; i++) {
+			Column c = new Column(r.getString(), r.get(), r.getInt());
+			if (c.type == FACTOR || c.type == CHARACTER_DICTIONARY) c.labels = r.getStrings(r.getInt());
+			c.offset = r.position();
+			switch (c.type) {
+			case NUMERIC: case INTEGER: case LOGICAL: case DATE: case FACTOR: case CHARACTER_DICTIONARY:
+				r.skip((long) c.size * c.width());
+				break;
+			case CHARACTER:
+				c.stringIndex = new long[(c.size + STRING_INDEX_STEP - 1) / STRING_INDEX_STEP];
+				for (int j=0; j<c.size; j++) {
+					if (j % STRING_INDEX_STEP == 0) c.stringIndex[j / STRING_INDEX_STEP] = r.position();
+					int length = r.getInt();
+					if (length > 0) r.skip(length);
+				}
+				break;
+			case UNTYPED_NA:
+				break;
+			default:
+				throw new IOException("Unknown vector type: "+c.type);
+			}
+			out.add(c);
+		}
+		return out;
+	}
+
+	/**
+	 * Read a range of rows of a column of a file
+	 * @param file - the file the column was indexed from
+	 * @param c - the column
+	 * @param start - the first row, zero based
+	 * @param end - the row after the last
+	 * @return a new vector of the rows
+	 */
+	static RVector<?> readRange(FileChannel file, Column c, int start, int end) throws IOException {
+		switch (c.type) {
+		case NUMERIC:
+			double[] doubles = new double[end-start];
+			long from = (long) start << 3;
+			for (int done = 0; done < doubles.length;) {
+				ByteBuffer segment = c.segment(file, (int) (from / SEGMENT_BYTES));
+				((Buffer) segment).position((int) (from % SEGMENT_BYTES));
+				int n = Math.min(doubles.length - done, segment.remaining() >> 3);
+				segment.asDoubleBuffer().get(doubles, done, n);
+				done += n;
+				from += (long) n << 3;
+			}
+			return RNumericVector.wrap(doubles);
+		case INTEGER:
+			return RIntegerVector.wrap(readInts(file, c, start, end));
+		case LOGICAL:
+			return wrap(new RLogicalVector(0), readInts(file, c, start, end));
+		case DATE:
+			return wrap(new RDateVector(0), readInts(file, c, start, end));
+		case FACTOR:
+			return wrap(new RFactorVector(c.labels), readInts(file, c, start, end));
+		case CHARACTER_DICTIONARY:
+			return dictionaryVector(c.labels, readInts(file, c, start, end));
+		case CHARACTER:
+			if (start == end) return new RCharacterVector(0);
+			Reader r = new Reader(new PositionalChannel(file, c.stringIndex[start / STRING_INDEX_STEP]));
+			for (int j = start - start % STRING_INDEX_STEP; j < start; j++) {
+				int length = r.getInt();
+				if (length > 0) r.skip(length);
+			}
+			String[] strings = new String[end-start];
+			for (int j=0; j<strings.length; j++) strings[j] = r.getString();
+			return new RCharacterVector(strings);
+		default:
+			return new RUntypedNaVector(end-start);
+		}
+	}
+
+	private static int[] readInts(FileChannel file, Column c, int start, int end) throws IOException {
+		int[] ints = new int[end-start];
+		long from = (long) start << 2;
+		for (int done = 0; done < ints.length;) {
+			ByteBuffer segment = c.segment(file, (int) (from / SEGMENT_BYTES));
+			((Buffer) segment).position((int) (from % SEGMENT_BYTES));
+			int n = Math.min(ints.length - done, segment.remaining() >> 2);
+			segment.asIntBuffer().get(ints, done, n);
+			done += n;
+			from += (long) n << 2;
+		}
+		return ints;
+	}
+
+	// Reads a file from a position without moving the file channel, so several can read the same file at once
+	private static final class PositionalChannel implements ReadableByteChannel {
+		final FileChannel file;
+		long position;
+
+		PositionalChannel(FileChannel file, long position) {
+			this.file = file;
+			this.position = position;
+		}
+
+		@Override public int read(ByteBuffer dst) throws IOException {
+			int n = file.read(dst, position);
+			if (n > 0) position += n;
+			return n;
+		}
+
+		@Override public boolean isOpen() {return file.isOpen();}
+		@Override public void close() {}
+	}
+
+	// Writes through a buffer which is flushed to the channel when full. Arrays are copied into the buffer in bulk.
+	private static final class Writer {
+		final WritableByteChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) flush();
+		}
+
+		void flush() throws IOException {
+			((Buffer) buffer).flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			((Buffer) buffer).clear();
+		}
+
+		void put(byte b) throws IOException {ensure(1); buffer.put(b);}
+		void putInt(int i) throws IOException {ensure(4); buffer.putInt(i);}
+		void putLong(long l) throws IOException {ensure(8); buffer.putLong(l);}
+
+		void bytes(byte[] bytes) throws IOException {
+			int off = 0;
+			while (off < bytes.length) {
+				if (!buffer.hasRemaining()) flush();
+				int n = Math.min(buffer.remaining(), bytes.length - off);
+				buffer.put(bytes, off, n);
+				off += n;
+			}
+		}
+
+		// strings are a byte length, or -1 for NA, followed by UTF-8 bytes
+		void putString(String s) throws IOException {
+			if (s == null) {
+				putInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			bytes(bytes);
+		}
+
+		void putDoubles(double[] values, int length) throws IOException {
+			int off = 0;
+			while (off < length) {
+				if (buffer.remaining() < 8) flush();
+				int n = Math.min(buffer.remaining() >> 3, length - off);
+				buffer.asDoubleBuffer().put(values, off, n);
+				((Buffer) buffer).position(buffer.position() + (n << 3));
+				off += n;
+			}
+		}
+
+		void putInts(int[] values, int length) throws IOException {
+			int off = 0;
+			while (off < length) {
+				if (buffer.remaining() < 4) flush();
+				int n = Math.min(buffer.remaining() >> 2, length - off);
+				buffer.asIntBuffer().put(values, off, n);
+				((Buffer) buffer).position(buffer.position() + (n << 2));
+				off += n;
+			}
+		}
+	}
+
+	// Reads through a buffer which is refilled from the channel when it has too few bytes left
+	private static final class Reader {
+		final ReadableByteChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		Reader(ReadableByteChannel channel) {
+			this.channel = channel;
+			((Buffer) buffer).flip();
+		}
+
+		// ensure at least a number of bytes are in the buffer, which must be no more than its capacity
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) return;
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) == -1) throw new EOFException("Unexpected end of columnar R data");
+			}
+			((Buffer) buffer).flip();
+		}
+
+		byte get() throws IOException {ensure(1); return buffer.get();}
+		int getInt() throws IOException {ensure(4); return buffer.getInt();}
+		long getLong() throws IOException {ensure(8); return buffer.getLong();}
+
+		byte[] bytes(int length) throws IOException {
+			byte[] out = new byte[length];
+			int off = 0;
+			while (off < length) {
+				ensure(1);
+				int n = Math.min(buffer.remaining(), length - off);
+				buffer.get(out, off, n);
+				off += n;
+			}
+			return out;
+		}
+
+		String getString() throws IOException {
+			int length = getInt();
+			if (length == -1) return null;
+			return new String(bytes(length), StandardCharsets.UTF_8);
+		}
+
+		String[] getStrings(int length) throws IOException {
+			String[] out = new String[length];
+			for (int i=0; i<length; i++) out[i] = getString();
+			return out;
+		}
+
+		// the position in the file of the next byte, for readers of a PositionalChannel
+		long position() {
+			return ((PositionalChannel) channel).position - buffer.remaining();
+		}
+
+		void skip(long bytes) throws IOException {
+			if (bytes <= buffer.remaining()) {
+				((Buffer) buffer).position(buffer.position() + (int) bytes);
+			} else if (channel instanceof PositionalChannel) {
+				((PositionalChannel) channel).position += bytes - buffer.remaining();
+				((Buffer) buffer).position(buffer.limit());
+			} else {
+				for (long rest = bytes; rest > 0;) {
+					ensure(1);
+					int n = (int) Math.min(rest, buffer.remaining());
+					((Buffer) buffer).position(buffer.position() + n);
+					rest -= n;
+				}
+			}
+		}
+
+		double[] getDoubles(int length) throws IOException {
+			double[] out = new double[length];
+			int off = 0;
+			while (off < length) {
+				ensure(8);
+				int n = Math.min(buffer.remaining() >> 3, length - off);
+				buffer.asDoubleBuffer().get(out, off, n);
+				((Buffer) buffer).position(buffer.position() + (n << 3));
+				off += n;
+			}
+			return out;
+		}
+
+		int[] getInts(int length) throws IOException {
+			int[] out = new int[length];
+			int off = 0;
+			while (off < length) {
+				ensure(4);
+				int n = Math.min(buffer.remaining() >> 2, length - off);
+				buffer.asIntBuffer().get(out, off, n);
+				((Buffer) buffer).position(buffer.position() + (n << 2));
+				off += n;
+			}
+			return out;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package uk.co.terminological.rjava.types;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import uk.co.terminological.rjava.RName;
+
+/**
+ * The methods of an interface used by {@link RBoundDataframe} to present the rows of a dataframe, resolved once per
+ * interface. Each row is an instance of a proxy class for the interface whose handler holds the columns and a row
+ * number. Getters read the value straight from the column and default methods are called through method handles
+ * which are looked up when the interface is first bound, so no reflection is needed per row or per call.
+ * @author terminological
+ *
+ * @param <X> the interface type
+ */
+final class RBoundInterface<X> {
+
+	private static final ClassValue<RBoundInterface<?>> CACHE = new ClassValue<RBoundInterface<?>>() {
+		@Override
+		protected RBoundInterface<?> computeValue(Class<?> type) {
+			return new RBoundInterface<>(type);
+		}
+	};
+
+	/**
+	 * @param type - an interface with getter methods returning RPrimitive types
+	 * @return the resolved methods of the interface, which are shared by all dataframes bound to it
+	 */
+	@SuppressWarnings("unchecked")
+	static <Y> RBoundInterface<Y> of(Class<Y> type) {
+		if(!type.isInterface()) throw new UnsupportedOperationException("type must be an interface: "+type.getCanonicalName());
+		return (RBoundInterface<Y>) CACHE.get(type);
+	}
+
+	private final Class<X> type;
+	// the getters of the interface and the columns they read from
+	private final Method[] getters;
+	private final String[] columnNames;
+	private final RPrimitive[] naValues;
+	private final Constructor<?> proxyConstructor;
+	// keyed by the method instances the proxy class passes to its handler
+	private final IdentityHashMap<Method, Dispatch> dispatch = new IdentityHashMap<>();
+
+	@SuppressWarnings({ "unchecked", "deprecation" })
+	private RBoundInterface(Class<X> type) {
+		this.type = type;
+		List<Method> getters = new ArrayList<>();
+		List<Method> defaults = new ArrayList<>();
+		for (Method m : type.getMethods()) {
+			if (m.isDefault()) {
+				defaults.add(m);
+			} else if (RPrimitive.class.isAssignableFrom(m.getReturnType()) && m.getParameterCount() == 0) {
+				getters.add(m);
+			}
+		}
+		this.getters = getters.toArray(new Method[0]);
+		this.columnNames = new String[this.getters.length];
+		this.naValues = new RPrimitive[this.getters.length];
+		for (int k=0; k<this.getters.length; k++) {
+			Method m = this.getters[k];
+			columnNames[k] = m.isAnnotationPresent(RName.class) ? m.getAnnotation(RName.class).value() : m.getName();
+			naValues[k] = RPrimitive.na((Class<? extends RPrimitive>) m.getReturnType());
+		}
+		try {
+			this.proxyConstructor = Proxy.getProxyClass(type.getClassLoader(), type).getConstructor(InvocationHandler.class);
+			// the proxy class of a non public interface is not public
+			this.proxyConstructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Proxy class has no handler constructor", e);
+		}
+		for (int k=0; k<this.getters.length; k++) {
+			int index = k;
+			dispatch.put(proxied(this.getters[k]), (handler, proxy, args) -> handler.value(index));
+		}
+		for (Method m: defaults) {
+			dispatch.put(proxied(m), defaultMethod(m));
+		}
+		try {
+			dispatch.put(proxied(Object.class.getMethod("toString")), (handler, proxy, args) -> "proxy class of "+type.getCanonicalName());
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the names of the columns read by the getters of the interface
+	 */
+	String[] columnNames() {
+		return columnNames.clone();
+	}
+
+	/**
+	 * @return the return types of the getters, in the same order as {@link #columnNames()}
+	 */
+	Class<?>[] columnTypes() {
+		Class<?>[] out = new Class<?>[getters.length];
+		for (int k=0; k<getters.length; k++) out[k] = getters[k].getReturnType();
+		return out;
+	}
+
+	/**
+	 * @return the column read by each getter, or null where the dataframe does not have the column
+	 */
+	RVector<?>[] columns(RDataframe dataframe) {
+		RVector<?>[] out = new RVector<?>[getters.length];
+		for (int k=0; k<getters.length; k++) {
+			if (dataframe.containsKey(columnNames[k])) out[k] = dataframe.get(columnNames[k]);
+		}
+		return out;
+	}
+
+	/**
+	 * @param columns - as given by {@link #columns(RDataframe)}
+	 * @param row - a zero based row number
+	 * @return an instance of the interface reading from the given row of the columns
+	 */
+	X proxy(RVector<?>[] columns, int row) {
+		return newProxy(new Handler(this, columns, row, null));
+	}
+
+	/**
+	 * @return an instance of the interface reading from the values of a row
+	 */
+	X proxy(RDataframeRow row) {
+		return newProxy(new Handler(this, null, 0, row));
+	}
+
+	/**
+	 * Present each row of the columns to an action as a single instance of the interface, which is moved to each
+	 * row in turn and must not be kept by the action.
+	 */
+	void forEach(RVector<?>[] columns, int nrow, Consumer<? super X> action) {
+		Handler handler = new Handler(this, columns, 0, null);
+		X proxy = newProxy(handler);
+		for (int i=0; i<nrow; i++) {
+			handler.row = i;
+			action.accept(proxy);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private X newProxy(InvocationHandler handler) {
+		try {
+			return (X) proxyConstructor.newInstance(handler);
+		} catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not create proxy for "+type.getCanonicalName(), e);
+		}
+	}
+
+	// Find the method instance the proxy class passes to its handler for a method, by calling it on a probe instance
+	private Method proxied(Method method) {
+		Method[] seen = new Method[1];
+		Object probe = newProxy((proxy, m, args) -> {
+			seen[0] = m;
+			return defaultValue(m.getReturnType());
+		});
+		try {
+			Object[] args = new Object[method.getParameterCount()];
+			Class<?>[] params = method.getParameterTypes();
+			for (int i=0; i<args.length; i++) args[i] = defaultValue(params[i]);
+			method.setAccessible(true);
+			method.invoke(probe, args);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not resolve proxy method "+method.getName(), e);
+		}
+		return seen[0];
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type.equals(void.class)) return null;
+		return Array.get(Array.newInstance(type, 1), 0);
+	}
+
+	// A call of a default method of the interface with the proxy as the receiver
+	private Dispatch defaultMethod(Method m) {
+		MethodHandle spread;
+		try {
+			spread = specialHandle(m)
+					.asSpreader(Object[].class, m.getParameterCount())
+					.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return (handler, proxy, args) -> {throw new UnsupportedOperationException("Cannot call default method "+m.getName(), e);};
+		}
+		Object[] none = new Object[0];
+		return (handler, proxy, args) -> {
+			Object[] actual = args == null ? none : args;
+			return (Object) spread.invokeExact(proxy, actual);
+		};
+	}
+
+	// https://blog.jooq.org/2018/03/28/correct-reflective-access-to-interface-default-methods-in-java-8-9-10/
+	private static MethodHandle specialHandle(Method m) throws ReflectiveOperationException {
+		Class<?> declaring = m.getDeclaringClass();
+		try {
+			//Java 9 onwards
+			Method privateLookupIn = MethodHandles.class.getMethod("privateLookupIn", Class.class, Lookup.class);
+			Lookup lookup = (Lookup) privateLookupIn.invoke(null, declaring, MethodHandles.lookup());
+			return lookup.unreflectSpecial(m, declaring);
+		} catch (NoSuchMethodException e) {
+			//Java 8
+			Constructor<Lookup> constructor = Lookup.class.getDeclaredConstructor(Class.class);
+			constructor.setAccessible(true);
+			return constructor.newInstance(declaring).in(declaring).unreflectSpecial(m, declaring);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Dispatch {
+		Object invoke(Handler handler, Object proxy, Object[] args) throws Throwable;
+	}
+
+	// The state of a single instance of the interface: either a row of the bound columns, or a row object
+	private static final class Handler implements InvocationHandler {
+
+		final RBoundInterface<?> bound;
+		final RVector<?>[] columns;
+		int row;
+		final RDataframeRow source;
+
+		Handler(RBoundInterface<?> bound, RVector<?>[] columns, int row, RDataframeRow source) {
+			this.bound = bound;
+			this.columns = columns;
+			this.row = row;
+			this.source = source;
+		}
+
+		RPrimitive value(int k) {
+			RPrimitive out = source != null ? source.get(bound.columnNames[k]) : (columns[k] == null ? null : columns[k].get(row));
+			return out == null ? bound.naValues[k] : out;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Dispatch d = bound.dispatch.get(method);
+			// don't support any other methods (n.b. hashcode and equals)
+			if (d == null) throw new UnsupportedOperationException();
+			return d.invoke(this, proxy, args);
+		}
+	}
+}
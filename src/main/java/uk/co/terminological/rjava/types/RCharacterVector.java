@@ -1,8 +1,12 @@
 package uk.co.terminological.rjava.types;
 
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.RDataType;
@@ -31,15 +35,286 @@ public class RCharacterVector extends RVector<RCharacter> implements JNIPrimitiv
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
+	// vectors shorter than this are never dictionary encoded
+	static final int DICTIONARY_MIN_LENGTH = 64;
+	// dictionary encoding is used if there are fewer distinct values than length / this ratio
+	static final int DICTIONARY_CARDINALITY_RATIO = 4;
+	static final int NA_CODE = -1;
+	
+	// Plain storage: one string per element, with null as NA
+	String[] values;
+	// Dictionary storage: codes are indexes into the dictionary, with NA_CODE as NA
+	int[] codes;
+	String[] dictionary;
+	int dictionarySize;
+	// set when the dictionary array may be shared with a subset, so that it is copied before an entry is added
+	private transient boolean dictionaryShared;
+	private transient HashMap<String,Integer> lookup;
+	int size;
+	
+	/**
+	 * Create a character vector from an array of strings. If the vector is long and has a small number of distinct values
+	 * it will be stored in a dictionary encoded form. 
+	 * @param primitives - the strings with NA as null
+	 */
 	public RCharacterVector(String[] primitives) {
-		super(primitives.length);
-		for (int i=0; i<primitives.length; i++) this.add(new RCharacter(primitives[i]));
+		this.size = primitives.length;
+		if (!this.dictionaryEncode(primitives)) {
+			this.values = Arrays.copyOf(primitives, primitives.length);
+		}
+	}
+	public RCharacterVector() {this(10);}
+	public RCharacterVector(int length) {
+		this.values = new String[length];
+		this.size = 0;
+	}
+	// a vector which takes ownership of an array of strings without copying it, unless it is dictionary encoded
+	static RCharacterVector wrap(String[] primitives) {
+		RCharacterVector out = new RCharacterVector(0);
+		out.size = primitives.length;
+		if (out.dictionaryEncode(primitives)) out.values = null;
+		else out.values = primitives;
+		return out;
+	}
+	
+	private boolean dictionaryEncode(String[] primitives) {
+		if (primitives.length < DICTIONARY_MIN_LENGTH) return false;
+		int maxCardinality = primitives.length / DICTIONARY_CARDINALITY_RATIO;
+		HashMap<String,Integer> tmpLookup = new HashMap<>();
+		int[] tmpCodes = new int[primitives.length];
+		for (int i=0; i<primitives.length; i++) {
+			if (primitives[i] == null) {
+				tmpCodes[i] = NA_CODE;
+			} else {
+				Integer code = tmpLookup.get(primitives[i]);
+				if (code == null) {
+					if (tmpLookup.size() >= maxCardinality) return false;
+					code = tmpLookup.size();
+					tmpLookup.put(primitives[i], code);
+				}
+				tmpCodes[i] = code;
+			}
+		}
+		this.codes = tmpCodes;
+		this.dictionary = new String[tmpLookup.size()];
+		tmpLookup.forEach((k,v) -> this.dictionary[v] = k);
+		this.dictionarySize = this.dictionary.length;
+		this.lookup = tmpLookup;
+		return true;
+	}
+	
+	/**
+	 * @return true if this vector is stored as a set of integer codes into a dictionary of distinct values.
+	 */
+	public boolean isDictionaryEncoded() {
+		return codes != null;
+	}
+	
+	private HashMap<String,Integer> lookup() {
+		if (lookup == null) {
+			lookup = new HashMap<>();
+			for (int i=0; i<dictionarySize; i++) lookup.put(dictionary[i], i);
+		}
+		return lookup;
+	}
+	
+	private int encode(String value) {
+		if (value == null) return NA_CODE;
+		Integer code = lookup().get(value);
+		if (code == null) {
+			if (dictionarySize == dictionary.length || dictionaryShared) {
+				dictionary = Arrays.copyOf(dictionary, dictionarySize*2+1);
+				dictionaryShared = false;
+			}
+			code = dictionarySize;
+			dictionary[dictionarySize++] = value;
+			lookup.put(value, code);
+		}
+		return code;
 	}
-	public RCharacterVector() {super();}
-	public RCharacterVector(int length) {super(length);}
 	
+	private static String primitive(RCharacter element) {
+		return element == null ? RCharacter.NA_VALUE : element.rPrimitive();
+	}
+	
+	/**
+	 * The values of the vector as passed to R. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the values with NA as null
+	 */
 	public String[] rPrimitive() {
-		return this.stream().map(ri -> ri.rPrimitive()).collect(Collectors.toList()).toArray(new String[] {});
+		return cachedPrimitive(String[].class, () -> {
+			if (!isDictionaryEncoded()) return Arrays.copyOf(values, size);
+			String[] out = new String[size];
+			for (int i=0; i<size; i++) out[i] = codes[i] == NA_CODE ? null : dictionary[codes[i]];
+			return out;
+		});
+	}
+	
+	/**
+	 * Get the value at a given position in the form it is passed to R, without creating an {@link RCharacter}.
+	 * @param index - the zero based index
+	 * @return a string or null for NA
+	 */
+	public String rPrimitive(int index) {
+		rangeCheck(index);
+		if (!isDictionaryEncoded()) return values[index];
+		return codes[index] == NA_CODE ? null : dictionary[codes[index]];
+	}
+	
+	@Override
+	public boolean isNa(int index) {
+		return rPrimitive(index) == null;
+	}
+	
+	/**
+	 * Creates a new vector from the elements at the given positions. Dictionary encoded vectors produce a 
+	 * dictionary encoded subset which shares the same dictionary until either vector adds an entry to it.
+	 */
+	@Override
+	public RCharacterVector subset(int[] rows) {
+		RCharacterVector out = new RCharacterVector(0);
+		if (isDictionaryEncoded()) {
+			out.values = null;
+			out.codes = new int[rows.length];
+			for (int i=0; i<rows.length; i++) {
+				if (rows[i] < 0) {
+					out.codes[i] = NA_CODE;
+				} else {
+					rangeCheck(rows[i]);
+					out.codes[i] = codes[rows[i]];
+				}
+			}
+			out.dictionary = dictionary;
+			out.dictionarySize = dictionarySize;
+			out.dictionaryShared = true;
+			this.dictionaryShared = true;
+		} else {
+			out.values = new String[rows.length];
+			for (int i=0; i<rows.length; i++) out.values[i] = rows[i] < 0 ? null : rPrimitive(rows[i]);
+		}
+		out.size = rows.length;
+		return out;
+	}
+	
+	@Override
+	public RCharacter get(int index) {
+		return new RCharacter(rPrimitive(index));
+	}
+	
+	@Override
+	public RCharacter set(int index, RCharacter element) {
+		beforeModification();
+		RCharacter out = get(index);
+		if (isDictionaryEncoded()) codes[index] = encode(primitive(element));
+		else values[index] = primitive(element);
+		invalidateCache();
+		return out;
+	}
+	
+	@Override
+	public void add(int index, RCharacter element) {
+		if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		if (index < size) beforeModification();
+		ensureCapacity(size+1);
+		if (isDictionaryEncoded()) {
+			System.arraycopy(codes, index, codes, index+1, size-index);
+			codes[index] = encode(primitive(element));
+		} else {
+			System.arraycopy(values, index, values, index+1, size-index);
+			values[index] = primitive(element);
+		}
+		size++;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public RCharacter remove(int index) {
+		RCharacter out = get(index);
+		removeRange(index, index+1);
+		return out;
+	}
+	
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		beforeModification();
+		if (isDictionaryEncoded()) {
+			System.arraycopy(codes, toIndex, codes, fromIndex, size-toIndex);
+		} else {
+			System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+			Arrays.fill(values, size-(toIndex-fromIndex), size, null);
+		}
+		size -= toIndex-fromIndex;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends RCharacter> c) {
+		if (!(c instanceof RCharacterVector) || isDictionaryEncoded()) return super.addAll(c);
+		RCharacterVector other = (RCharacterVector) c;
+		int length = other.size;
+		ensureCapacity(size+length);
+		if (other.isDictionaryEncoded()) {
+			for (int i=0; i<length; i++) values[size+i] = other.rPrimitive(i);
+		} else {
+			System.arraycopy(other.values, 0, values, size, length);
+		}
+		size += length;
+		modCount++;
+		invalidateCache();
+		return length > 0;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	private void ensureCapacity(int minCapacity) {
+		int capacity = isDictionaryEncoded() ? codes.length : values.length;
+		if (minCapacity > capacity) {
+			int newCapacity = Math.max(minCapacity, capacity + (capacity >> 1) + 1);
+			if (isDictionaryEncoded()) codes = Arrays.copyOf(codes, newCapacity);
+			else values = Arrays.copyOf(values, newCapacity);
+		}
+	}
+	
+	@Override
+	public RCharacterVector fill(RCharacter x, int length) {
+		ensureCapacity(size+length);
+		if (isDictionaryEncoded()) Arrays.fill(codes, size, size+length, encode(primitive(x)));
+		else Arrays.fill(values, size, size+length, primitive(x));
+		size += length;
+		modCount++;
+		invalidateCache();
+		return this;
+	}
+	
+	/**
+	 * Tests each element for equality with a value. For dictionary encoded vectors this is a comparison of 
+	 * integer codes.
+	 */
+	@Override
+	public BitSet matches(RPrimitive value) {
+		if (!(value instanceof RCharacter)) return super.matches(value);
+		String match = ((RCharacter) value).rPrimitive();
+		BitSet out = new BitSet(size);
+		if (isDictionaryEncoded()) {
+			int code;
+			if (match == null) {
+				code = NA_CODE;
+			} else {
+				Integer tmp = lookup().get(match);
+				if (tmp == null) return out;
+				code = tmp;
+			}
+			for (int i=0; i<size; i++) if (codes[i] == code) out.set(i);
+		} else {
+			for (int i=0; i<size; i++) if (Objects.equals(values[i], match)) out.set(i);
+		}
+		return out;
 	}
 	
 	@Override
@@ -56,12 +331,12 @@ public class RCharacterVector extends RVector<RCharacter> implements JNIPrimitiv
 	
 	@SuppressWarnings("unchecked")
 	public Stream<String> get() {
-		return this.stream().map(s -> s.get());
+		return IntStream.range(0, size).mapToObj(this::rPrimitive);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<String>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> Optional.ofNullable(rPrimitive(i)));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -79,4 +354,4 @@ public class RCharacterVector extends RVector<RCharacter> implements JNIPrimitiv
 	
 	public void fillNA(int length) {this.fill(RCharacter.NA, length);}
 	
-}
\ No newline at end of file
+}
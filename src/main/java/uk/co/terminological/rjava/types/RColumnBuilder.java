@@ -0,0 +1,435 @@
+package uk.co.terminological.rjava.types;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+import uk.co.terminological.rjava.IncompatibleTypeException;
+import uk.co.terminological.rjava.RConverter;
+import uk.co.terminological.rjava.UnconvertableTypeException;
+
+/**
+ * Accumulates a column of a dataframe from a value of each of a stream of objects. The type of the column is decided
+ * when the builder is created, so values are written straight into a primitive array without creating an
+ * {@link RPrimitive} for each one, except for builders of values whose type is only known at runtime.
+ * Builders are not thread safe; parallel collection uses a builder per thread and appends them.
+ * @author terminological
+ *
+ * @param <X> the type of the objects the column is built from
+ */
+public abstract class RColumnBuilder<X> {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NA_INT = RInteger.NA_VALUE;
+	private static final double NA_DOUBLE = RNumeric.NA_VALUE;
+
+	private final String label;
+
+	RColumnBuilder(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * @return the name of the column
+	 */
+	public String label() {
+		return label;
+	}
+
+	/**
+	 * Add the value of an object to the end of the column
+	 */
+	public abstract void accept(X item);
+
+	/**
+	 * @return the number of values added
+	 */
+	public abstract int size();
+
+	/**
+	 * Add all the values of another builder of the same column to the end of this one
+	 * @param other - a builder created by {@link #newBuilder()} of this builder or the same prototype
+	 */
+	public abstract void append(RColumnBuilder<X> other);
+
+	/**
+	 * @return a new empty builder of the same column
+	 */
+	public abstract RColumnBuilder<X> newBuilder();
+
+	/**
+	 * @return a vector of the values added so far
+	 */
+	public abstract RVector<?> build();
+
+	/**
+	 * A builder of a column from the result of a getter method of the objects. The column type is chosen from the
+	 * return type of the method, and the method is called through a lambda created by the LambdaMetafactory, or a
+	 * method handle if the declaring class is not accessible, rather than by reflection. Return types
+	 * which have no R equivalent are converted as by {@link #ofObjects(String, Function)}.
+	 * @param label - the name of the column
+	 * @param getter - a public method of X with no parameters
+	 * @return a builder of the column
+	 */
+	@SuppressWarnings("unchecked")
+	public static <X> RColumnBuilder<X> ofGetter(String label, Method getter) {
+		if (getter.getParameterCount() != 0) throw new IncompatibleTypeException("Method "+getter.getName()+" is not a getter");
+		Class<?> type = getter.getReturnType();
+		if (type.equals(int.class) || type.equals(short.class) || type.equals(byte.class)) {
+			return new IntColumn<X>(label, bind(getter, ToIntFunction.class, "applyAsInt", int.class), RIntegerVector::wrap);
+		}
+		if (type.equals(double.class) || type.equals(float.class) || type.equals(long.class)) {
+			return new DoubleColumn<X>(label, bind(getter, ToDoubleFunction.class, "applyAsDouble", double.class));
+		}
+		if (type.equals(boolean.class)) {
+			Predicate<X> test = bind(getter, Predicate.class, "test", boolean.class);
+			return new IntColumn<X>(label, o -> test.test(o) ? 1 : 0, RLogicalVector::new);
+		}
+		Function<X,Object> get = bind(getter, Function.class, "apply", Object.class);
+		return ofType(label, type, get);
+	}
+
+	// A builder for values of a given reference type, which may be null
+	private static <X> RColumnBuilder<X> ofType(String label, Class<?> type, Function<? super X, Object> get) {
+		if (type.equals(Integer.class)) {
+			return new IntColumn<X>(label, o -> {
+				Integer v = (Integer) get.apply(o);
+				return v == null ? NA_INT : v;
+			}, RIntegerVector::wrap);
+		}
+		if (type.equals(Double.class) || type.equals(Float.class) || type.equals(Long.class) || type.equals(BigDecimal.class)) {
+			return new DoubleColumn<X>(label, o -> {
+				Number v = (Number) get.apply(o);
+				return v == null ? NA_DOUBLE : v.doubleValue();
+			});
+		}
+		if (type.equals(Boolean.class)) {
+			return new IntColumn<X>(label, o -> {
+				Boolean v = (Boolean) get.apply(o);
+				return v == null ? NA_INT : (v ? 1 : 0);
+			}, RLogicalVector::new);
+		}
+		if (type.equals(LocalDate.class)) {
+			return new IntColumn<X>(label, o -> {
+				LocalDate v = (LocalDate) get.apply(o);
+				return v == null ? NA_INT : (int) v.toEpochDay();
+			}, RDateVector::new);
+		}
+		if (type.isEnum()) {
+			String[] levels = Arrays.stream(type.getEnumConstants()).map(Object::toString).toArray(String[]::new);
+			return new IntColumn<X>(label, o -> {
+				Enum<?> v = (Enum<?>) get.apply(o);
+				// R factor codes are 1 based
+				return v == null ? NA_INT : v.ordinal()+1;
+			}, codes -> new RFactorVector(codes, levels));
+		}
+		if (type.equals(String.class)) {
+			return new StringColumn<X>(label, o -> (String) get.apply(o));
+		}
+		return new PrimitiveColumn<X>(label, get);
+	}
+
+	/**
+	 * A builder of an integer column. Integer.MIN_VALUE is NA.
+	 * @param label - the name of the column
+	 * @param getter - a function giving the value of the column for an object
+	 * @return a builder of the column
+	 */
+	public static <X> RColumnBuilder<X> ofInts(String label, ToIntFunction<? super X> getter) {
+		return new IntColumn<X>(label, getter, RIntegerVector::wrap);
+	}
+
+	/**
+	 * A builder of a numeric column.
+	 * @param label - the name of the column
+	 * @param getter - a function giving the value of the column for an object
+	 * @return a builder of the column
+	 */
+	public static <X> RColumnBuilder<X> ofDoubles(String label, ToDoubleFunction<? super X> getter) {
+		return new DoubleColumn<X>(label, getter);
+	}
+
+	/**
+	 * A builder of a column from any value of the objects, for use when the type of the value is not known in
+	 * advance. The type of the column is that of the first value which is not null, and while the values are all of 
+	 * that type they are written into a primitive array as by {@link #ofGetter(String, Method)}. Values are otherwise
+	 * converted by {@link RConverter#convertObjectToPrimitive(Object)}, or to a string if that is not possible.
+	 * @param label - the name of the column
+	 * @param getter - a function giving the value of the column for an object
+	 * @return a builder of the column
+	 */
+	public static <X> RColumnBuilder<X> ofObjects(String label, Function<? super X, ?> getter) {
+		return new AdaptiveColumn<X>(label, getter);
+	}
+
+	// Bind a getter to a functional interface, with the lambda metafactory where the getter is accessible
+	@SuppressWarnings("unchecked")
+	private static <F> F bind(Method getter, Class<? super F> iface, String name, Class<?> returnType) {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		Class<?> declaring = getter.getDeclaringClass();
+		try {
+			MethodHandle handle = lookup.unreflect(getter);
+			// the return type is adapted to the functional interface, by widening (e.g. float to double) or boxing
+			Class<?> instantiatedReturn = returnType.isPrimitive() ? returnType : MethodType.methodType(getter.getReturnType()).wrap().returnType();
+			CallSite site = LambdaMetafactory.metafactory(
+					lookup, name,
+					MethodType.methodType(iface),
+					MethodType.methodType(returnType, Object.class),
+					handle,
+					MethodType.methodType(instantiatedReturn, declaring));
+			return (F) site.getTarget().invoke();
+		} catch (Throwable e) {
+			// the declaring class is not accessible to the lambda, so call the getter through a method handle
+			return (F) handleBinding(getter, iface, returnType);
+		}
+	}
+
+	private static Object handleBinding(Method getter, Class<?> iface, Class<?> returnType) {
+		MethodHandle handle;
+		try {
+			getter.setAccessible(true);
+			handle = MethodHandles.lookup().unreflect(getter).asType(MethodType.methodType(returnType, Object.class));
+		} catch (IllegalAccessException | RuntimeException e) {
+			throw new UnsupportedOperationException("Cannot call method "+getter.getName(), e);
+		}
+		if (iface.equals(ToIntFunction.class)) return (ToIntFunction<Object>) o -> {
+			try {return (int) handle.invokeExact(o);} catch (Throwable t) {throw rethrow(t);}
+		};
+		if (iface.equals(ToDoubleFunction.class)) return (ToDoubleFunction<Object>) o -> {
+			try {return (double) handle.invokeExact(o);} catch (Throwable t) {throw rethrow(t);}
+		};
+		if (iface.equals(Predicate.class)) return (Predicate<Object>) o -> {
+			try {return (boolean) handle.invokeExact(o);} catch (Throwable t) {throw rethrow(t);}
+		};
+		return (Function<Object,Object>) o -> {
+			try {return (Object) handle.invokeExact(o);} catch (Throwable t) {throw rethrow(t);}
+		};
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) return (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		return new RuntimeException(t);
+	}
+
+	// Columns stored as R integers: integers, logicals, dates and factors
+	private static class IntColumn<X> extends RColumnBuilder<X> {
+		private final ToIntFunction<? super X> getter;
+		private final Function<int[], RVector<?>> finish;
+		private int[] values = new int[INITIAL_CAPACITY];
+		private int size = 0;
+
+		IntColumn(String label, ToIntFunction<? super X> getter, Function<int[], RVector<?>> finish) {
+			super(label);
+			this.getter = getter;
+			this.finish = finish;
+		}
+
+		@Override public void accept(X item) {
+			if (size == values.length) values = Arrays.copyOf(values, size + (size >> 1) + 1);
+			values[size++] = getter.applyAsInt(item);
+		}
+
+		@Override public int size() {return size;}
+
+		@Override public void append(RColumnBuilder<X> other) {
+			IntColumn<X> o = (IntColumn<X>) other;
+			if (size + o.size > values.length) values = Arrays.copyOf(values, Math.max(size + o.size, size + (size >> 1) + 1));
+			System.arraycopy(o.values, 0, values, size, o.size);
+			size += o.size;
+		}
+
+		@Override public RColumnBuilder<X> newBuilder() {return new IntColumn<X>(label(), getter, finish);}
+
+		@Override public RVector<?> build() {return finish.apply(Arrays.copyOf(values, size));}
+	}
+
+	private static class DoubleColumn<X> extends RColumnBuilder<X> {
+		private final ToDoubleFunction<? super X> getter;
+		private double[] values = new double[INITIAL_CAPACITY];
+		private int size = 0;
+
+		DoubleColumn(String label, ToDoubleFunction<? super X> getter) {
+			super(label);
+			this.getter = getter;
+		}
+
+		@Override public void accept(X item) {
+			if (size == values.length) values = Arrays.copyOf(values, size + (size >> 1) + 1);
+			values[size++] = getter.applyAsDouble(item);
+		}
+
+		@Override public int size() {return size;}
+
+		@Override public void append(RColumnBuilder<X> other) {
+			DoubleColumn<X> o = (DoubleColumn<X>) other;
+			if (size + o.size > values.length) values = Arrays.copyOf(values, Math.max(size + o.size, size + (size >> 1) + 1));
+			System.arraycopy(o.values, 0, values, size, o.size);
+			size += o.size;
+		}
+
+		@Override public RColumnBuilder<X> newBuilder() {return new DoubleColumn<X>(label(), getter);}
+
+		@Override public RVector<?> build() {return RNumericVector.wrap(Arrays.copyOf(values, size));}
+	}
+
+	private static class StringColumn<X> extends RColumnBuilder<X> {
+		private final Function<? super X, String> getter;
+		private String[] values = new String[INITIAL_CAPACITY];
+		private int size = 0;
+
+		StringColumn(String label, Function<? super X, String> getter) {
+			super(label);
+			this.getter = getter;
+		}
+
+		@Override public void accept(X item) {
+			if (size == values.length) values = Arrays.copyOf(values, size + (size >> 1) + 1);
+			values[size++] = getter.apply(item);
+		}
+
+		@Override public int size() {return size;}
+
+		@Override public void append(RColumnBuilder<X> other) {
+			StringColumn<X> o = (StringColumn<X>) other;
+			if (size + o.size > values.length) values = Arrays.copyOf(values, Math.max(size + o.size, size + (size >> 1) + 1));
+			System.arraycopy(o.values, 0, values, size, o.size);
+			size += o.size;
+		}
+
+		@Override public RColumnBuilder<X> newBuilder() {return new StringColumn<X>(label(), getter);}
+
+		@Override public RVector<?> build() {return RCharacterVector.wrap(Arrays.copyOf(values, size));}
+	}
+
+	// Columns of values converted to RPrimitives, whose type is decided by the first value which is not NA
+	private static class PrimitiveColumn<X> extends RColumnBuilder<X> {
+		private final Function<? super X, ?> getter;
+		private RVector<?> vector = new RUntypedNaVector(0);
+
+		PrimitiveColumn(String label, Function<? super X, ?> getter) {
+			super(label);
+			this.getter = getter;
+		}
+
+		@Override public void accept(X item) {
+			add(convert(getter.apply(item)));
+		}
+
+		void add(RPrimitive value) {
+			vector = vector.addUnsafe(value);
+		}
+
+		@Override public int size() {return vector.size();}
+
+		@Override public void append(RColumnBuilder<X> other) {
+			for (RPrimitive value: ((PrimitiveColumn<X>) other).vector) add(value);
+		}
+
+		@Override public RColumnBuilder<X> newBuilder() {return new PrimitiveColumn<X>(label(), getter);}
+
+		@Override public RVector<?> build() {
+			return vector.subset(IntStream.range(0, vector.size()).toArray());
+		}
+
+		static RPrimitive convert(Object value) {
+			if (value instanceof RPrimitive) return (RPrimitive) value;
+			try {
+				return RConverter.convertObjectToPrimitive(value);
+			} catch (UnconvertableTypeException e) {
+				// Fall back to string
+				return RConverter.convert(value.toString());
+			}
+		}
+	}
+
+	// Columns of objects whose type is decided by the first value which is not null. Values of that type are stored 
+	// by a typed builder, until a value of another type is found, when the column falls back to converting each value. 
+	private static class AdaptiveColumn<X> extends RColumnBuilder<X> {
+		private final Function<? super X, ?> getter;
+		// the number of nulls before the type is known
+		private int leadingNa = 0;
+		private Class<?> type;
+		private RColumnBuilder<Object> typed;
+		private PrimitiveColumn<Object> generic;
+
+		AdaptiveColumn(String label, Function<? super X, ?> getter) {
+			super(label);
+			this.getter = getter;
+		}
+
+		@Override public void accept(X item) {
+			add(getter.apply(item));
+		}
+
+		private void add(Object value) {
+			if (generic != null) {
+				generic.add(PrimitiveColumn.convert(value));
+			} else if (typed != null) {
+				if (value == null || type.isInstance(value)) typed.accept(value);
+				else {
+					toGeneric();
+					generic.add(PrimitiveColumn.convert(value));
+				}
+			} else if (value == null) {
+				leadingNa++;
+			} else {
+				type = value instanceof Enum ? ((Enum<?>) value).getDeclaringClass() : value.getClass();
+				typed = ofType(label(), type, o -> o);
+				for (int i=0; i<leadingNa; i++) typed.accept(null);
+				typed.accept(value);
+			}
+		}
+
+		private void toGeneric() {
+			generic = new PrimitiveColumn<Object>(label(), o -> o);
+			if (typed != null) {
+				generic.vector = typed.build();
+			} else {
+				for (int i=0; i<leadingNa; i++) generic.add(RUntypedNa.NA);
+			}
+			typed = null;
+		}
+
+		@Override public int size() {
+			return generic != null ? generic.size() : (typed != null ? typed.size() : leadingNa);
+		}
+
+		@Override public void append(RColumnBuilder<X> other) {
+			AdaptiveColumn<X> o = (AdaptiveColumn<X>) other;
+			if (o.generic == null && o.typed == null) {
+				for (int i=0; i<o.leadingNa; i++) add(null);
+			} else if (generic == null && o.generic == null && (typed == null || type.equals(o.type))) {
+				if (typed == null) {
+					type = o.type;
+					typed = o.typed.newBuilder();
+					for (int i=0; i<leadingNa; i++) typed.accept(null);
+				}
+				typed.append(o.typed);
+			} else {
+				if (generic == null) toGeneric();
+				RVector<?> values = o.generic != null ? o.generic.vector : o.typed.build();
+				for (RPrimitive value: values) generic.add(value);
+			}
+		}
+
+		@Override public RColumnBuilder<X> newBuilder() {return new AdaptiveColumn<X>(label(), getter);}
+
+		@Override public RVector<?> build() {
+			if (generic != null) return generic.build();
+			if (typed != null) return typed.build();
+			return new RUntypedNaVector(leadingNa);
+		}
+	}
+}
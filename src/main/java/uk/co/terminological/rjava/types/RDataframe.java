@@ -1,23 +1,45 @@
 package uk.co.terminological.rjava.types;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -80,11 +102,15 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	
 	private LinkedHashSet<String> groups = new LinkedHashSet<>();
 	
-	//TODO: some form of indexing to speed up group operations would be desirable.
-	//However it would need to keep up to date with the underlying data structure.
-	//Questionable whether it should be part of serialisation... Maybe it should...
-	//transient Map<RNamedPrimitives,RDataframe> groupData = new HashMap<RNamedPrimitives,RDataframe>();
-	//The answer I think is to map this directly from R into an in memory H2 database table (indexed on grouping structures).
+	// An index of rows by grouping columns. This is created on first use after a groupBy and recreated 
+	// if the grouping columns are subsequently modified. It is not part of the serialised form.
+	private transient RGroupIndex groupIndex;
+	
+	// A filtered dataframe is a lazy view of the selected rows of the columns it was filtered from. The rows are
+	// gathered into new columns when the dataframe is first used as a map, e.g. when a column is retrieved or
+	// modified, or the dataframe is sent to R. Until then filters and selects produce further views, and only the 
+	// number of rows and the names of the columns are available.
+	private transient RDataframeView view;
 	
 	public RDataframe() {
 		super();
@@ -98,19 +124,132 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 		return new RDataframe();
 	}
 	
+	private static RDataframe ofView(RDataframeView view, String[] groups) {
+		RDataframe out = new RDataframe();
+		out.view = view;
+		out.groupBy(groups);
+		return out;
+	}
+	
+	/**
+	 * @return the view this dataframe is, or a view of all the rows of this dataframe
+	 */
+	private synchronized RDataframeView asView() {
+		if (this.view != null) return this.view;
+		return RDataframeView.of(this, this.nrow());
+	}
+	
+	/**
+	 * @return the names of the columns, without gathering the rows of a view
+	 */
+	List<String> columnNames() {
+		RDataframeView tmp = this.view;
+		return new ArrayList<>(tmp != null ? Arrays.asList(tmp.names()) : this.keySet());
+	}
+	
+	/**
+	 * @param columns - existing columns in the order required
+	 * @return a new dataframe sharing the given columns of this one, which is a view if this is a view. Grouping 
+	 * columns which are not included are no longer grouped.
+	 */
+	RDataframe project(List<String> columns) {
+		RDataframeView tmp = this.view;
+		if (tmp != null) return ofView(tmp.select(columns), this.getGroups());
+		RDataframe out = new RDataframe();
+		for (String col: columns) out.put(col, this.get(col));
+		out.groupBy(this.getGroups());
+		return out;
+	}
+	
+	/**
+	 * Start a lazily evaluated pipeline of operations on this dataframe, see {@link RLazyDataframe}
+	 * @return a lazy dataframe with no operations
+	 */
+	public RLazyDataframe lazy() {
+		return new RLazyDataframe(this);
+	}
+	
+	/**
+	 * @return true if this dataframe is a filtered view whose rows have not been gathered yet
+	 */
+	public boolean isView() {
+		return this.view != null;
+	}
+	
+	/**
+	 * Gather the rows of a filtered view into new columns.
+	 */
+	private synchronized void materialise() {
+		if (this.view == null) return;
+		RDataframeView tmp = this.view;
+		this.view = null;
+		tmp.materialise().forEach(super::put);
+	}
+	
+	// Map accessors gather the rows of a view before use. The size and names are available without doing so.
+	
+	@Override public int size() {RDataframeView tmp = view; return tmp != null ? tmp.ncol() : super.size();}
+	@Override public boolean isEmpty() {return size() == 0;}
+	@Override public boolean containsKey(Object key) {RDataframeView tmp = view; return tmp != null ? tmp.contains(key) : super.containsKey(key);}
+	@Override public RVector<? extends RPrimitive> get(Object key) {materialise(); return super.get(key);}
+	@Override public RVector<? extends RPrimitive> getOrDefault(Object key, RVector<? extends RPrimitive> defaultValue) {materialise(); return super.getOrDefault(key, defaultValue);}
+	@Override public boolean containsValue(Object value) {materialise(); return super.containsValue(value);}
+	@Override public Set<String> keySet() {materialise(); return super.keySet();}
+	@Override public Collection<RVector<? extends RPrimitive>> values() {materialise(); return super.values();}
+	@Override public Set<Map.Entry<String, RVector<? extends RPrimitive>>> entrySet() {materialise(); return super.entrySet();}
+	@Override public void forEach(BiConsumer<? super String, ? super RVector<? extends RPrimitive>> action) {materialise(); super.forEach(action);}
+	@Override public RVector<? extends RPrimitive> put(String key, RVector<? extends RPrimitive> value) {materialise(); return super.put(key, value);}
+	@Override public void putAll(Map<? extends String, ? extends RVector<? extends RPrimitive>> m) {materialise(); super.putAll(m);}
+	@Override public RVector<? extends RPrimitive> putIfAbsent(String key, RVector<? extends RPrimitive> value) {materialise(); return super.putIfAbsent(key, value);}
+	@Override public RVector<? extends RPrimitive> remove(Object key) {materialise(); return super.remove(key);}
+	@Override public boolean remove(Object key, Object value) {materialise(); return super.remove(key, value);}
+	@Override public RVector<? extends RPrimitive> replace(String key, RVector<? extends RPrimitive> value) {materialise(); return super.replace(key, value);}
+	@Override public boolean replace(String key, RVector<? extends RPrimitive> oldValue, RVector<? extends RPrimitive> newValue) {materialise(); return super.replace(key, oldValue, newValue);}
+	@Override public void replaceAll(BiFunction<? super String, ? super RVector<? extends RPrimitive>, ? extends RVector<? extends RPrimitive>> function) {materialise(); super.replaceAll(function);}
+	@Override public RVector<? extends RPrimitive> computeIfAbsent(String key, Function<? super String, ? extends RVector<? extends RPrimitive>> mappingFunction) {materialise(); return super.computeIfAbsent(key, mappingFunction);}
+	@Override public RVector<? extends RPrimitive> computeIfPresent(String key, BiFunction<? super String, ? super RVector<? extends RPrimitive>, ? extends RVector<? extends RPrimitive>> remappingFunction) {materialise(); return super.computeIfPresent(key, remappingFunction);}
+	@Override public RVector<? extends RPrimitive> compute(String key, BiFunction<? super String, ? super RVector<? extends RPrimitive>, ? extends RVector<? extends RPrimitive>> remappingFunction) {materialise(); return super.compute(key, remappingFunction);}
+	@Override public RVector<? extends RPrimitive> merge(String key, RVector<? extends RPrimitive> value, BiFunction<? super RVector<? extends RPrimitive>, ? super RVector<? extends RPrimitive>, ? extends RVector<? extends RPrimitive>> remappingFunction) {materialise(); return super.merge(key, value, remappingFunction);}
+	@Override public void clear() {this.view = null; super.clear();}
+	@Override public boolean equals(Object o) {materialise(); return super.equals(o);}
+	@Override public int hashCode() {materialise(); return super.hashCode();}
+	@Override public Object clone() {materialise(); return super.clone();}
+	
+	// The serialised form of a view is the gathered dataframe
+	private Object writeReplace() throws ObjectStreamException {
+		materialise();
+		return this;
+	}
+	
 	public String[] getGroups() {return groups.toArray(new String[] {});}
 	public Set<String> groupSet() {return groups;}
 	
 	public RDataframe groupBy(String... groups) {
 		this.groups = new LinkedHashSet<String>();
+		this.groupIndex = null;
 		return groupByAdditional(groups);
 	}
 	
 	public RDataframe groupByAdditional(String... groups) {
 		if (groups==null) return this;
 		Arrays.asList(groups).stream().filter(s -> s!=null & this.containsKey(s)).forEach(this.groups::add);
+		this.groupIndex = null;
 		return this;
 	}
+	
+	/**
+	 * @return an index of the rows of this dataframe by its current grouping, which is reused until the grouping
+	 * or the grouping columns change.
+	 */
+	RGroupIndex groupIndex() {
+		String[] groupCols = this.getGroups();
+		RGroupIndex tmp = this.groupIndex;
+		if (tmp == null || !tmp.isValidFor(this, groupCols)) {
+			tmp = RGroupIndex.create(this, groupCols);
+			this.groupIndex = tmp;
+		}
+		return tmp;
+	}
 
 	public String toString() {
 		return "groups: "+this.groups+"\n"+
@@ -121,6 +260,8 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	}
 
 	public int nrow() {
+		RDataframeView tmp = this.view;
+		if (tmp != null) return tmp.nrow();
 		if (this.size()==0) return 0;
 		String key = this.keySet().iterator().next();
 		return this.get(key).size();
@@ -354,7 +495,25 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 		return this.get(key);
 	}
 	
+	// dataframes with more rows than this are sent to R in chunks of this many rows
+	static final int R_CHUNK_ROWS = 1 << 20;
+	
 	public String rConversion() {
+		return rConversion(R_CHUNK_ROWS);
+	}
+	
+	/**
+	 * The R function which converts this dataframe to a tibble. A dataframe of more than chunkRows rows is copied in
+	 * chunks: the R function allocates each column in full and fills it from the primitive arrays of each
+	 * {@link #subset(int, int)} of chunkRows rows, so neither side holds more than one chunk of intermediate arrays.
+	 * @param chunkRows - the maximum number of rows to copy at once
+	 * @return the source of an R function of the java dataframe object
+	 */
+	public String rConversion(int chunkRows) {
+		if (chunkRows < 1) throw new IllegalArgumentException("chunkRows must be positive");
+		if (this.nrow() > chunkRows && this.values().stream().allMatch(v -> rChunkedColumn(v.getClass()) != null)) {
+			return rChunkedConversion(chunkRows);
+		}
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		PrintStream sb = new PrintStream(baos);
 		sb.println("function(jObj) {");
@@ -385,13 +544,83 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 		sb.println("}");
 		return baos.toString();
 	}
+	
+	// R code for a column copied in chunks: the empty column of nrow rows, the values of a chunk vector tmp, and
+	// any statement needed to finish the column %1$s given the whole java vector %2$s
+	private static String[] rChunkedColumn(Class<?> vectorType) {
+		if (vectorType.equals(RNumericVector.class)) return new String[] {
+				"numeric(nrow)", "rJava::.jcall(tmp,returnSig='[D',method='rPrimitive')", null};
+		if (vectorType.equals(RIntegerVector.class)) return new String[] {
+				"integer(nrow)", "rJava::.jcall(tmp,returnSig='[I',method='rPrimitive')", null};
+		if (vectorType.equals(RLogicalVector.class)) return new String[] {
+				"logical(nrow)", "as.logical(rJava::.jcall(tmp,returnSig='[I',method='rPrimitive'))", null};
+		if (vectorType.equals(RDateVector.class)) return new String[] {
+				"double(nrow)", "rJava::.jcall(tmp,returnSig='[I',method='rEpochDays')", "class(%1$s) = 'Date'"};
+		if (vectorType.equals(RFactorVector.class)) return new String[] {
+				"integer(nrow)", "rJava::.jcall(tmp,returnSig='[I',method='rValues')", 
+				"attributes(%1$s) = list(levels = rJava::.jcall(%2$s,returnSig='[Ljava/lang/String;',method='rLevels'), class = c('ordered','factor'))"};
+		if (vectorType.equals(RCharacterVector.class)) return new String[] {
+				"character(nrow)", "rJava::.jcall(tmp,returnSig='[Ljava/lang/String;',method='rPrimitive')", null};
+		if (vectorType.equals(RUntypedNaVector.class)) return new String[] {
+				"rep(NA, nrow)", null, null};
+		return null;
+	}
+	
+	private String rChunkedConversion(int chunkRows) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PrintStream sb = new PrintStream(baos);
+		String vectorSig = "L"+RVector.class.getCanonicalName().replace(".", "/")+";";
+		String dataframeSig = "L"+RDataframe.class.getCanonicalName().replace(".", "/")+";";
+		List<String> keyList = new ArrayList<String>(this.keySet());
+		sb.println("function(jObj) {");
+		sb.println("nrow = "+this.nrow()+"L");
+		// allocate each column in full
+		for(int i = 0; i<this.ncol(); i++) {
+			sb.println("col_"+i+" = "+rChunkedColumn(this.getVectorTypeOfColumn(keyList.get(i)))[0]);
+		}
+		// copy the primitive arrays of each chunk into the columns
+		sb.println("for (start in seq(0L, nrow-1L, by="+chunkRows+"L)) {");
+		sb.println("\tend = min(nrow, start+"+chunkRows+"L)");
+		sb.println("\tchunk = rJava::.jcall(obj=jObj,returnSig='"+dataframeSig+"',method='subset',start,end)");
+		for(int i = 0; i<this.ncol(); i++) {
+			String k = keyList.get(i);
+			String values = rChunkedColumn(this.getVectorTypeOfColumn(k))[1];
+			if (values == null) continue;
+			String actualSig = "L"+this.getVectorTypeOfColumn(k).getCanonicalName().replace(".", "/")+";";
+			sb.println("\ttmp = rJava::.jcast(rJava::.jcall(obj=chunk,returnSig='"+vectorSig+"',method='rColumn','"+k+"'),new.class='"+actualSig+"')");
+			sb.println("\tcol_"+i+"[(start+1L):end] = "+values);
+		}
+		sb.println(this.values().stream().allMatch(v -> v instanceof RUntypedNaVector) ? "\trm(chunk)" : "\trm(chunk, tmp)");
+		sb.println("}");
+		// set the attributes of the filled columns
+		for(int i = 0; i<this.ncol(); i++) {
+			String k = keyList.get(i);
+			String finish = rChunkedColumn(this.getVectorTypeOfColumn(k))[2];
+			if (finish == null) continue;
+			String actualSig = "L"+this.getVectorTypeOfColumn(k).getCanonicalName().replace(".", "/")+";";
+			String full = "rJava::.jcast(rJava::.jcall(obj=jObj,returnSig='"+vectorSig+"',method='rColumn','"+k+"'),new.class='"+actualSig+"')";
+			sb.println(String.format(finish, "col_"+i, full));
+		}
+		sb.println("\nreturn(tibble::tibble(");
+		for(int i = 0; i<this.ncol(); i++) {
+			sb.println("`"+keyList.get(i)+"` = col_"+i+(i==this.ncol()-1?"":","));
+		}
+		sb.println("))");
+		sb.println("}");
+		return baos.toString();
+	}
 
 	
+	/**
+	 * Iterate over the rows of the dataframe. The same row object is returned by each call to next(), moved to
+	 * the next row, so rows must be copied with {@link RDataframeRow#copy()} to be kept.
+	 */
 	@Override
 	public Iterator<RDataframeRow> iterator() {
 		int nrow = nrow();
 		return new Iterator<RDataframeRow>() {
 			int i=0;
+			RDataframeRow cursor;
 
 			@Override
 			public boolean hasNext() {
@@ -400,13 +629,114 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 
 			@Override
 			public RDataframeRow next() {
+				if (i >= nrow) throw new NoSuchElementException();
+				if (cursor == null) cursor = getRow(i); else cursor.moveTo(i);
 				i = i+1;
-				return getRow(i-1);
+				return cursor;
 			}
 			
 		};
 	}
 	
+	/**
+	 * A spliterator over the rows of the dataframe for stream() and parallelStream(). As with the iterator each 
+	 * part of the split reuses a single row object.
+	 */
+	@Override
+	public Spliterator<RDataframeRow> spliterator() {
+		return new RowSpliterator(0, nrow());
+	}
+	
+	private class RowSpliterator implements Spliterator<RDataframeRow> {
+		
+		int from;
+		int to;
+		RDataframeRow cursor;
+		
+		RowSpliterator(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super RDataframeRow> action) {
+			if (from >= to) return false;
+			if (cursor == null) cursor = getRow(from); else cursor.moveTo(from);
+			from++;
+			action.accept(cursor);
+			return true;
+		}
+		
+		@Override
+		public Spliterator<RDataframeRow> trySplit() {
+			int mid = (from + to) >>> 1;
+			if (mid <= from) return null;
+			RowSpliterator prefix = new RowSpliterator(from, mid);
+			from = mid;
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return to - from;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL;
+		}
+	}
+	
+	/**
+	 * Write the dataframe in the Apache Arrow IPC stream format, e.g. to be read in R by 
+	 * arrow::read_ipc_stream(rJava::.jcall(df, "[B", "toArrow")). R NA values are arrow nulls and factors are 
+	 * dictionary encoded. Grouping is not written.
+	 * @return the stream as a byte array
+	 */
+	public byte[] toArrow() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			RArrowFormat.write(this, out, false);
+		} catch (IOException e) {
+			throw new IncompatibleTypeException(e.getMessage(), e);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Read a dataframe from Apache Arrow IPC data in the stream or file format, e.g. as created in R by 
+	 * arrow::write_to_raw(df, format="stream")
+	 * @param ipc - the stream or file contents
+	 * @return a new dataframe
+	 * @throws IOException if the data is not an arrow stream of supported column types
+	 */
+	public static RDataframe fromArrow(byte[] ipc) throws IOException {
+		return RArrowFormat.read(ByteBuffer.wrap(ipc));
+	}
+	
+	/**
+	 * Write the dataframe to a file in the Apache Arrow IPC file format, which can be read by arrow::read_ipc_file.
+	 * Record batches are limited to about 1GB so wide dataframes are split into batches of fewer rows.
+	 * @param file - the file to create or replace
+	 */
+	public void writeArrow(Path file) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+			RArrowFormat.write(this, out, true);
+		}
+	}
+	
+	/**
+	 * Read a dataframe from a file in the Apache Arrow IPC file or stream format. The body of each record batch is 
+	 * memory mapped while it is read, so the file may be larger than 2GB as long as each batch is smaller.
+	 * @param file - the arrow file
+	 * @return a new dataframe
+	 */
+	public static RDataframe readArrow(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return RArrowFormat.read(channel);
+		}
+	}
+	
 	public String rCode() {
 		return "tibble::tibble("+
 				this.entrySet().stream()
@@ -423,28 +753,45 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	}
 	
 	public Set<RNamedPrimitives> distinct() {
+		RGroupIndex index = RGroupIndex.create(this, this.rKeys());
 		Set<RNamedPrimitives> tmp = new LinkedHashSet<>();
-		for (RDataframeRow row: this) {
-			tmp.add((RNamedPrimitives) row);
+		for (int g=0; g<index.ngroups(); g++) {
+			tmp.add(index.key(g));
 		}
 		return tmp;
 	}
 	
+	/**
+	 * Splits the dataframe into a dataframe per group, in the order in which the groups first appear.
+	 * @return a map of the grouping column values to the rows with those values
+	 */
 	public Map<RNamedPrimitives,RDataframe> groupData() {
-		Map<RNamedPrimitives,RDataframe> tmp = new HashMap<>();
-		this.stream().forEach(r -> {
-			RNamedPrimitives row = r.rowGroup();
-			if (!tmp.containsKey(row)) tmp.put(row, new RDataframe());
-			tmp.get(row).addRow(r);
-		});
+		RGroupIndex index = this.groupIndex();
+		Map<RNamedPrimitives,RDataframe> tmp = new LinkedHashMap<>();
+		for (int g=0; g<index.ngroups(); g++) {
+			tmp.put(index.key(g), this.subset(index.rows(g)));
+		}
 		return tmp;
 	}
+	
+	/**
+	 * @param rows - zero based row numbers
+	 * @return a new dataframe with the given rows in the given order, with the same grouping as this one. 
+	 */
+	public RDataframe subset(int[] rows) {
+		RDataframe out = new RDataframe();
+		this.forEach((k,v) -> out.put(k, v.subset(rows)));
+		out.groupBy(this.getGroups());
+		return out;
+	}
 
 	public RDataframe select(String... columns) {
 		LinkedHashSet<String> cols = new LinkedHashSet<String>(this.groups);
 		cols.addAll(Arrays.asList(columns));
 		String addingGrp = cols.stream().filter(c -> this.groups.contains(c)).collect(Collectors.joining(", ")); 
 		if (!addingGrp.isEmpty()) log.debug("Adding grouping columns to select: "+addingGrp);
+		RDataframeView tmp = this.view;
+		if (tmp != null) return ofView(tmp.select(cols), this.getGroups());
 		RDataframe out = new RDataframe();
 		for (String col: cols) {
 			if (this.containsKey(col))
@@ -460,25 +807,21 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	}
 	
 	public RDataframe drop(String... columns) {
-		Set<String> cols = new LinkedHashSet<>(this.keySet());
+		Set<String> cols = new LinkedHashSet<>(this.columnNames());
 		Stream.of(columns).forEach(cols::remove);
 		return this.select(cols.toArray(new String[] {}));
 	}
 	
+	/**
+	 * Filter a dataframe to the rows matching all of the given values. The result is a lazy view, see {@link #filter(RNamedPredicate...)} 
+	 * @param match - the values to match by column name 
+	 * @return A new dataframe
+	 */
 	public RDataframe filter(RNamedPrimitives match) {
-		BitSet filter = (new BitSet(this.nrow()));
-		filter.set(0, this.nrow(), true);
-		match.forEach((k,v) -> { 
-			BitSet and = this.get(k).matches(v);
-			filter.and(and); 
-		});
-		final BitSet filter2 = filter;
-		RDataframe out = new RDataframe();
-		this.columnIterator().forEachRemaining(n -> {
-			out.addCol(n.getKey(), n.getValue().subset(filter2));
-		});
-		out.groupBy(this.getGroups());
-		return out;
+		RDataframeView source = this.asView();
+		BitSet filter = source.selection();
+		match.forEach((k,v) -> filter.and(source.column(k).matches(v)));
+		return ofView(source.filter(filter), this.getGroups());
 	}
 	
 	/**
@@ -503,49 +846,112 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	}
 	
 	/**
-	 * Filter a dataframe and return a new dataframe
+	 * Filter a dataframe and return a new dataframe. The new dataframe is a lazy view which selects rows of the columns 
+	 * of this dataframe without copying them, so chained filters and selects only combine the selected rows. The rows are 
+	 * gathered when the new dataframe is first used, or before this dataframe's columns are changed in place.
 	 * @param tests A set of tests
 	 * @return a new dataframe containing only items which pass all the filter test
 	 */
 	public RDataframe filter(RNamedPredicate<?>... tests) {
-		
+		RDataframeView source = this.asView();
 		// return everything if no conditions
-		BitSet filter = (new BitSet(this.nrow()));
-		filter.set(0, this.nrow(), true);
-		
+		BitSet filter = source.selection();
 		for (RNamedPredicate<?> test: tests) {
-			BitSet and = this.get(test.name()).matches(test.predicate());
-			filter.and(and); 
+			filter.and(test.matches(source.column(test.name())));
 		}
-		final BitSet filter2 = filter;
-		RDataframe out = new RDataframe();
-		this.columnIterator().forEachRemaining(n -> {
-			out.addCol(n.getKey(), n.getValue().subset(filter2));
-		});
-		out.groupBy(this.getGroups());
-		return out;
+		return ofView(source.filter(filter), this.getGroups());
 	}
 	
+	/**
+	 * Apply a function to each group of the dataframe in parallel on the common fork join pool, 
+	 * and combine the results. See {@link #groupModify(BiFunction, ForkJoinPool)}
+	 * @param func - a function of the group data (without grouping columns) and the group values
+	 * @return a new dataframe with the grouping columns and the results of the function
+	 */
 	public RDataframe groupModify(BiFunction<RDataframe, RNamedPrimitives, RDataframe> func) {
-		RDataframe out = new RDataframe();
-		Map<RNamedPrimitives, RDataframe> groupData = this.groupData();
-		if (groupData.isEmpty()) {
-			groupData = new HashMap<>();
-			groupData.put(new RNamedPrimitives(),this);
+		return groupModify(func, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Apply a function to each group of the dataframe and combine the results. The function is given a dataframe
+	 * of the rows in each group without the grouping columns, and the values of the grouping columns. The groups are 
+	 * processed in parallel in the given pool, but the output is assembled in the order in which the groups first 
+	 * appear in this dataframe. 
+	 * @param func - a function of the group data (without grouping columns) and the group values
+	 * @param pool - the fork join pool to run the function in. A pool with parallelism of 1 will process groups sequentially.
+	 * @return a new dataframe with the grouping columns and the results of the function, grouped as this dataframe
+	 */
+	public RDataframe groupModify(BiFunction<RDataframe, RNamedPrimitives, RDataframe> func, ForkJoinPool pool) {
+		RDataframe values = new RDataframe();
+		this.forEach((k,v) -> {if (!this.groups.contains(k)) values.put(k, v);});
+		
+		RGroupIndex index = this.groupIndex();
+		int ngroups = index.ngroups();
+		RNamedPrimitives[] keys = new RNamedPrimitives[ngroups];
+		RDataframe[] results = new RDataframe[ngroups];
+		
+		if (ngroups == 0) {
+			// An empty dataframe is treated as a single group
+			RDataframe result = func.apply(values, new RNamedPrimitives());
+			result.groupBy(this.getGroups());
+			return result;
 		}
 		
-		groupData.entrySet().parallelStream().map(group -> {
-			RDataframe subgroup = group.getValue().ungroup().drop(this.getGroups());
-			RNamedPrimitives grouping = group.getKey();
-			RDataframe subgroupOut = func.apply(subgroup, grouping);
-			RDataframe groupOut = grouping.toDataframe(subgroupOut.nrow());
-			subgroupOut.forEach((k,v) -> groupOut.addCol(k, v));
-			return groupOut;
-		}).forEach(out::bindRows);
+		inPool(pool, () -> IntStream.range(0, ngroups).parallel().forEach(g -> {
+			keys[g] = index.key(g);
+			results[g] = func.apply(values.subset(index.rows(g)), keys[g]);
+		}), "group modify");
 		
+		// Assemble the output column by column
+		int[] lengths = new int[ngroups];
+		int total = 0;
+		for (int g=0; g<ngroups; g++) {
+			lengths[g] = results[g].nrow();
+			total += lengths[g];
+		}
+		int[] groupRows = new int[total];
+		int[] firstRows = index.firstRows();
+		for (int g=0, i=0; g<ngroups; g++) {
+			Arrays.fill(groupRows, i, i+lengths[g], firstRows[g]);
+			i += lengths[g];
+		}
+		RDataframe out = new RDataframe();
+		for (String group: this.groups) {
+			out.put(group, this.get(group).subset(groupRows));
+		}
+		LinkedHashSet<String> resultCols = new LinkedHashSet<>();
+		for (RDataframe result: results) resultCols.addAll(result.keySet());
+		resultCols.removeAll(this.groups);
+		for (String col: resultCols) {
+			out.put(col, concatenate(col, results, lengths, total));
+		}
 		out.groupBy(this.getGroups());
 		return out;
 	}
+	
+	// Join the named column from each of a set of dataframes into a single vector, filling with NA where a dataframe
+	// does not have the column.
+	private static RVector<?> concatenate(String col, RDataframe[] parts, int[] lengths, int total) {
+		Class<? extends RPrimitive> type = RUntypedNa.class;
+		for (RDataframe part: parts) {
+			if (part.containsKey(col) && !part.getTypeOfColumn(col).equals(RUntypedNa.class)) {
+				type = part.getTypeOfColumn(col);
+				break;
+			}
+		}
+		RVector<?> out = RVector.empty(type, total);
+		for (int g=0; g<parts.length; g++) {
+			RVector<?> part = parts[g].get(col);
+			if (part == null || part instanceof RUntypedNaVector) {
+				out.fillNA(lengths[g]);
+			} else if (part.size() != lengths[g]) {
+				throw new IncompatibleTypeException("Column "+col+" is the incorrect length in a group result");
+			} else {
+				out = out.addAllUnsafe(part);
+			}
+		}
+		return out;
+	}
 
 	
 	
@@ -569,19 +975,141 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	}
 
 	public RDataframe subset(int start, int end) {
+		return subset(IntStream.range(start, end).toArray());
+	}
+	
+	/**
+	 * @param chunkRows - the number of rows of each dataframe
+	 * @return the rows as a sequence of dataframes, each of which is copied when it is reached
+	 */
+	public Stream<RDataframe> chunks(int chunkRows) {
+		if (chunkRows < 1) throw new IllegalArgumentException("chunkRows must be positive");
+		int nrow = nrow();
+		int n = (nrow + chunkRows - 1) / chunkRows;
+		return IntStream.range(0, n).mapToObj(i -> subset(i * chunkRows, Math.min(nrow, (i+1) * chunkRows)));
+	}
+	
+	public RDataframe count() {
+		if (this.groups.isEmpty()) return RDataframe.create().withCol("n", RVector.with(this.nrow()));
+		RGroupIndex index = this.groupIndex();
 		RDataframe out = new RDataframe();
-		IntStream.range(start, end).forEach(i -> out.addRow(this.getRow(i)));
+		for (String group: this.groups) {
+			out.put(group, this.get(group).subset(index.firstRows()));
+		}
+		out.put("n", new RIntegerVector(index.groupSizes()));
+		out.groupBy(this.getGroups());
 		return out;
 	}
 	
-	public RDataframe count() {
-		return this.groupModify((d,g) -> 
-			RDataframe.create().withCol("n", 
-					RVector.with(
-							d.nrow()
-						)
-					)
-		);
+	/**
+	 * Summarise each group of the dataframe to a single row, as dplyr::summarise. An ungrouped dataframe is
+	 * summarised to a single row even if it is empty. As in dplyr the output is grouped by all but the last
+	 * of the grouping columns.
+	 * @param aggregates - the named summaries to calculate, see {@link RAggregate}
+	 * @return a new dataframe with the grouping columns and a column for each summary
+	 */
+	public RDataframe summarise(RAggregate... aggregates) {
+		RGroupIndex index = this.groups.isEmpty() ? RGroupIndex.all(this) : this.groupIndex();
+		RDataframe out = new RDataframe();
+		for (String group: this.groups) {
+			out.put(group, this.get(group).subset(index.firstRows()));
+		}
+		for (RAggregate aggregate: aggregates) {
+			if (out.containsKey(aggregate.name())) throw new IncompatibleTypeException("Duplicate column name in summarise: "+aggregate.name());
+			out.put(aggregate.name(), aggregate.summarise(this, index));
+		}
+		String[] groups = this.getGroups();
+		out.groupBy(Arrays.copyOf(groups, Math.max(groups.length-1, 0)));
+		return out;
+	}
+
+	/**
+	 * Sort the dataframe by one or more columns in ascending order. See {@link #arrange(RSortKey...)}
+	 * @param columns - the columns to sort by, in order of precedence
+	 * @return a new sorted dataframe
+	 */
+	public RDataframe arrange(String... columns) {
+		return arrange(Arrays.stream(columns).map(RSortKey::asc).toArray(RSortKey[]::new));
+	}
+	
+	/**
+	 * Sort the dataframe by one or more columns, as dplyr::arrange. The sort is stable, and ignores grouping.
+	 * NA values are sorted last. Factors are sorted by their level order and strings by unicode code point.
+	 * @param keys - the columns to sort by, in order of precedence, e.g. {@code arrange(asc("a"), desc("b"))}
+	 * @return a new sorted dataframe with the same grouping as this one
+	 */
+	public RDataframe arrange(RSortKey... keys) {
+		return arrange(null, keys);
+	}
+	
+	/**
+	 * Sort the dataframe as {@link #arrange(RSortKey...)}, sorting large dataframes in parallel in the given pool.
+	 * @param pool - the fork join pool to sort in, or null to sort in the calling thread
+	 * @param keys - the columns to sort by, in order of precedence
+	 * @return a new sorted dataframe with the same grouping as this one
+	 */
+	public RDataframe arrange(ForkJoinPool pool, RSortKey... keys) {
+		IntBinaryOperator[] cmps = new IntBinaryOperator[keys.length];
+		for (int k=0; k<keys.length; k++) {
+			if (!this.containsKey(keys[k].column())) throw new NameNotFoundException(keys[k].column());
+			cmps[k] = ROrdering.comparator(this.get(keys[k].column()), keys[k].isDescending());
+		}
+		IntBinaryOperator cmp = (i,j) -> {
+			for (IntBinaryOperator c: cmps) {
+				int out = c.applyAsInt(i, j);
+				if (out != 0) return out;
+			}
+			return 0;
+		};
+		return this.subset(ROrdering.order(this.nrow(), cmp, pool));
+	}
+	
+	/**
+	 * The types of join supported by {@link RDataframe#join(RDataframe, JoinType, boolean, String...)}, with the
+	 * same meanings as the dplyr join functions.
+	 */
+	public static enum JoinType {
+		/** rows of both dataframes with matching keys */
+		INNER, 
+		/** all rows of the left dataframe with matching rows from the right, or NA if there are none */
+		LEFT, 
+		/** rows of the left dataframe which have a match in the right, without adding columns */
+		SEMI, 
+		/** rows of the left dataframe which have no match in the right */
+		ANTI
+	}
+	
+	/**
+	 * Join this dataframe to another by the values of one or more key columns, as the dplyr join functions. NA keys
+	 * match each other. Where a non key column is in both dataframes the output columns are suffixed ".x" and ".y". The 
+	 * rows of the output are in the order of this dataframe, and the output has the same grouping as this dataframe.
+	 * @param other - the right hand side of the join
+	 * @param type - the type of join
+	 * @param sorted - if both dataframes are already sorted by the key columns (ascending, with NA last, as by 
+	 * {@code arrange}) they can be merged, which avoids building a hash table of the other dataframe. Otherwise a 
+	 * hash join is used.
+	 * @param by - the key columns, which must have the same type in both dataframes. If none are given the columns
+	 * the dataframes have in common are used.
+	 * @return a new dataframe
+	 */
+	public RDataframe join(RDataframe other, JoinType type, boolean sorted, String... by) {
+		return sorted ? RJoin.mergeJoin(this, other, type, by) : RJoin.hashJoin(this, other, type, by);
+	}
+	
+	public RDataframe innerJoin(RDataframe other, String... by) {
+		return join(other, JoinType.INNER, false, by);
+	}
+	
+	public RDataframe leftJoin(RDataframe other, String... by) {
+		return join(other, JoinType.LEFT, false, by);
+	}
+	
+	public RDataframe semiJoin(RDataframe other, String... by) {
+		return join(other, JoinType.SEMI, false, by);
+	}
+	
+	public RDataframe antiJoin(RDataframe other, String... by) {
+		return join(other, JoinType.ANTI, false, by);
 	}
 	
 	public String asCsv() {
@@ -615,16 +1143,147 @@ public class RDataframe extends LinkedHashMap<String, RVector<? extends RPrimiti
 	@SuppressWarnings("unchecked")
 	public <X extends RPrimitive,Y extends RPrimitive> RDataframe mutate(String columnName, Function<X,Y> mapping) {
 		try {
-			RVector<X> tmp = (RVector<X>) this.get(columnName);
-			List<Y> tmp2 = tmp.stream().map(mapping).collect(Collectors.toList());
-			RVector<Y> tmp3 = (RVector<Y>) RVector.empty(tmp2.get(0).getClass());
-			tmp2.forEach(tmp3::add);
-			this.replace(columnName, tmp3);
+			RVector<X> input = (RVector<X>) this.get(columnName);
+			RVector<Y> output = null;
+			for (X value: input) {
+				Y mapped = mapping.apply(value);
+				// the output type is that of the first result
+				if (output == null) output = (RVector<Y>) RVector.empty(mapped.getClass(), input.size());
+				output.add(mapped);
+			}
+			// an empty column has no values to map and is left as it is
+			if (output != null) this.replace(columnName, output);
 		} catch (ClassCastException e) {
 			throw new IncompatibleTypeException("The column type is not compatible with the function class");
 		}
 		return this;
 	}
+	
+	/**
+	 * Returns the same data frame with a numeric or integer column replaced by a numeric column of a function of its
+	 * values. The values are mapped as primitive doubles into a new column without creating an object for each value.
+	 * NA values remain NA, and the function is not called for them.
+	 * @param columnName -  the name of the column to mutate
+	 * @param mapping - the operation to apply to each value
+	 * @return the same dataframe with a changed column
+	 */
+	public RDataframe mutateDouble(String columnName, DoubleUnaryOperator mapping) {
+		return mutateDouble(columnName, mapping, null);
+	}
+	
+	/**
+	 * As {@link #mutateDouble(String, DoubleUnaryOperator)}, splitting the column between the threads of a fork join pool.
+	 * @param columnName -  the name of the column to mutate
+	 * @param mapping - the operation to apply to each value, which must be safe to call from several threads
+	 * @param pool - the fork join pool to map the values in, or null to map them in the calling thread
+	 * @return the same dataframe with a changed column
+	 */
+	public RDataframe mutateDouble(String columnName, DoubleUnaryOperator mapping, ForkJoinPool pool) {
+		RVector<?> input = this.getOrThrow(columnName);
+		double[] out = new double[input.size()];
+		if (input instanceof RNumericVector) {
+			double[] values = ((RNumericVector) input).values;
+			forEachRow(out.length, pool, i -> out[i] = 
+					Double.doubleToRawLongBits(values[i]) == RNumeric.NA_VALUE_LONG ? RNumeric.NA_VALUE : mapping.applyAsDouble(values[i]));
+		} else if (input instanceof RIntegerVector) {
+			int[] values = ((RIntegerVector) input).values;
+			forEachRow(out.length, pool, i -> out[i] = 
+					values[i] == RIntBackedVector.NA_VALUE ? RNumeric.NA_VALUE : mapping.applyAsDouble(values[i]));
+		} else {
+			throw new IncompatibleTypeException("Column "+columnName+" is a "+input.getClass().getSimpleName()+" which cannot be mapped as doubles");
+		}
+		this.replace(columnName, RNumericVector.wrap(out));
+		return this;
+	}
+	
+	/**
+	 * Returns the same data frame with an integer column replaced by a function of its values, which are mapped as
+	 * primitive ints without creating an object for each value. NA values remain NA, and the function is not called 
+	 * for them. A result of Integer.MIN_VALUE is NA in R. 
+	 * @param columnName -  the name of the column to mutate
+	 * @param mapping - the operation to apply to each value
+	 * @return the same dataframe with a changed column
+	 */
+	public RDataframe mutateInt(String columnName, IntUnaryOperator mapping) {
+		return mutateInt(columnName, mapping, null);
+	}
+	
+	/**
+	 * As {@link #mutateInt(String, IntUnaryOperator)}, splitting the column between the threads of a fork join pool.
+	 * @param columnName -  the name of the column to mutate
+	 * @param mapping - the operation to apply to each value, which must be safe to call from several threads
+	 * @param pool - the fork join pool to map the values in, or null to map them in the calling thread
+	 * @return the same dataframe with a changed column
+	 */
+	public RDataframe mutateInt(String columnName, IntUnaryOperator mapping, ForkJoinPool pool) {
+		RVector<?> input = this.getOrThrow(columnName);
+		if (!(input instanceof RIntegerVector)) 
+			throw new IncompatibleTypeException("Column "+columnName+" is a "+input.getClass().getSimpleName()+" which cannot be mapped as ints");
+		int[] values = ((RIntegerVector) input).values;
+		int[] out = new int[input.size()];
+		forEachRow(out.length, pool, i -> out[i] = 
+				values[i] == RIntBackedVector.NA_VALUE ? RIntBackedVector.NA_VALUE : mapping.applyAsInt(values[i]));
+		this.replace(columnName, RIntegerVector.wrap(out));
+		return this;
+	}
+	
+	/**
+	 * Returns the same data frame with a numeric column calculated from each row, added at the end or replacing
+	 * an existing column of the same name. The results are written directly into the new column. 
+	 * @param columnName - the name of the new column
+	 * @param mapping - a function of each row. A result of NaN is passed to R as NaN, which is.na() treats as missing. Return RNumeric.NA.rPrimitive() for NA.
+	 * @return the same dataframe with a new column
+	 */
+	public RDataframe mutateRows(String columnName, ToDoubleFunction<RDataframeRow> mapping) {
+		return mutateRows(columnName, mapping, null);
+	}
+	
+	/**
+	 * As {@link #mutateRows(String, ToDoubleFunction)}, splitting the rows between the threads of a fork join pool.
+	 * @param columnName - the name of the new column
+	 * @param mapping - a function of each row, which must be safe to call from several threads
+	 * @param pool - the fork join pool to calculate the values in, or null to calculate them in the calling thread
+	 * @return the same dataframe with a new column
+	 */
+	public RDataframe mutateRows(String columnName, ToDoubleFunction<RDataframeRow> mapping, ForkJoinPool pool) {
+		this.materialise();
+		double[] out = new double[this.nrow()];
+		boolean parallel = pool != null && out.length >= PARALLEL_THRESHOLD;
+		Runnable task = () -> StreamSupport.stream(this.spliterator(), parallel).forEach(row -> out[row.getRowNumber()] = mapping.applyAsDouble(row));
+		if (parallel) inPool(pool, task, "mutate"); else task.run();
+		this.put(columnName, RNumericVector.wrap(out));
+		return this;
+	}
+	
+	private RVector<?> getOrThrow(String columnName) {
+		if (!this.containsKey(columnName)) throw new NameNotFoundException(columnName);
+		return this.get(columnName);
+	}
+	
+	// columns shorter than this are mapped in the calling thread even if a pool is given
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+	
+	// Each row is written by exactly one task so the output array needs no synchronisation
+	private static void forEachRow(int nrow, ForkJoinPool pool, IntConsumer action) {
+		if (pool == null || nrow < PARALLEL_THRESHOLD) {
+			for (int i=0; i<nrow; i++) action.accept(i);
+			return;
+		}
+		inPool(pool, () -> IntStream.range(0, nrow).parallel().forEach(action), "mutate");
+	}
+	
+	// Run a task in a pool and wait for it, rethrowing any runtime exception it throws
+	private static void inPool(ForkJoinPool pool, Runnable task, String operation) {
+		try {
+			pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted during "+operation, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
 
 	
 }
\ No newline at end of file
@@ -1,33 +1,175 @@
 package uk.co.terminological.rjava.types;
 
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import uk.co.terminological.rjava.RObjectVisitor;
 
+/**
+ * A row of a dataframe as a map of column names to values. The values are read from the columns of the dataframe
+ * when they are accessed rather than copied into the map, so a row can be moved along the dataframe. The rows given
+ * by iterating or streaming a dataframe are a single row object per iterator which is moved to each row in turn, and
+ * must be copied with {@link #copy()} if they are kept after moving to the next row. Modifying a row copies its values
+ * into the map, after which it no longer reflects the dataframe.
+ */
 public class RDataframeRow extends RNamedPrimitives implements RObject {
 
-	
+
 	private int row;
 	private RDataframe dataframe;
-		
+
+	// the columns the values are read from, until the values are copied into the map
+	private transient String[] names;
+	private transient RVector<?>[] columns;
+	private transient Set<String> keys;
+	private boolean detached = false;
+
 	public RDataframeRow(RDataframe rDataframe, int i) {
 		super();
 		this.row = i;
 		this.dataframe = rDataframe;
-		rDataframe.keySet().forEach(k -> {
-			this.put(k, rDataframe.get(k).get(i));
-		});
+		this.names = rDataframe.keySet().toArray(new String[0]);
+		this.columns = rDataframe.values().toArray(new RVector<?>[0]);
 	}
 	public int getRowNumber() {return row;}
-	
+
 	public RDataframeRow lag(int before) {return dataframe.getRow(row-before);}
 	public RDataframeRow lead(int after) {return dataframe.getRow(row+after);}
-	
+
 	public RDataframeRow lag() {return lag(1);}
 	public RDataframeRow lead() {return lead(1);}
-	
-	
-	
+
+	/**
+	 * Move this row to another row of the same dataframe, discarding any modifications
+	 * @param i - the zero based row number
+	 */
+	void moveTo(int i) {
+		if (detached) {
+			super.clear();
+			detached = false;
+		}
+		this.row = i;
+	}
+
+	/**
+	 * @return a row with the current values of this one, which is not affected when this row is moved
+	 */
+	public RDataframeRow copy() {
+		RDataframeRow out = dataframe.getRow(row);
+		if (detached) {
+			out.detached = true;
+			out.putAll(this);
+		}
+		return out;
+	}
+
+	/**
+	 * @return true if the row has been modified, and holds its own values rather than reading them from the dataframe
+	 */
+	boolean isDetached() {
+		return detached;
+	}
+
+	// copy the values of the row into the map before it is modified
+	private void detach() {
+		if (detached) return;
+		for (int j=0; j<names.length; j++) super.put(names[j], columns[j].get(row));
+		detached = true;
+	}
+
+	private int indexOf(Object name) {
+		for (int j=0; j<names.length; j++) if (names[j].equals(name)) return j;
+		return -1;
+	}
+
+	protected Object writeReplace() {
+		detach();
+		return this;
+	}
+
+	// Map accessors read from the columns until the row is detached
+
+	@Override public int size() {return detached ? super.size() : names.length;}
+	@Override public boolean isEmpty() {return size() == 0;}
+	@Override public boolean containsKey(Object key) {return detached ? super.containsKey(key) : indexOf(key) != -1;}
+	@Override public boolean containsValue(Object value) {return detached ? super.containsValue(value) : values().contains(value);}
+
+	@Override public RPrimitive get(Object key) {
+		if (detached) return super.get(key);
+		int j = indexOf(key);
+		return j == -1 ? null : columns[j].get(row);
+	}
+
+	@Override public RPrimitive getOrDefault(Object key, RPrimitive defaultValue) {
+		if (detached) return super.getOrDefault(key, defaultValue);
+		int j = indexOf(key);
+		return j == -1 ? defaultValue : columns[j].get(row);
+	}
+
+	@Override public void forEach(BiConsumer<? super String, ? super RPrimitive> action) {
+		if (detached) {super.forEach(action); return;}
+		for (int j=0; j<names.length; j++) action.accept(names[j], columns[j].get(row));
+	}
+
+	@Override public Set<String> keySet() {
+		if (detached) return super.keySet();
+		if (keys == null) keys = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(names)));
+		return keys;
+	}
+
+	@Override public Collection<RPrimitive> values() {
+		if (detached) return super.values();
+		return new AbstractList<RPrimitive>() {
+			@Override public RPrimitive get(int j) {return columns[j].get(row);}
+			@Override public int size() {return names.length;}
+		};
+	}
+
+	@Override public Set<Map.Entry<String, RPrimitive>> entrySet() {
+		if (detached) return super.entrySet();
+		return new AbstractSet<Map.Entry<String, RPrimitive>>() {
+			@Override public int size() {return names.length;}
+			@Override public Iterator<Map.Entry<String, RPrimitive>> iterator() {
+				return new Iterator<Map.Entry<String, RPrimitive>>() {
+					int j = 0;
+					@Override public boolean hasNext() {return j < names.length;}
+					@Override public Map.Entry<String, RPrimitive> next() {
+						if (j >= names.length) throw new NoSuchElementException();
+						j++;
+						return new AbstractMap.SimpleImmutableEntry<>(names[j-1], columns[j-1].get(row));
+					}
+				};
+			}
+		};
+	}
+
+	@Override public RPrimitive put(String key, RPrimitive value) {detach(); return super.put(key, value);}
+	@Override public void putAll(Map<? extends String, ? extends RPrimitive> m) {detach(); super.putAll(m);}
+	@Override public RPrimitive putIfAbsent(String key, RPrimitive value) {detach(); return super.putIfAbsent(key, value);}
+	@Override public RPrimitive remove(Object key) {detach(); return super.remove(key);}
+	@Override public boolean remove(Object key, Object value) {detach(); return super.remove(key, value);}
+	@Override public RPrimitive replace(String key, RPrimitive value) {detach(); return super.replace(key, value);}
+	@Override public boolean replace(String key, RPrimitive oldValue, RPrimitive newValue) {detach(); return super.replace(key, oldValue, newValue);}
+	@Override public void replaceAll(BiFunction<? super String, ? super RPrimitive, ? extends RPrimitive> function) {detach(); super.replaceAll(function);}
+	@Override public RPrimitive computeIfAbsent(String key, Function<? super String, ? extends RPrimitive> mappingFunction) {detach(); return super.computeIfAbsent(key, mappingFunction);}
+	@Override public RPrimitive computeIfPresent(String key, BiFunction<? super String, ? super RPrimitive, ? extends RPrimitive> remappingFunction) {detach(); return super.computeIfPresent(key, remappingFunction);}
+	@Override public RPrimitive compute(String key, BiFunction<? super String, ? super RPrimitive, ? extends RPrimitive> remappingFunction) {detach(); return super.compute(key, remappingFunction);}
+	@Override public RPrimitive merge(String key, RPrimitive value, BiFunction<? super RPrimitive, ? super RPrimitive, ? extends RPrimitive> remappingFunction) {detach(); return super.merge(key, value, remappingFunction);}
+	@Override public void clear() {detach(); super.clear();}
+
 	@Override
 	public String rCode() {
 		// TODO Auto-generated method stub
@@ -39,13 +181,13 @@ public class RDataframeRow extends RNamedPrimitives implements RObject {
 		this.iterator().forEachRemaining(c -> RNamed.from(c).accept(visitor));
 		return out;
 	}
-	
-	
+
+
 	@Override
 	public int hashCode() {
 		return super.hashCode();
 	}
-	
+
 	@Override
 	public boolean equals(Object obj) {
 		return super.equals(obj);
@@ -58,5 +200,5 @@ public class RDataframeRow extends RNamedPrimitives implements RObject {
 	public String asCsv() {
 		return this.values().stream().map(v -> v.asCsv()).collect(Collectors.joining(","))+"\n";
 	}
-	
+
 }
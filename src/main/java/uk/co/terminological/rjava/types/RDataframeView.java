@@ -0,0 +1,147 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.co.terminological.rjava.NameNotFoundException;
+
+/**
+ * The rows of a set of columns selected by a bitset, which have not yet been copied. This is the state of a lazily
+ * filtered {@link RDataframe}. Further filters and selects produce new views of the same columns, and the
+ * selected rows are only gathered when the dataframe is used. A view is registered with the columns it selects
+ * from, and gathers its rows before any of them is changed in place, so the view keeps the values the columns had 
+ * when it was created. Rows appended to the columns are not part of the view.
+ * @author terminological
+ *
+ */
+final class RDataframeView {
+
+	private final String[] names;
+	private RVector<?>[] vectors;
+	private BitSet selection;
+	private final int nrow;
+	// true once the rows have been gathered and the view no longer depends on the columns it was created from
+	private boolean detached;
+
+	private RDataframeView(String[] names, RVector<?>[] vectors, BitSet selection) {
+		this.names = names;
+		this.vectors = vectors;
+		this.selection = selection;
+		this.nrow = selection.cardinality();
+	}
+
+	/**
+	 * @param columns - the columns of a dataframe
+	 * @param nrow - the length of the columns
+	 * @return a view of all rows of the columns
+	 */
+	static RDataframeView of(Map<String, RVector<? extends RPrimitive>> columns, int nrow) {
+		String[] names = columns.keySet().toArray(new String[0]);
+		RVector<?>[] vectors = new RVector<?>[names.length];
+		for (int j=0; j<names.length; j++) {
+			vectors[j] = columns.get(names[j]);
+		}
+		BitSet all = new BitSet(nrow);
+		all.set(0, nrow);
+		return new RDataframeView(names, vectors, all);
+	}
+
+	// views held by a dataframe are registered with their columns, so that they are gathered before the columns change
+	private RDataframeView register() {
+		for (RVector<?> vector: vectors) vector.addView(this);
+		return this;
+	}
+
+	int nrow() {
+		return nrow;
+	}
+
+	int ncol() {
+		return names.length;
+	}
+
+	String[] names() {
+		return names.clone();
+	}
+
+	boolean contains(Object name) {
+		return indexOf(name) != -1;
+	}
+
+	private int indexOf(Object name) {
+		for (int j=0; j<names.length; j++) if (names[j].equals(name)) return j;
+		return -1;
+	}
+
+	/**
+	 * @return the complete underlying column, which is indexed by the same row numbers as the selection
+	 */
+	synchronized RVector<?> column(String name) {
+		int j = indexOf(name);
+		if (j == -1) throw new NameNotFoundException(name);
+		return vectors[j];
+	}
+
+	/**
+	 * @return a copy of the current selection
+	 */
+	synchronized BitSet selection() {
+		return (BitSet) selection.clone();
+	}
+
+	/**
+	 * @param selection - a subset of the current selection, made from the columns of this view 
+	 * @return a view of the selected rows of the same columns 
+	 */
+	synchronized RDataframeView filter(BitSet selection) {
+		return new RDataframeView(names, vectors, selection).register();
+	}
+
+	/**
+	 * @param columns - the names of the columns to keep, in order. Names not in this view are ignored.
+	 * @return a view of the same rows of the given columns
+	 */
+	synchronized RDataframeView select(Collection<String> columns) {
+		String[] names = columns.stream().filter(this::contains).toArray(String[]::new);
+		RVector<?>[] vectors = new RVector<?>[names.length];
+		for (int k=0; k<names.length; k++) {
+			vectors[k] = this.vectors[indexOf(names[k])];
+		}
+		return new RDataframeView(names, vectors, selection).register();
+	}
+
+	/**
+	 * Gather the selected rows of each column, and stop depending on the original columns. This is called by a 
+	 * column before it is modified in place.
+	 */
+	synchronized void detach() {
+		if (detached) return;
+		int[] rows = selection.stream().toArray();
+		// the array of columns may be shared with other views
+		RVector<?>[] gathered = new RVector<?>[vectors.length];
+		for (int j=0; j<vectors.length; j++) {
+			vectors[j].removeView(this);
+			gathered[j] = vectors[j].subset(rows);
+		}
+		BitSet all = new BitSet(nrow);
+		all.set(0, nrow);
+		this.vectors = gathered;
+		this.selection = all;
+		this.detached = true;
+	}
+
+	/**
+	 * Gather the selected rows of each column.
+	 * @return the new columns in order
+	 */
+	synchronized LinkedHashMap<String, RVector<? extends RPrimitive>> materialise() {
+		detach();
+		LinkedHashMap<String, RVector<? extends RPrimitive>> out = new LinkedHashMap<>();
+		for (int j=0; j<names.length; j++) {
+			out.put(names[j], vectors[j]);
+		}
+		return out;
+	}
+}
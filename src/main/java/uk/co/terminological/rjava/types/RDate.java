@@ -9,30 +9,31 @@ import uk.co.terminological.rjava.RDataType;
 import uk.co.terminological.rjava.RObjectVisitor;
 
 /**
- * A java representation of the R base Date class (will also be used for POSIXt classes)
+ * A java representation of the R base Date class (will also be used for POSIXt classes). This is transferred 
+ * to and from R as an integer number of days since 1970-01-01. 
  * @author terminological
  *
  */
 @RDataType(
 		JavaToR = { 
-				"function(jObj) as.Date(rJava::.jcall(jObj,returnSig='Ljava/lang/String;',method='rPrimitive'),'%Y-%m-%d')",
+				"function(jObj) as.Date(rJava::.jcall(jObj,returnSig='I',method='rEpochDay'),origin='1970-01-01')",
 		}, 
 		RtoJava = { 
 				"function(rObj) {", 
 				"	if (is.na(rObj)) return(rJava::.jnew('~RDATE~'))",
 				"	if (length(rObj) > 1) stop('input too long')",
-				"   if (rObj<'0001-01-01') message('dates smaller than 0001-01-01 will be converted to NA')",
-				"	tmp = as.character(rObj,format='%C%y-%m-%d')[[1]]",
+				"	tmp = as.integer(floor(unclass(as.Date(rObj))))[[1]]",
 				"	return(rJava::.jnew('~RDATE~',tmp))", 
 				"}"
 		}
-		//JNIType = "D"
+		//JNIType = "I"
 	)
 public class RDate implements RPrimitive, JNIPrimitive  {
 
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
 	static final String NA_VALUE = null;
+	static final int NA_EPOCH_DAY = Integer.MIN_VALUE;
 	public static final RDate NA = new RDate(NA_VALUE);
 	
 	LocalDate self;
@@ -68,9 +69,21 @@ public class RDate implements RPrimitive, JNIPrimitive  {
 		self = boxed;
 	}
 	
+	/**
+	 * @param epochDay - the number of days since 1970-01-01 as used by R, with NA as Integer.MIN_VALUE
+	 */
+	public RDate(int epochDay) {
+		if (epochDay == NA_EPOCH_DAY) self = null;
+		else self = LocalDate.ofEpochDay(epochDay);
+	}
+	
 	public static RDate from(String s) {
 		return new RDate(s);
 	}
+	
+	public static RDate fromEpochDay(int epochDay) {
+		return new RDate(epochDay);
+	}
 
 	@Override
 	public int hashCode() {
@@ -99,6 +112,8 @@ public class RDate implements RPrimitive, JNIPrimitive  {
 	
 	public String rPrimitive() {return self == null ? "NA" : self.format(rformatter);} 
 	
+	public int rEpochDay() {return self == null ? NA_EPOCH_DAY : Math.toIntExact(self.toEpochDay());}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public <X> Optional<X> opt(Class<X> type) {
@@ -4,44 +4,109 @@ import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.Optional;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.RDataType;
 import uk.co.terminological.rjava.RObjectVisitor;
 
 /**
- * Java wrapper for R vector of dates. When transferred between R and Java this uses a string format for the date.
+ * Java wrapper for R vector of dates. When transferred between R and Java this uses the R representation of the date
+ * as an integer number of days since 1970-01-01, and the dates are stored as such. 
  * Factory methods are in {@link RVector}.
  * @author terminological
  *
  */
 @RDataType(
 		JavaToR = { 
-				"function(jObj) as.Date(rJava::.jcall(jObj,returnSig='[Ljava/lang/String;',method='rPrimitive'),'%Y-%m-%d')",
+				"function(jObj) as.Date(rJava::.jcall(jObj,returnSig='[I',method='rEpochDays'),origin='1970-01-01')",
 		}, 
 		RtoJava = { 
 				"function(rObj) {", 
-				"	if (is.null(rObj)) return(rJava::.new('~RDATEVECTOR~'))",
-				"	if (any(na.omit(rObj)<'0001-01-01')) message('dates smaller than 0001-01-01 will be converted to NA')",
-				"	tmp = as.character(rObj,format='%C%y-%m-%d')",
+				"	if (is.null(rObj)) return(rJava::.jnew('~RDATEVECTOR~'))",
+				"	tmp = as.integer(floor(unclass(as.Date(rObj))))",
 				"	return(rJava::.jnew('~RDATEVECTOR~',rJava::.jarray(tmp)))", 
 				"}"
 		}
 		//JNIType = "[I"
 	)
-public class RDateVector extends RVector<RDate> implements JNIPrimitive {
+public class RDateVector extends RIntBackedVector<RDate> implements JNIPrimitive {
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
+	// the epoch days most recently produced for transfer to R, cached apart from the formatted strings of rPrimitive()
+	private transient volatile int[] epochDaysCache;
+	
+	/**
+	 * Create a date vector from an array of days since 1970-01-01
+	 * @param epochDays - the dates with NA as Integer.MIN_VALUE
+	 */
+	public RDateVector(int[] epochDays) {
+		super(epochDays);
+	}
 	public RDateVector(String[] primitives) {
 		super(primitives.length);
-		for (int i=0; i<primitives.length; i++) this.add(new RDate(primitives[i]));
+		for (int i=0; i<primitives.length; i++) this.values[i] = new RDate(primitives[i]).rEpochDay();
+		this.size = primitives.length;
 	}
-	public RDateVector() {super();}
+	public RDateVector() {this(10);}
 	public RDateVector(int length) {super(length);}
 	
+	/**
+	 * The dates formatted as strings. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the dates in yyyy-MM-dd format with NA as "NA"
+	 */
 	public String[] rPrimitive() {
-		return this.stream().map(ri -> ri.rPrimitive()).collect(Collectors.toList()).toArray(new String[] {});
+		return cachedPrimitive(String[].class, () -> {
+			String[] out = new String[size];
+			for (int i=0; i<size; i++) out[i] = values[i] == NA_VALUE ? "NA" : LocalDate.ofEpochDay(values[i]).format(RDate.rformatter);
+			return out;
+		});
+	}
+	
+	/**
+	 * The dates as passed to R. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the dates as days since 1970-01-01, with NA as Integer.MIN_VALUE
+	 */
+	public int[] rEpochDays() {
+		int[] out = epochDaysCache;
+		if (out == null) {
+			out = intValues();
+			epochDaysCache = out;
+		}
+		return out;
+	}
+	
+	@Override
+	protected void invalidateCache() {
+		epochDaysCache = null;
+		super.invalidateCache();
+	}
+	
+	/**
+	 * Get the date at a given position without creating an {@link RDate}.
+	 * @param index - the zero based index
+	 * @return the number of days since 1970-01-01, or the R NA value
+	 */
+	public int rEpochDay(int index) {
+		return intValue(index);
+	}
+	
+	@Override
+	protected RDate box(int value) {
+		return RDate.fromEpochDay(value);
+	}
+	
+	@Override
+	protected RDateVector emptyLike(int capacity) {
+		return new RDateVector(capacity);
+	}
+	
+	@Override
+	protected int unbox(RDate element) {
+		return element == null ? NA_VALUE : element.rEpochDay();
 	}
 	
 	@Override
@@ -50,7 +115,7 @@ public class RDateVector extends RVector<RDate> implements JNIPrimitive {
 	}
 	
 	public String rCode() {
-		return "as.Date(c("+this.stream().map(s -> s.isNa() ? "NA" : ("'"+s.rPrimitive()+"'")).collect(Collectors.joining(", "))+"),'%Y-%m-%d')";
+		return "as.Date(c("+IntStream.range(0, size).mapToObj(i -> isNa(i) ? "NA" : Integer.toString(values[i])).collect(Collectors.joining(", "))+"),origin='1970-01-01')";
 	}
 	
 	@Override
@@ -62,12 +127,12 @@ public class RDateVector extends RVector<RDate> implements JNIPrimitive {
 	
 	@SuppressWarnings("unchecked")
 	public Stream<LocalDate> get() {
-		return this.stream().map(ri -> ri.get());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? null : LocalDate.ofEpochDay(values[i]));
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<LocalDate>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? Optional.empty() : Optional.of(LocalDate.ofEpochDay(values[i])));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -81,4 +146,4 @@ public class RDateVector extends RVector<RDate> implements JNIPrimitive {
 	}
 	
 	public void fillNA(int length) {this.fill(RDate.NA, length);}
-}
\ No newline at end of file
+}
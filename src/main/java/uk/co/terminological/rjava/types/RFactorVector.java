@@ -1,7 +1,7 @@
 package uk.co.terminological.rjava.types;
 
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -34,38 +34,134 @@ import uk.co.terminological.rjava.RObjectVisitor;
 		}
 		//JNIType = "[I"
 	)
-public class RFactorVector extends RVector<RFactor> {
+public class RFactorVector extends RIntBackedVector<RFactor> {
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
-	// transient HashMap<Integer,List<Integer>> index = new HashMap<>();
 	
+	// values are the 1 based R factor codes, levels are shared by all elements and indexed by code-1.
+	// levels may have gaps (nulls) if factors were added to the vector out of order.
 	private String[] levels;
+	private int nlevels;
+	
 	public RFactorVector(int[] values, String[] levels) {
-		super(values.length);
+		super(values);
 		this.levels = levels;
-		for (int i=0; i<values.length; i++) {
-			this.add(new RFactor(values[i], levels[values[i]-1]));
-//			if(!index.containsKey(values[i])) index.put(values[i], new ArrayList<>());
-//			index.get(values[i]).add(i);
-		}
-		
-		//factors are 1 indexed - java arrays zero indexed
+		this.nlevels = levels.length;
+	}
+	public RFactorVector() {this(10);}
+	public RFactorVector(int length) {
+		super(length);
+		this.levels = new String[0];
+		this.nlevels = 0;
 	}
-	public RFactorVector() {super();}
-	public RFactorVector(int length) {super(length);}
 	public RFactorVector(String[] levels) {
-		super();
+		this(10);
 		this.levels = levels;
+		this.nlevels = levels.length;
 	}
+	
+	/**
+	 * The factor codes as passed to R. This is the backing array of the vector and must not be modified by the caller.
+	 * @return the 1 based factor codes, with NA as Integer.MIN_VALUE
+	 */
 	public int[] rValues() {
-		return this.stream().mapToInt(ri -> ri.rValue()).toArray();
+		if (values.length != size) values = Arrays.copyOf(values, size);
+		return values;
 	}
+	
+	/**
+	 * Get the factor code at a given position without creating an {@link RFactor}. 
+	 * @param index - the zero based index
+	 * @return the 1 based factor code, or the R NA value
+	 */
+	public int rValue(int index) {
+		return intValue(index);
+	}
+	
 	public String[] rLevels() {
-		if (levels != null) return levels;
-		LinkedHashMap<Integer,String> tmp = new LinkedHashMap<>();
-		this.stream().forEach(f -> tmp.put(f.rValue(), f.rLabel()));
-		String[] obs = IntStream.range(0, tmp.size()).mapToObj(i -> tmp.getOrDefault(i+1, "unknown_"+i)).collect(Collectors.toList()).toArray(new String[] {});
-		return obs;
+		String[] out = Arrays.copyOf(levels, nlevels);
+		for (int i=0; i<nlevels; i++) if (out[i] == null) out[i] = "unknown_"+i;
+		return out;
+	}
+	
+	/**
+	 * @return the number of levels in this factor
+	 */
+	public int nlevels() {
+		return nlevels;
+	}
+	
+	String label(int code) {
+		if (code == NA_VALUE) return RFactor.NA_LABEL;
+		if (code < 1 || code > nlevels || levels[code-1] == null) return "unknown_"+(code-1);
+		return levels[code-1];
+	}
+	
+	// Levels are copied on write as the levels array may be shared with other vectors.
+	// A factor keeps its code if the code has the same label or no label in this vector. Otherwise it is given the 
+	// code of its label, which is added as a new level if it is not already present. 
+	private int registerLevel(int code, String label) {
+		if (code == NA_VALUE) return NA_VALUE;
+		if (code < 1) throw new IndexOutOfBoundsException("Factor codes must be 1 based: "+code);
+		if (label == null) return code;
+		if (code <= nlevels && label.equals(levels[code-1])) return code;
+		for (int i=0; i<nlevels; i++) if (label.equals(levels[i])) return i+1;
+		if (code > nlevels || levels[code-1] == null) {
+			levels = Arrays.copyOf(levels, Math.max(code, nlevels));
+		} else {
+			levels = Arrays.copyOf(levels, nlevels+1);
+			code = nlevels+1;
+		}
+		levels[code-1] = label;
+		nlevels = levels.length;
+		return code;
+	}
+	
+	@Override
+	protected RFactor box(int value) {
+		if (value == NA_VALUE) return RFactor.NA;
+		return new RFactor(value, label(value));
+	}
+	
+	@Override
+	protected RFactorVector emptyLike(int capacity) {
+		RFactorVector out = new RFactorVector(capacity);
+		out.levels = this.levels;
+		out.nlevels = this.nlevels;
+		return out;
+	}
+	
+	@Override
+	protected int unbox(RFactor element) {
+		if (element == null) return NA_VALUE;
+		return registerLevel(element.rValue(), element.rLabel());
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends RFactor> c) {
+		if (!(c instanceof RFactorVector)) return super.addAll(c);
+		RFactorVector other = (RFactorVector) c;
+		// the codes of the other vector in this one
+		int[] recode = new int[other.nlevels];
+		boolean same = true;
+		for (int i=0; i<other.nlevels; i++) {
+			recode[i] = registerLevel(i+1, other.levels[i]);
+			same &= recode[i] == i+1;
+		}
+		int length = other.size;
+		ensureCapacity(size+length);
+		if (same) {
+			System.arraycopy(other.values, 0, values, size, length);
+		} else {
+			for (int i=0; i<length; i++) {
+				int code = other.values[i];
+				values[size+i] = code == NA_VALUE || code < 1 || code > recode.length ? code : recode[code-1];
+			}
+		}
+		size += length;
+		modCount++;
+		invalidateCache();
+		return length > 0;
 	}
 	
 	@Override
@@ -76,7 +172,7 @@ public class RFactorVector extends RVector<RFactor> {
 	
 	public String rCode() {
 		return "ordered(x=c("+
-				this.stream().map(s -> s==null?"NA":RConverter.rQuote(s.rLabel(), "'")).collect(Collectors.joining(", "))+
+				IntStream.range(0, size).mapToObj(i -> isNa(i)?"NA":RConverter.rQuote(label(values[i]), "'")).collect(Collectors.joining(", "))+
 				"),labels=c("+
 				Stream.of(this.rLevels()).map(s -> RConverter.rQuote(s, "'")).collect(Collectors.joining(", "))
 				+"))";
@@ -92,12 +188,12 @@ public class RFactorVector extends RVector<RFactor> {
 	@SuppressWarnings("unchecked")
 	@Override
 	public Stream<String> get() {
-		return this.stream().map(ri -> ri.get());
+		return IntStream.range(0, size).mapToObj(i -> label(values[i]));
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<String>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> Optional.of(label(values[i])));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -111,4 +207,4 @@ public class RFactorVector extends RVector<RFactor> {
 	}
 	
 	public void fillNA(int length) {this.fill(RFactor.NA, length);}
-}
\ No newline at end of file
+}
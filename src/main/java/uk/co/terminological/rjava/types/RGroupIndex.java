@@ -0,0 +1,176 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An index of the rows of a dataframe by the values of a set of columns. Each distinct combination of values
+ * is assigned a group number, in the order in which it first appears in the dataframe, and the index holds the
+ * row numbers of each group. The index is only valid while the indexed columns are not modified.
+ * @author terminological
+ *
+ */
+final class RGroupIndex {
+
+	private final String[] columns;
+	private final RVector<?>[] vectors;
+	private final int[] versions;
+	private final int nrow;
+
+	private final int[] groupOf;
+	private final int[] firstRow;
+	private final int[][] rows;
+
+	private RGroupIndex(RDataframe dataframe, String[] columns, boolean alwaysOneGroup) {
+		this.columns = columns;
+		this.nrow = dataframe.nrow();
+		this.vectors = new RVector<?>[columns.length];
+		this.versions = new int[columns.length];
+		for (int j=0; j<columns.length; j++) {
+			this.vectors[j] = dataframe.get(columns[j]);
+			this.versions[j] = this.vectors[j].version();
+		}
+
+		// assign dense group codes by combining the codes of each column in turn
+		this.groupOf = new int[nrow];
+		int ngroups = nrow > 0 || alwaysOneGroup ? 1 : 0;
+		int[] tmp = new int[nrow];
+		for (int j=0; j<columns.length; j++) {
+			int cardinality = codes(vectors[j], tmp);
+			LongIntHashMap combined = new LongIntHashMap();
+			for (int i=0; i<nrow; i++) {
+				groupOf[i] = combined.putIfAbsent(((long) groupOf[i]) * cardinality + tmp[i], combined.size());
+			}
+			ngroups = combined.size();
+		}
+
+		// collect row numbers for each group
+		int[] counts = new int[ngroups];
+		this.firstRow = new int[ngroups];
+		Arrays.fill(firstRow, -1);
+		for (int i=0; i<nrow; i++) {
+			if (counts[groupOf[i]]++ == 0) firstRow[groupOf[i]] = i;
+		}
+		this.rows = new int[ngroups][];
+		for (int g=0; g<ngroups; g++) rows[g] = new int[counts[g]];
+		Arrays.fill(counts, 0);
+		for (int i=0; i<nrow; i++) {
+			int g = groupOf[i];
+			rows[g][counts[g]++] = i;
+		}
+	}
+
+	static RGroupIndex create(RDataframe dataframe, String[] columns) {
+		return new RGroupIndex(dataframe, columns, false);
+	}
+
+	/**
+	 * @return an index with all the rows of the dataframe in a single group, even if there are no rows 
+	 */
+	static RGroupIndex all(RDataframe dataframe) {
+		return new RGroupIndex(dataframe, new String[0], true);
+	}
+
+	/**
+	 * @return true if this index was created for the same columns of the dataframe and they have not been changed since
+	 */
+	boolean isValidFor(RDataframe dataframe, String[] columns) {
+		if (!Arrays.equals(this.columns, columns)) return false;
+		if (dataframe.nrow() != nrow) return false;
+		for (int j=0; j<columns.length; j++) {
+			if (dataframe.get(columns[j]) != vectors[j]) return false;
+			if (vectors[j].version() != versions[j]) return false;
+		}
+		return true;
+	}
+
+	int ngroups() {
+		return rows.length;
+	}
+
+	/**
+	 * @return the row number of the first row of each group
+	 */
+	int[] firstRows() {
+		return firstRow;
+	}
+
+	/**
+	 * @return the row numbers of a group in their original order
+	 */
+	int[] rows(int group) {
+		return rows[group];
+	}
+
+	/**
+	 * @return the group number of a row
+	 */
+	int group(int row) {
+		return groupOf[row];
+	}
+
+	int[] groupSizes() {
+		int[] out = new int[rows.length];
+		for (int g=0; g<rows.length; g++) out[g] = rows[g].length;
+		return out;
+	}
+
+	/**
+	 * @return the values of the indexed columns for a group
+	 */
+	RNamedPrimitives key(int group) {
+		RNamedPrimitives out = new RNamedPrimitives();
+		for (int j=0; j<columns.length; j++) {
+			out.put(columns[j], vectors[j].get(firstRow[group]));
+		}
+		return out;
+	}
+
+	/**
+	 * Assigns a dense code to each element of a vector such that equal values (including NA) share a code.
+	 * @param vector - the vector to code
+	 * @param out - an array at least as long as the vector to hold the codes
+	 * @return the number of distinct codes
+	 */
+	static int codes(RVector<?> vector, int[] out) {
+		int size = vector.size();
+		if (vector instanceof RIntBackedVector) {
+			int[] values = ((RIntBackedVector<?>) vector).values;
+			LongIntHashMap map = new LongIntHashMap();
+			for (int i=0; i<size; i++) out[i] = map.putIfAbsent(values[i], map.size());
+			return map.size();
+		}
+		if (vector instanceof RNumericVector) {
+			RNumericVector tmp = (RNumericVector) vector;
+			LongIntHashMap map = new LongIntHashMap();
+			for (int i=0; i<size; i++) out[i] = map.putIfAbsent(tmp.groupingKey(i), map.size());
+			return map.size();
+		}
+		if (vector instanceof RCharacterVector && ((RCharacterVector) vector).isDictionaryEncoded()) {
+			int[] codes = ((RCharacterVector) vector).codes;
+			LongIntHashMap map = new LongIntHashMap();
+			for (int i=0; i<size; i++) out[i] = map.putIfAbsent(codes[i], map.size());
+			return map.size();
+		}
+		if (vector instanceof RCharacterVector) {
+			RCharacterVector tmp = (RCharacterVector) vector;
+			HashMap<String,Integer> map = new HashMap<>();
+			for (int i=0; i<size; i++) {
+				Integer code = map.putIfAbsent(tmp.values[i], map.size());
+				out[i] = code == null ? map.size()-1 : code;
+			}
+			return map.size();
+		}
+		if (vector instanceof RUntypedNaVector) {
+			Arrays.fill(out, 0, size, 0);
+			return size > 0 ? 1 : 0;
+		}
+		Map<Object,Integer> map = new HashMap<>();
+		for (int i=0; i<size; i++) {
+			Integer code = map.putIfAbsent(vector.get(i), map.size());
+			out[i] = code == null ? map.size()-1 : code;
+		}
+		return map.size();
+	}
+}
@@ -0,0 +1,155 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A vector which stores its elements as a growable primitive int array, in the form they are passed to and from R.
+ * NA values are held inline as Integer.MIN_VALUE, which is the R NA integer. Element objects are only created when
+ * the vector is accessed as a java List.
+ * @author terminological
+ *
+ * @param <X> the RPrimitive type of the elements
+ */
+public abstract class RIntBackedVector<X extends RPrimitive> extends RVector<X> {
+
+	private static final long serialVersionUID = RObject.datatypeVersion;
+
+	static final int NA_VALUE = Integer.MIN_VALUE;
+
+	int[] values;
+	int size;
+
+	public RIntBackedVector(int[] primitives) {
+		this.values = Arrays.copyOf(primitives, primitives.length);
+		this.size = primitives.length;
+	}
+
+	public RIntBackedVector(int length) {
+		this.values = new int[length];
+		this.size = 0;
+	}
+
+	/**
+	 * Create an element of this vector from its primitive representation
+	 * @param value - a primitive value which may be NA
+	 * @return the element
+	 */
+	protected abstract X box(int value);
+
+	/**
+	 * Convert an element to its primitive representation, null values will be treated as NA
+	 * @param element - the element
+	 * @return the primitive value which may be NA
+	 */
+	protected abstract int unbox(X element);
+
+	int intValue(int index) {
+		rangeCheck(index);
+		return values[index];
+	}
+
+	int[] intValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	@Override
+	public boolean isNa(int index) {
+		return intValue(index) == NA_VALUE;
+	}
+
+	/**
+	 * @param capacity - the initial capacity
+	 * @return a new empty vector of the same type and attributes as this one
+	 */
+	protected abstract RIntBackedVector<X> emptyLike(int capacity);
+
+	@Override
+	public RIntBackedVector<X> subset(int[] rows) {
+		RIntBackedVector<X> out = emptyLike(rows.length);
+		for (int i=0; i<rows.length; i++) out.values[i] = rows[i] < 0 ? NA_VALUE : intValue(rows[i]);
+		out.size = rows.length;
+		return out;
+	}
+
+	@Override
+	public X get(int index) {
+		return box(intValue(index));
+	}
+
+	@Override
+	public X set(int index, X element) {
+		beforeModification();
+		X out = get(index);
+		values[index] = unbox(element);
+		invalidateCache();
+		return out;
+	}
+
+	@Override
+	public void add(int index, X element) {
+		if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		if (index < size) beforeModification();
+		ensureCapacity(size+1);
+		System.arraycopy(values, index, values, index+1, size-index);
+		values[index] = unbox(element);
+		size++;
+		modCount++;
+		invalidateCache();
+	}
+
+	@Override
+	public X remove(int index) {
+		beforeModification();
+		X out = get(index);
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		size--;
+		modCount++;
+		invalidateCache();
+		return out;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		beforeModification();
+		System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+		size -= toIndex-fromIndex;
+		modCount++;
+		invalidateCache();
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends X> c) {
+		if (c.getClass() != this.getClass()) return super.addAll(c);
+		RIntBackedVector<?> other = (RIntBackedVector<?>) c;
+		int length = other.size;
+		ensureCapacity(size+length);
+		System.arraycopy(other.values, 0, values, size, length);
+		size += length;
+		modCount++;
+		invalidateCache();
+		return length > 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	void ensureCapacity(int minCapacity) {
+		if (minCapacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(minCapacity, values.length + (values.length >> 1) + 1));
+		}
+	}
+
+	@Override
+	public RIntBackedVector<X> fill(X x, int length) {
+		ensureCapacity(size+length);
+		Arrays.fill(values, size, size+length, unbox(x));
+		size += length;
+		modCount++;
+		invalidateCache();
+		return this;
+	}
+
+}
@@ -2,6 +2,7 @@ package uk.co.terminological.rjava.types;
 
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.RDataType;
@@ -28,20 +29,56 @@ import uk.co.terminological.rjava.RObjectVisitor;
 		}
 		//JNIType = "[I"
 	)
-public class RIntegerVector extends RVector<RInteger> implements JNIPrimitive {
+public class RIntegerVector extends RIntBackedVector<RInteger> implements JNIPrimitive {
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
 	public RIntegerVector(int[] primitives) {
-		for (int i=0; i<primitives.length; i++) this.add(new RInteger(primitives[i]));
+		super(primitives);
 	}
-	public RIntegerVector() {super();}
+	public RIntegerVector() {this(10);}
 	
 	public RIntegerVector(int length) {
 		super(length);
 	}
+	// a vector which takes ownership of an array of R primitives without copying it
+	static RIntegerVector wrap(int[] primitives) {
+		RIntegerVector out = new RIntegerVector(0);
+		out.values = primitives;
+		out.size = primitives.length;
+		return out;
+	}
+	/**
+	 * The values of the vector as passed to R. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the values with NA as the R NA value
+	 */
 	public int[] rPrimitive() {
-		return this.stream().mapToInt(ri -> ri.rPrimitive()).toArray();
+		return cachedPrimitive(int[].class, this::intValues);
+	}
+	
+	/**
+	 * Get the value at a given position in the form it is passed to R, without creating an {@link RInteger}.
+	 * @param index - the zero based index
+	 * @return an int which may be the R NA value
+	 */
+	public int rPrimitive(int index) {
+		return intValue(index);
+	}
+	
+	@Override
+	protected RInteger box(int value) {
+		return new RInteger(value);
+	}
+	
+	@Override
+	protected RIntegerVector emptyLike(int capacity) {
+		return new RIntegerVector(capacity);
+	}
+	
+	@Override
+	protected int unbox(RInteger element) {
+		return element == null ? RInteger.NA_VALUE : element.rPrimitive();
 	}
 	
 	@Override
@@ -58,12 +95,12 @@ public class RIntegerVector extends RVector<RInteger> implements JNIPrimitive {
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Integer> get() {
-		return this.stream().map(r -> r.get());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? null : values[i]);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<Integer>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? Optional.empty() : Optional.of(values[i]));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -78,6 +115,8 @@ public class RIntegerVector extends RVector<RInteger> implements JNIPrimitive {
 	public void fillNA(int length) {this.fill(RInteger.NA, length);}
 	
 	public int[] javaPrimitive(int naValue) {
-		return this.stream().mapToInt(ri -> ri.javaPrimitive(naValue)).toArray();
+		int[] out = new int[size];
+		for (int i=0; i<size; i++) out[i] = values[i] == NA_VALUE ? naValue : values[i];
+		return out;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.IntBinaryOperator;
+
+import uk.co.terminological.rjava.IncompatibleTypeException;
+import uk.co.terminological.rjava.NameNotFoundException;
+import uk.co.terminological.rjava.types.RDataframe.JoinType;
+
+/**
+ * Joins of two dataframes on a set of key columns. The joins find pairs of matching row numbers in the two
+ * dataframes, and then produce the output by gathering each column once by row number. As in dplyr, NA keys
+ * match other NA keys, and where a column other than the keys is present in both dataframes the output columns
+ * are suffixed with ".x" and ".y".
+ * @author terminological
+ *
+ */
+final class RJoin {
+
+	private final RDataframe left;
+	private final RDataframe right;
+	private final String[] by;
+	private final JoinType type;
+
+	// the matched row pairs, with right row -1 for unmatched left rows
+	private int[] leftRows;
+	private int[] rightRows;
+	private int size;
+
+	private RJoin(RDataframe left, RDataframe right, JoinType type, String[] by) {
+		this.left = left;
+		this.right = right;
+		this.type = type;
+		if (by.length == 0) {
+			// a natural join on the columns the dataframes have in common
+			LinkedHashSet<String> common = new LinkedHashSet<>(left.keySet());
+			common.retainAll(right.keySet());
+			by = common.toArray(new String[0]);
+			if (by.length == 0) throw new IncompatibleTypeException("No common columns to join by");
+		}
+		for (String col: by) {
+			if (!left.containsKey(col)) throw new NameNotFoundException(col);
+			if (!right.containsKey(col)) throw new NameNotFoundException(col);
+		}
+		this.by = by;
+		this.leftRows = new int[Math.max(left.nrow(), 16)];
+		this.rightRows = new int[leftRows.length];
+	}
+
+	/**
+	 * Join two dataframes using a hash table built over the keys of the right dataframe. The rows of the output are
+	 * in the order of the left dataframe, and rows of the right dataframe matching the same left row are in their
+	 * original order.
+	 */
+	static RDataframe hashJoin(RDataframe left, RDataframe right, JoinType type, String... by) {
+		RJoin join = new RJoin(left, right, type, by);
+		join.hashMatch();
+		return join.result();
+	}
+
+	/**
+	 * Join two dataframes which are both already sorted by the key columns, in ascending order with NA last, by
+	 * merging them. The output is the same as for {@link #hashJoin(RDataframe, RDataframe, JoinType, String...)}.
+	 * Factor keys with different levels in each dataframe are sorted in different orders, so these are hash joined.
+	 * @throws IncompatibleTypeException if either dataframe is found not to be sorted
+	 */
+	static RDataframe mergeJoin(RDataframe left, RDataframe right, JoinType type, String... by) {
+		for (String col: by) {
+			RVector<?> l = left.get(col);
+			RVector<?> r = right.get(col);
+			if (l instanceof RFactorVector && r instanceof RFactorVector && l != r 
+					&& !Arrays.equals(((RFactorVector) l).rLevels(), ((RFactorVector) r).rLevels())) {
+				return hashJoin(left, right, type, by);
+			}
+		}
+		RJoin join = new RJoin(left, right, type, by);
+		join.mergeMatch();
+		return join.result();
+	}
+
+	private void hashMatch() {
+		int nleft = left.nrow();
+		int nright = right.nrow();
+		int[] leftCodes = new int[nleft];
+		int[] rightCodes = new int[nright];
+		int[] leftTmp = new int[nleft];
+		int[] rightTmp = new int[nright];
+		// combine the jointly coded columns into a single code for each key, assigning the codes for the right
+		// dataframe first so any left code without a match is at least the number of distinct right keys.
+		int nkeys = 0;
+		for (int j=0; j<by.length; j++) {
+			int cardinality = jointCodes(by[j], left.get(by[j]), right.get(by[j]), leftTmp, rightTmp);
+			LongIntHashMap combined = new LongIntHashMap();
+			for (int i=0; i<nright; i++) rightCodes[i] = combined.putIfAbsent(((long) rightCodes[i]) * cardinality + rightTmp[i], combined.size());
+			nkeys = combined.size();
+			for (int i=0; i<nleft; i++) leftCodes[i] = combined.putIfAbsent(((long) leftCodes[i]) * cardinality + leftTmp[i], combined.size());
+		}
+
+		// the build side: the right row numbers for each key, in order
+		int[] offsets = new int[nkeys+1];
+		for (int i=0; i<nright; i++) offsets[rightCodes[i]+1]++;
+		for (int k=0; k<nkeys; k++) offsets[k+1] += offsets[k];
+		int[] rows = new int[nright];
+		int[] next = Arrays.copyOf(offsets, nkeys);
+		for (int i=0; i<nright; i++) rows[next[rightCodes[i]]++] = i;
+
+		// the probe side
+		for (int i=0; i<nleft; i++) {
+			int k = leftCodes[i];
+			if (k < nkeys) {
+				matched(i, rows, offsets[k], offsets[k+1]);
+			} else {
+				unmatched(i);
+			}
+		}
+	}
+
+	private void mergeMatch() {
+		int nleft = left.nrow();
+		int nright = right.nrow();
+		IntBinaryOperator cmp = comparator(left, right);
+		IntBinaryOperator leftCmp = comparator(left, left);
+		IntBinaryOperator rightCmp = comparator(right, right);
+		int[] rows = new int[nright];
+		for (int i=0; i<nright; i++) rows[i] = i;
+		int i = 0;
+		int j = 0;
+		while (i < nleft) {
+			if (i > 0 && leftCmp.applyAsInt(i-1, i) > 0) throw new IncompatibleTypeException("Left dataframe is not sorted by "+String.join(", ", by));
+			int c = j < nright ? cmp.applyAsInt(i, j) : -1;
+			if (c < 0) {
+				unmatched(i++);
+			} else if (c > 0) {
+				j++;
+				if (j < nright && rightCmp.applyAsInt(j-1, j) > 0) throw new IncompatibleTypeException("Right dataframe is not sorted by "+String.join(", ", by));
+			} else {
+				// a run of equal keys in the right dataframe matches a run of equal keys in the left
+				int end = j+1;
+				while (end < nright && rightCmp.applyAsInt(j, end) == 0) end++;
+				if (end < nright && rightCmp.applyAsInt(end-1, end) > 0) throw new IncompatibleTypeException("Right dataframe is not sorted by "+String.join(", ", by));
+				do {
+					matched(i++, rows, j, end);
+				} while (i < nleft && leftCmp.applyAsInt(i-1, i) == 0);
+				j = end;
+			}
+		}
+	}
+
+	private IntBinaryOperator comparator(RDataframe x, RDataframe y) {
+		IntBinaryOperator[] cmps = new IntBinaryOperator[by.length];
+		for (int k=0; k<by.length; k++) {
+			try {
+				cmps[k] = ROrdering.comparator(x.get(by[k]), y.get(by[k]));
+			} catch (IncompatibleTypeException e) {
+				throw new IncompatibleTypeException("Cannot join on "+by[k]+": "+e.getMessage());
+			}
+		}
+		if (cmps.length == 1) return cmps[0];
+		return (a,b) -> {
+			for (IntBinaryOperator cmp: cmps) {
+				int c = cmp.applyAsInt(a, b);
+				if (c != 0) return c;
+			}
+			return 0;
+		};
+	}
+
+	private void matched(int leftRow, int[] rows, int from, int to) {
+		switch (type) {
+		case INNER:
+		case LEFT:
+			for (int k=from; k<to; k++) emit(leftRow, rows[k]);
+			break;
+		case SEMI:
+			emit(leftRow, -1);
+			break;
+		case ANTI:
+			break;
+		}
+	}
+
+	private void unmatched(int leftRow) {
+		if (type == JoinType.LEFT || type == JoinType.ANTI) emit(leftRow, -1);
+	}
+
+	private void emit(int leftRow, int rightRow) {
+		if (size == leftRows.length) {
+			leftRows = Arrays.copyOf(leftRows, size + (size >> 1) + 1);
+			rightRows = Arrays.copyOf(rightRows, leftRows.length);
+		}
+		leftRows[size] = leftRow;
+		rightRows[size] = rightRow;
+		size++;
+	}
+
+	private RDataframe result() {
+		int[] lrows = Arrays.copyOf(leftRows, size);
+		if (type == JoinType.SEMI || type == JoinType.ANTI) return left.subset(lrows);
+		int[] rrows = Arrays.copyOf(rightRows, size);
+
+		LinkedHashSet<String> keys = new LinkedHashSet<>(Arrays.asList(by));
+		LinkedHashSet<String> both = new LinkedHashSet<>(left.keySet());
+		both.retainAll(right.keySet());
+		both.removeAll(keys);
+
+		RDataframe out = new RDataframe();
+		Map<String,String> renamed = new HashMap<>();
+		left.forEach((k,v) -> {
+			String name = both.contains(k) ? k+".x" : k;
+			renamed.put(k, name);
+			out.put(name, v.subset(lrows));
+		});
+		right.forEach((k,v) -> {
+			if (keys.contains(k)) return;
+			out.put(both.contains(k) ? k+".y" : k, v.subset(rrows));
+		});
+		out.groupBy(Arrays.stream(left.getGroups()).map(renamed::get).toArray(String[]::new));
+		return out;
+	}
+
+	/**
+	 * Assigns codes to the elements of two vectors such that equal values (including NA) share a code in both.
+	 * @return the number of distinct codes
+	 */
+	private static int jointCodes(String col, RVector<?> left, RVector<?> right, int[] leftOut, int[] rightOut) {
+		if (left.getClass() != right.getClass()) throw new IncompatibleTypeException(
+				"Cannot join on "+col+" as it is a "+left.getClass().getSimpleName()+" in one dataframe and a "+right.getClass().getSimpleName()+" in the other");
+		if (left instanceof RNumericVector) {
+			LongIntHashMap map = new LongIntHashMap();
+			RNumericVector r = (RNumericVector) right;
+			RNumericVector l = (RNumericVector) left;
+			for (int i=0; i<rightOut.length; i++) rightOut[i] = map.putIfAbsent(r.groupingKey(i), map.size());
+			for (int i=0; i<leftOut.length; i++) leftOut[i] = map.putIfAbsent(l.groupingKey(i), map.size());
+			return map.size();
+		}
+		if (left instanceof RFactorVector) {
+			// factors match on their labels, as the levels of the two vectors may differ
+			HashMap<String,Integer> map = new HashMap<>();
+			factorCodes((RFactorVector) right, map, rightOut);
+			factorCodes((RFactorVector) left, map, leftOut);
+			return map.size()+1;
+		}
+		if (left instanceof RIntBackedVector) {
+			LongIntHashMap map = new LongIntHashMap();
+			int[] r = ((RIntBackedVector<?>) right).values;
+			int[] l = ((RIntBackedVector<?>) left).values;
+			for (int i=0; i<rightOut.length; i++) rightOut[i] = map.putIfAbsent(r[i], map.size());
+			for (int i=0; i<leftOut.length; i++) leftOut[i] = map.putIfAbsent(l[i], map.size());
+			return map.size();
+		}
+		if (left instanceof RCharacterVector) {
+			HashMap<String,Integer> map = new HashMap<>();
+			stringCodes((RCharacterVector) right, map, rightOut);
+			stringCodes((RCharacterVector) left, map, leftOut);
+			return map.size();
+		}
+		if (left instanceof RUntypedNaVector) {
+			Arrays.fill(leftOut, 0);
+			Arrays.fill(rightOut, 0);
+			return 1;
+		}
+		throw new IncompatibleTypeException("Cannot join on "+col+" which is a "+left.getClass().getSimpleName());
+	}
+
+	// NA factors are given the code 0 and labels are coded from 1. Factor codes below 1 are not valid levels.
+	private static void factorCodes(RFactorVector vector, HashMap<String,Integer> map, int[] out) {
+		int[] byLevel = new int[vector.nlevels()+1];
+		for (int c=1; c<byLevel.length; c++) byLevel[c] = code(map, vector.label(c)) + 1;
+		for (int i=0; i<out.length; i++) {
+			int value = vector.values[i];
+			if (value == RIntBackedVector.NA_VALUE) out[i] = 0;
+			else if (value < 1) throw new IncompatibleTypeException("Factor code "+value+" at row "+(i+1)+" is not a valid level");
+			else out[i] = value < byLevel.length ? byLevel[value] : code(map, vector.label(value)) + 1;
+		}
+	}
+
+	private static void stringCodes(RCharacterVector vector, HashMap<String,Integer> map, int[] out) {
+		if (vector.isDictionaryEncoded()) {
+			// code each dictionary entry once
+			int[] byEntry = new int[vector.dictionarySize];
+			for (int c=0; c<byEntry.length; c++) byEntry[c] = code(map, vector.dictionary[c]);
+			int na = -1;
+			for (int i=0; i<out.length; i++) {
+				int c = vector.codes[i];
+				if (c == RCharacterVector.NA_CODE) {
+					if (na == -1) na = code(map, null);
+					out[i] = na;
+				} else {
+					out[i] = byEntry[c];
+				}
+			}
+		} else {
+			for (int i=0; i<out.length; i++) out[i] = code(map, vector.values[i]);
+		}
+	}
+
+	private static int code(HashMap<String,Integer> map, String value) {
+		Integer code = map.putIfAbsent(value, map.size());
+		return code == null ? map.size()-1 : code;
+	}
+}
@@ -0,0 +1,361 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import uk.co.terminological.rjava.IncompatibleTypeException;
+import uk.co.terminological.rjava.NameNotFoundException;
+
+/**
+ * A pipeline of dataframe operations which is recorded rather than executed, created by {@link RDataframe#lazy()}.
+ * When the result is {@link #collect()}ed the plan is optimised and run once against the source dataframe:
+ * <ul>
+ * <li>filters are moved ahead of the other operations where possible and combined, so that the rows are selected
+ * before any columns are copied</li>
+ * <li>only the columns which are needed for the result are taken from the source, and mutations of columns which
+ * are not in the result are skipped</li>
+ * <li>consecutive mutations of the same column are fused into a single pass</li>
+ * </ul>
+ * The result is the same as running the operations eagerly, except that the source dataframe is never modified.
+ * A lazy dataframe is immutable and each operation returns a new one.
+ * <pre>
+ * RDataframe out = df.lazy()
+ * 	.mutate("price", RNumeric.class, p -&gt; RNumeric.from(p.get()*1.2))
+ * 	.filter(RNamedPredicate.in("cut", "Ideal", "Premium"))
+ * 	.select("cut","price")
+ * 	.collect();
+ * </pre>
+ * @author terminological
+ *
+ */
+public class RLazyDataframe {
+
+	private final RDataframe source;
+	private final List<Op> ops;
+
+	RLazyDataframe(RDataframe source) {
+		this(source, Collections.emptyList());
+	}
+
+	private RLazyDataframe(RDataframe source, List<Op> ops) {
+		this.source = source;
+		this.ops = ops;
+	}
+
+	private RLazyDataframe with(Op op) {
+		List<Op> tmp = new ArrayList<>(ops);
+		tmp.add(op);
+		return new RLazyDataframe(source, Collections.unmodifiableList(tmp));
+	}
+
+	public RLazyDataframe filter(RNamedPredicate<?>... tests) {
+		return with(new Filter(Arrays.asList(tests)));
+	}
+
+	public <Y extends RPrimitive> RLazyDataframe filter(String name, Class<Y> type, Predicate<Y> predicate) {
+		return filter(RNamedPredicate.from(name, type, predicate));
+	}
+
+	public RLazyDataframe filter(RNamedPrimitives match) {
+		return filter(match.entrySet().stream()
+				.map(e -> RNamedPredicate.from(e.getKey(), (RPrimitive p) -> p.equals(e.getValue())))
+				.toArray(RNamedPredicate[]::new));
+	}
+
+	public RLazyDataframe select(String... columns) {
+		return with(new Select(Arrays.asList(columns), false));
+	}
+
+	public RLazyDataframe drop(String... columns) {
+		return with(new Select(Arrays.asList(columns), true));
+	}
+
+	public RLazyDataframe rename(String to, String from) {
+		return with(new Rename(to, from));
+	}
+
+	public <X extends RPrimitive,Y extends RPrimitive> RLazyDataframe mutate(String columnName, Function<X,Y> mapping) {
+		return with(new Mutate(columnName, mapping));
+	}
+
+	public <X extends RPrimitive,Y extends RPrimitive> RLazyDataframe mutate(String columnName, Class<X> inputType, Function<X,Y> mapping) {
+		return mutate(columnName, mapping);
+	}
+
+	public RLazyDataframe groupBy(String... groups) {
+		return with(new GroupBy(groups, false));
+	}
+
+	public RLazyDataframe groupByAdditional(String... groups) {
+		return with(new GroupBy(groups, true));
+	}
+
+	public RLazyDataframe ungroup() {
+		return groupBy();
+	}
+
+	/**
+	 * Optimise and run the plan.
+	 * @return a new dataframe
+	 */
+	public RDataframe collect() {
+		List<Op> plan = optimise();
+		// the first operation is always a projection, so the operations never modify the source
+		RDataframe out = source;
+		for (Op op: plan) out = op.apply(out);
+		return out;
+	}
+
+	/**
+	 * @return a description of the optimised plan
+	 */
+	public String explain() {
+		return optimise().stream().map(Object::toString).collect(Collectors.joining("\n"));
+	}
+
+	public String toString() {
+		return "lazy dataframe:\n"+explain();
+	}
+
+	// ---- optimisation ----
+
+	private List<Op> optimise() {
+		validate();
+		List<Op> plan = pushDownFilters(ops);
+		plan = fuseMutates(plan);
+		return project(plan);
+	}
+
+	// Check each operation refers to columns which exist at that point, so errors are the same as eager execution
+	private void validate() {
+		State state = new State(source);
+		for (Op op: ops) state = op.check(state);
+	}
+
+	// Move each filter ahead of the operations it does not depend on, merging it with any filter it meets
+	private static List<Op> pushDownFilters(List<Op> ops) {
+		List<Op> out = new ArrayList<>();
+		for (Op op: ops) {
+			if (!(op instanceof Filter)) {
+				out.add(op);
+				continue;
+			}
+			Filter filter = (Filter) op;
+			int i = out.size();
+			while (i > 0) {
+				Op prev = out.get(i-1);
+				if (prev instanceof Filter) {
+					out.set(i-1, ((Filter) prev).and(filter));
+					filter = null;
+					break;
+				}
+				if (prev instanceof Rename) {
+					filter = filter.beforeRename((Rename) prev);
+				} else if (prev instanceof Mutate) {
+					if (filter.columns().contains(((Mutate) prev).column)) break;
+				}
+				// selects and groupings do not change rows or values
+				i--;
+			}
+			if (filter != null) out.add(i, filter);
+		}
+		return out;
+	}
+
+	// Compose adjacent mutations of the same column
+	private static List<Op> fuseMutates(List<Op> ops) {
+		List<Op> out = new ArrayList<>();
+		for (Op op: ops) {
+			Op prev = out.isEmpty() ? null : out.get(out.size()-1);
+			if (op instanceof Mutate && prev instanceof Mutate && ((Mutate) prev).column.equals(((Mutate) op).column)) {
+				out.set(out.size()-1, ((Mutate) prev).andThen((Mutate) op));
+			} else {
+				out.add(op);
+			}
+		}
+		return out;
+	}
+
+	// Work backwards from the result to find the columns needed from the source, dropping mutations of columns
+	// which are not needed, and start the plan with a selection of the needed columns.
+	private List<Op> project(List<Op> ops) {
+		List<State> states = new ArrayList<>();
+		State state = new State(source);
+		states.add(state);
+		for (Op op: ops) {
+			state = op.check(state);
+			states.add(state);
+		}
+		Set<String> needed = new LinkedHashSet<>(state.columns);
+		List<Op> out = new ArrayList<>();
+		for (int i=ops.size()-1; i>=0; i--) {
+			Op op = ops.get(i);
+			if (op instanceof Mutate && !needed.contains(((Mutate) op).column)) continue;
+			needed = op.needs(needed, states.get(i));
+			out.add(0, op);
+		}
+		List<String> columns = source.columnNames().stream().filter(needed::contains).collect(Collectors.toList());
+		out.add(0, new Project(columns));
+		return out;
+	}
+
+	// The columns and grouping of the dataframe at a point in the plan
+	private static class State {
+		final List<String> columns;
+		final List<String> groups;
+		State(List<String> columns, List<String> groups) {
+			this.columns = columns;
+			this.groups = groups;
+		}
+		State(RDataframe df) {
+			this(df.columnNames(), Arrays.asList(df.getGroups()));
+		}
+		void require(String column) {
+			if (!columns.contains(column)) throw new NameNotFoundException(column);
+		}
+	}
+
+	// ---- operations ----
+
+	private static abstract class Op {
+		abstract RDataframe apply(RDataframe df);
+		// the columns and groups after this operation
+		abstract State check(State before);
+		// the columns needed before this operation to produce the given columns after it
+		abstract Set<String> needs(Set<String> after, State before);
+	}
+
+	private static class Filter extends Op {
+		final List<RNamedPredicate<?>> tests;
+		Filter(List<RNamedPredicate<?>> tests) {this.tests = tests;}
+		Set<String> columns() {return tests.stream().map(RNamedPredicate::name).collect(Collectors.toSet());}
+		Filter and(Filter other) {
+			List<RNamedPredicate<?>> tmp = new ArrayList<>(tests);
+			tmp.addAll(other.tests);
+			return new Filter(tmp);
+		}
+		Filter beforeRename(Rename rename) {
+			return new Filter(tests.stream()
+					.map(t -> t.name().equals(rename.to) ? t.renamed(rename.from) : t)
+					.collect(Collectors.toList()));
+		}
+		RDataframe apply(RDataframe df) {return df.filter(tests.toArray(new RNamedPredicate<?>[0]));}
+		State check(State before) {
+			tests.forEach(t -> before.require(t.name()));
+			return before;
+		}
+		Set<String> needs(Set<String> after, State before) {
+			Set<String> out = new LinkedHashSet<>(after);
+			out.addAll(columns());
+			return out;
+		}
+		public String toString() {return "filter("+tests.stream().map(RNamedPredicate::name).collect(Collectors.joining(", "))+")";}
+	}
+
+	// Take columns from the source in their original order
+	private static class Project extends Op {
+		final List<String> columns;
+		Project(List<String> columns) {this.columns = columns;}
+		RDataframe apply(RDataframe df) {return df.project(columns);}
+		State check(State before) {
+			List<String> groups = before.groups.stream().filter(columns::contains).collect(Collectors.toList());
+			return new State(columns, groups);
+		}
+		Set<String> needs(Set<String> after, State before) {return after;}
+		public String toString() {return "project("+String.join(", ", columns)+")";}
+	}
+
+	private static class Select extends Op {
+		final List<String> columns;
+		final boolean drop;
+		Select(List<String> columns, boolean drop) {this.columns = columns; this.drop = drop;}
+		RDataframe apply(RDataframe df) {
+			String[] tmp = columns.toArray(new String[0]);
+			return drop ? df.drop(tmp) : df.select(tmp);
+		}
+		State check(State before) {
+			// as RDataframe.select grouping columns are always kept
+			LinkedHashSet<String> cols = new LinkedHashSet<>(before.groups);
+			if (drop) {
+				cols.addAll(before.columns);
+				cols.removeAll(columns);
+				cols.addAll(before.groups);
+			} else {
+				cols.addAll(columns);
+			}
+			cols.retainAll(before.columns);
+			return new State(new ArrayList<>(cols), before.groups);
+		}
+		Set<String> needs(Set<String> after, State before) {
+			Set<String> out = new LinkedHashSet<>(after);
+			out.addAll(before.groups);
+			return out;
+		}
+		public String toString() {return (drop ? "drop(" : "select(")+String.join(", ", columns)+")";}
+	}
+
+	private static class Rename extends Op {
+		final String to;
+		final String from;
+		Rename(String to, String from) {this.to = to; this.from = from;}
+		RDataframe apply(RDataframe df) {return df.rename(to, from);}
+		State check(State before) {
+			if (from.equals(to)) return before;
+			before.require(from);
+			if (before.columns.contains(to)) throw new IncompatibleTypeException("Column name '"+to+"' already exists in dataframe");
+			List<String> cols = new ArrayList<>(before.columns);
+			cols.remove(from);
+			cols.add(to);
+			// renaming copies the dataframe without its grouping
+			return new State(cols, Collections.emptyList());
+		}
+		Set<String> needs(Set<String> after, State before) {
+			Set<String> out = new LinkedHashSet<>(after);
+			if (out.remove(to)) out.add(from);
+			return out;
+		}
+		public String toString() {return "rename("+to+" = "+from+")";}
+	}
+
+	private static class Mutate extends Op {
+		final String column;
+		@SuppressWarnings("rawtypes")
+		final Function mapping;
+		Mutate(String column, Function<?,?> mapping) {this.column = column; this.mapping = mapping;}
+		@SuppressWarnings("unchecked")
+		Mutate andThen(Mutate next) {return new Mutate(column, mapping.andThen(next.mapping));}
+		@SuppressWarnings("unchecked")
+		RDataframe apply(RDataframe df) {return df.mutate(column, mapping);}
+		State check(State before) {
+			before.require(column);
+			return before;
+		}
+		Set<String> needs(Set<String> after, State before) {return after;}
+		public String toString() {return "mutate("+column+")";}
+	}
+
+	private static class GroupBy extends Op {
+		final String[] groups;
+		final boolean additional;
+		GroupBy(String[] groups, boolean additional) {this.groups = groups; this.additional = additional;}
+		RDataframe apply(RDataframe df) {return additional ? df.groupByAdditional(groups) : df.groupBy(groups);}
+		State check(State before) {
+			LinkedHashSet<String> tmp = new LinkedHashSet<>(additional ? before.groups : Collections.emptyList());
+			Arrays.stream(groups).filter(before.columns::contains).forEach(tmp::add);
+			return new State(before.columns, new ArrayList<>(tmp));
+		}
+		Set<String> needs(Set<String> after, State before) {
+			Set<String> out = new LinkedHashSet<>(after);
+			Arrays.stream(groups).filter(before.columns::contains).forEach(out::add);
+			return out;
+		}
+		public String toString() {return (additional ? "groupByAdditional(" : "groupBy(")+String.join(", ", groups)+")";}
+	}
+}
@@ -2,6 +2,7 @@ package uk.co.terminological.rjava.types;
 
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.RDataType;
@@ -27,21 +28,58 @@ import uk.co.terminological.rjava.RObjectVisitor;
 		}//,
 		//JNIType = "[I"
 	)
-public class RLogicalVector extends RVector<RLogical> implements JNIPrimitive {
+public class RLogicalVector extends RIntBackedVector<RLogical> implements JNIPrimitive {
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
 	public RLogicalVector(int[] primitives) {
-		for (int i=0; i<primitives.length; i++) this.add(new RLogical(primitives[i]));
+		super(primitives.length);
+		// R logicals may be passed as any non zero integer for TRUE.
+		for (int i=0; i<primitives.length; i++) this.values[i] = normalise(primitives[i]);
+		this.size = primitives.length;
 	}
-	public RLogicalVector() {super();}
+	public RLogicalVector() {this(10);}
 	public RLogicalVector(int length) {super(length);}
 	public RLogicalVector(boolean[] array) {
 		super(array.length);
-		for (int i=0;i<array.length;i++) this.add(new RLogical(array[i] ? 1 : 0));
+		for (int i=0;i<array.length;i++) this.values[i] = array[i] ? 1 : 0;
+		this.size = array.length;
 	}
+	/**
+	 * The values of the vector as passed to R. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the values with NA as the R NA value
+	 */
 	public int[] rPrimitive() {
-		return this.stream().mapToInt(ri -> ri.rPrimitive()).toArray();
+		return cachedPrimitive(int[].class, this::intValues);
+	}
+	
+	/**
+	 * Get the value at a given position in the form it is passed to R, without creating an {@link RLogical}.
+	 * @param index - the zero based index
+	 * @return 1 for TRUE, 0 for FALSE or the R NA value
+	 */
+	public int rPrimitive(int index) {
+		return intValue(index);
+	}
+	
+	private static int normalise(int value) {
+		return value == NA_VALUE ? NA_VALUE : (value != 0 ? 1 : 0);
+	}
+	
+	@Override
+	protected RLogical box(int value) {
+		return new RLogical(value);
+	}
+	
+	@Override
+	protected RLogicalVector emptyLike(int capacity) {
+		return new RLogicalVector(capacity);
+	}
+	
+	@Override
+	protected int unbox(RLogical element) {
+		return element == null ? RLogical.NA_VALUE : element.rPrimitive();
 	}
 	
 	@Override
@@ -58,12 +96,12 @@ public class RLogicalVector extends RVector<RLogical> implements JNIPrimitive {
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Boolean> get() {
-		return this.stream().map(ri -> ri.get());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? null : values[i] != 0);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<Boolean>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> values[i] == NA_VALUE ? Optional.empty() : Optional.of(values[i] != 0));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -76,4 +114,4 @@ public class RLogicalVector extends RVector<RLogical> implements JNIPrimitive {
 		return new RLogicalVector();
 	}
 	public void fillNA(int length) {this.fill(RLogical.NA, length);}
-}
\ No newline at end of file
+}
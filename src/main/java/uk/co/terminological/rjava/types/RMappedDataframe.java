@@ -0,0 +1,232 @@
+package uk.co.terminological.rjava.types;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import uk.co.terminological.rjava.NameNotFoundException;
+
+/**
+ * A dataframe read from a file written by {@link RObject#writeRDS(java.io.FileOutputStream)} without loading it onto
+ * the heap. Numeric, integer, logical, date and factor columns, and the codes of dictionary encoded character
+ * columns, are memory mapped and read a range of rows at a time. Plain character columns are read from the file
+ * through an index of the position of their strings.
+ *
+ * Filters and selects produce further mapped dataframes, which hold the selected row numbers and column names.
+ * Filters are evaluated a chunk of rows at a time. Data is only copied onto the heap by {@link #pull(String)},
+ * {@link #chunk(int, int)} and {@link #collect()}, so a large file can be sent to R in parts with
+ * {@link #chunks(int)}.
+ * <pre>
+ * try (RMappedDataframe df = RMappedDataframe.open(Paths.get("cohort.rds"))) {
+ * 	RDataframe out = df.filter(RNamedPredicate.between("age", 18, 65)).select("id","age").collect();
+ * }
+ * </pre>
+ * The file must not be changed while it is open. Mapped memory is released when it is garbage collected, after the
+ * dataframe is closed.
+ * @author terminological
+ *
+ */
+public class RMappedDataframe implements Closeable {
+
+	// rows are read this many at a time
+	static final int CHUNK_ROWS = 1 << 16;
+
+	private final Source source;
+	private final List<String> names;
+	// the selected rows in ascending order, or null for all the rows of the file
+	private final int[] rows;
+
+	// the open file shared by all the dataframes filtered or selected from it
+	private static final class Source {
+		final FileChannel file;
+		final LinkedHashMap<String,RBinaryFormat.Column> columns = new LinkedHashMap<>();
+		final List<String> groups = new ArrayList<>();
+		final int nrow;
+
+		Source(FileChannel file) throws IOException {
+			this.file = file;
+			for (RBinaryFormat.Column c: RBinaryFormat.index(file, groups)) columns.put(c.name, c);
+			this.nrow = columns.isEmpty() ? 0 : columns.values().iterator().next().size;
+		}
+	}
+
+	private RMappedDataframe(Source source, List<String> names, int[] rows) {
+		this.source = source;
+		this.names = names;
+		this.rows = rows;
+	}
+
+	/**
+	 * Open a dataframe file
+	 * @param file - a file written by {@link RObject#writeRDS(java.io.FileOutputStream)} from an {@link RDataframe}
+	 * @return a dataframe of all the rows and columns of the file
+	 * @throws IOException if the file is not a dataframe in the columnar format of this version
+	 */
+	public static RMappedDataframe open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			Source source = new Source(channel);
+			return new RMappedDataframe(source, Collections.unmodifiableList(new ArrayList<>(source.columns.keySet())), null);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int nrow() {
+		return rows == null ? source.nrow : rows.length;
+	}
+
+	public int ncol() {
+		return names.size();
+	}
+
+	public List<String> columnNames() {
+		return names;
+	}
+
+	public String[] getGroups() {
+		return source.groups.stream().filter(names::contains).toArray(String[]::new);
+	}
+
+	public Class<? extends RPrimitive> getTypeOfColumn(String name) {
+		return column(name).primitiveType();
+	}
+
+	private RBinaryFormat.Column column(String name) {
+		if (!names.contains(name)) throw new NameNotFoundException(name);
+		return source.columns.get(name);
+	}
+
+	/**
+	 * Select columns, keeping the grouping columns, as {@link RDataframe#select(String...)}
+	 * @param columns - the column names, which are ignored if not present
+	 * @return a mapped dataframe of the same rows
+	 */
+	public RMappedDataframe select(String... columns) {
+		LinkedHashSet<String> cols = new LinkedHashSet<>(Arrays.asList(getGroups()));
+		cols.addAll(Arrays.asList(columns));
+		cols.retainAll(names);
+		return new RMappedDataframe(source, Collections.unmodifiableList(new ArrayList<>(cols)), rows);
+	}
+
+	/**
+	 * Filter the rows, as {@link RDataframe#filter(RNamedPredicate...)}. The tested columns are read a chunk of rows at
+	 * a time, and only the numbers of the selected rows are kept.
+	 * @param tests - a set of tests which must all pass
+	 * @return a mapped dataframe of the rows which pass
+	 */
+	public RMappedDataframe filter(RNamedPredicate<?>... tests) {
+		List<RBinaryFormat.Column> tested = new ArrayList<>();
+		for (RNamedPredicate<?> test: tests) tested.add(column(test.name()));
+		int[] out = new int[Math.min(nrow(), CHUNK_ROWS)];
+		int n = 0;
+		for (int start = 0; start < nrow(); start += CHUNK_ROWS) {
+			int end = Math.min(nrow(), start + CHUNK_ROWS);
+			BitSet pass = new BitSet(end-start);
+			pass.set(0, end-start);
+			for (int i=0; i<tests.length; i++) pass.and(tests[i].matches(read(tested.get(i), start, end)));
+			for (int j = pass.nextSetBit(0); j >= 0; j = pass.nextSetBit(j+1)) {
+				if (n == out.length) out = Arrays.copyOf(out, out.length + (out.length >> 1) + 1);
+				out[n++] = rows == null ? start + j : rows[start + j];
+			}
+		}
+		return new RMappedDataframe(source, names, Arrays.copyOf(out, n));
+	}
+
+	public <Y extends RPrimitive> RMappedDataframe filter(String name, Class<Y> type, Predicate<Y> predicate) {
+		return filter(RNamedPredicate.from(name, type, predicate));
+	}
+
+	/**
+	 * @return the selected rows of a column, on the heap
+	 */
+	public RVector<?> pull(String col) {
+		return read(column(col), 0, nrow());
+	}
+
+	public <Y extends RVector<?>> Y pull(String col, Class<Y> vectorClass) {
+		return pull(col).as(vectorClass);
+	}
+
+	/**
+	 * @param start - the first row, zero based
+	 * @param end - the row after the last row
+	 * @return a dataframe on the heap with the given rows of the selected columns
+	 */
+	public RDataframe chunk(int start, int end) {
+		if (start < 0 || end > nrow() || start > end) throw new IndexOutOfBoundsException("Rows "+start+" to "+end+" of "+nrow());
+		RDataframe out = new RDataframe();
+		for (String name: names) out.put(name, read(source.columns.get(name), start, end));
+		out.groupBy(getGroups());
+		return out;
+	}
+
+	/**
+	 * @param chunkRows - the number of rows of each dataframe
+	 * @return the selected rows as a sequence of dataframes on the heap, each of which is read when it is reached
+	 */
+	public Stream<RDataframe> chunks(int chunkRows) {
+		if (chunkRows < 1) throw new IllegalArgumentException("chunkRows must be positive");
+		int n = (nrow() + chunkRows - 1) / chunkRows;
+		return IntStream.range(0, n).mapToObj(i -> chunk(i * chunkRows, Math.min(nrow(), (i+1) * chunkRows)));
+	}
+
+	/**
+	 * @return the selected rows and columns as a dataframe on the heap
+	 */
+	public RDataframe collect() {
+		return chunk(0, nrow());
+	}
+
+	// Read rows start to end of the selection. Selected rows which are close together are read as a range of the file.
+	private RVector<?> read(RBinaryFormat.Column c, int start, int end) {
+		try {
+			if (rows == null) return RBinaryFormat.readRange(source.file, c, start, end);
+			RVector<?> out = RVector.empty(c.primitiveType(), end-start);
+			for (int k = start; k < end;) {
+				int first = rows[k];
+				int last = k;
+				while (last+1 < end && rows[last+1] < first + CHUNK_ROWS) last++;
+				int[] positions = new int[last-k+1];
+				for (int i=0; i<positions.length; i++) positions[i] = rows[k+i] - first;
+				out = out.addAllUnsafe(RBinaryFormat.readRange(source.file, c, first, rows[last]+1).subset(positions));
+				k = last+1;
+			}
+			return out;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read column "+c.name, e);
+		}
+	}
+
+	/**
+	 * Close the file. This closes all the dataframes filtered or selected from the same file.
+	 */
+	@Override
+	public void close() throws IOException {
+		source.file.close();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder("mapped dataframe: "+nrow()+" rows");
+		for (Map.Entry<String,RBinaryFormat.Column> c: source.columns.entrySet()) {
+			if (names.contains(c.getKey())) out.append("\n\t"+c.getKey()+": "+c.getValue().primitiveType().getSimpleName());
+		}
+		return out.toString();
+	}
+}
@@ -1,26 +1,252 @@
 package uk.co.terminological.rjava.types;
 
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.function.DoublePredicate;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
+import uk.co.terminological.rjava.IncompatibleTypeException;
+
+/**
+ * A test of the values of a named column, for filtering dataframes. Tests may be defined on the {@link RPrimitive}
+ * values of a column, or using the primitive factory methods such as {@link #doubles(String, DoublePredicate)},
+ * {@link #between(String, double, double)} or {@link #in(String, String...)}, which test the values of the column
+ * as they are stored, without creating an object for each value. Primitive tests are not true for NA values
+ * (except {@link #isNa(String)}), as NA rows are dropped by dplyr::filter, and are split across cores for large columns.
+ *
+ * @param <X> the type of the column values
+ */
 public class RNamedPredicate<X extends RPrimitive> {
 
 	String name;
 	Predicate<X> predicate;
-	
+
+	// a test of the rows of a vector working directly on its storage, or null for tests of RPrimitive values
+	private RowTest rowTest;
+
 	public String name() {return name;}
 	public Predicate<X> predicate() {return predicate;}
-	
+
 	public RNamedPredicate(String name, Predicate<X> predicate) {
 		this.name = name;
 		this.predicate = predicate;
 	}
-	
+
+	private RNamedPredicate(String name, RowTest rowTest) {
+		this.name = name;
+		this.rowTest = rowTest;
+		// the boxed form applies the same test to a single element vector
+		this.predicate = x -> matches(RVector.singleton(x)).get(0);
+	}
+
+	private static RNamedPredicate<RPrimitive> primitive(String name, RowTest rowTest) {
+		return new RNamedPredicate<RPrimitive>(name, rowTest);
+	}
+
 	public static <Y extends RPrimitive> RNamedPredicate<Y> from(String name, Predicate<Y> predicate) {
 		return new RNamedPredicate<Y>(name,predicate);
 	}
-	
+
 	public static <Y extends RPrimitive> RNamedPredicate<Y> from(String name, Class<Y> type, Predicate<Y> predicate) {
 		return new RNamedPredicate<Y>(name,predicate);
 	}
-	
+
+	/**
+	 * A test of the values of a numeric or integer column as doubles
+	 */
+	public static RNamedPredicate<RPrimitive> doubles(String name, DoublePredicate predicate) {
+		return primitive(name, v -> {
+			if (v instanceof RNumericVector) {
+				double[] x = ((RNumericVector) v).values;
+				return i -> !isNaValue(x[i]) && predicate.test(x[i]);
+			}
+			if (v instanceof RIntegerVector) {
+				int[] x = ((RIntegerVector) v).values;
+				return i -> x[i] != RIntBackedVector.NA_VALUE && predicate.test(x[i]);
+			}
+			throw incompatible(name, v);
+		});
+	}
+
+	/**
+	 * A test of the values of an integer column, a logical column as 0 or 1, or a date column as days since 1970-01-01
+	 */
+	public static RNamedPredicate<RPrimitive> ints(String name, IntPredicate predicate) {
+		return primitive(name, v -> {
+			if (v instanceof RIntegerVector || v instanceof RLogicalVector || v instanceof RDateVector) {
+				int[] x = ((RIntBackedVector<?>) v).values;
+				return i -> x[i] != RIntBackedVector.NA_VALUE && predicate.test(x[i]);
+			}
+			throw incompatible(name, v);
+		});
+	}
+
+	/**
+	 * Values of a numeric or integer column between two limits inclusive, as dplyr::between
+	 */
+	public static RNamedPredicate<RPrimitive> between(String name, double from, double to) {
+		return doubles(name, x -> x >= from && x <= to);
+	}
+
+	/**
+	 * Values of a date column between two dates inclusive
+	 */
+	public static RNamedPredicate<RPrimitive> between(String name, LocalDate from, LocalDate to) {
+		long fromDay = from.toEpochDay();
+		long toDay = to.toEpochDay();
+		return primitive(name, v -> {
+			if (!(v instanceof RDateVector)) throw incompatible(name, v);
+			int[] x = ((RDateVector) v).values;
+			return i -> x[i] != RIntBackedVector.NA_VALUE && x[i] >= fromDay && x[i] <= toDay;
+		});
+	}
+
+	/**
+	 * Values of a character or factor column in a set of strings, as the R %in% operator. Null in the set matches NA.
+	 */
+	public static RNamedPredicate<RPrimitive> in(String name, String... values) {
+		HashSet<String> set = new HashSet<>(Arrays.asList(values));
+		return primitive(name, v -> {
+			if (v instanceof RCharacterVector) {
+				RCharacterVector c = (RCharacterVector) v;
+				if (c.isDictionaryEncoded()) {
+					// test each dictionary entry once
+					boolean[] byCode = new boolean[c.dictionarySize];
+					for (int k=0; k<byCode.length; k++) byCode[k] = set.contains(c.dictionary[k]);
+					boolean na = set.contains(null);
+					int[] codes = c.codes;
+					return i -> codes[i] == RCharacterVector.NA_CODE ? na : byCode[codes[i]];
+				}
+				String[] x = c.values;
+				return i -> set.contains(x[i]);
+			}
+			if (v instanceof RFactorVector) {
+				RFactorVector f = (RFactorVector) v;
+				boolean[] byCode = new boolean[f.nlevels()+1];
+				for (int k=1; k<byCode.length; k++) byCode[k] = set.contains(f.label(k));
+				boolean na = set.contains(null);
+				int[] x = f.values;
+				return i -> x[i] == RIntBackedVector.NA_VALUE ? na : (x[i] > 0 && x[i] < byCode.length && byCode[x[i]]);
+			}
+			throw incompatible(name, v);
+		});
+	}
+
+	/**
+	 * Values of an integer column in a set, as the R %in% operator. The R NA integer in the set matches NA.
+	 */
+	public static RNamedPredicate<RPrimitive> in(String name, int... values) {
+		LongIntHashMap set = new LongIntHashMap(values.length);
+		for (int value: values) set.putIfAbsent(value, 0);
+		return primitive(name, v -> {
+			if (!(v instanceof RIntegerVector)) throw incompatible(name, v);
+			int[] x = ((RIntegerVector) v).values;
+			return i -> set.get(x[i]) != LongIntHashMap.ABSENT;
+		});
+	}
+
+	/**
+	 * Values of a numeric column in a set, as the R %in% operator. The R NA value in the set matches NA.
+	 */
+	public static RNamedPredicate<RPrimitive> in(String name, double... values) {
+		LongIntHashMap set = new LongIntHashMap(values.length);
+		for (double value: values) set.putIfAbsent(RNumericVector.groupingKeyOf(value), 0);
+		return primitive(name, v -> {
+			if (!(v instanceof RNumericVector)) throw incompatible(name, v);
+			double[] x = ((RNumericVector) v).values;
+			return i -> set.get(RNumericVector.groupingKeyOf(x[i])) != LongIntHashMap.ABSENT;
+		});
+	}
+
+	/**
+	 * NA values of a column of any type, as R is.na(). NaN numeric values are included.
+	 */
+	public static RNamedPredicate<RPrimitive> isNa(String name) {
+		return primitive(name, RNamedPredicate::naTest);
+	}
+
+	/**
+	 * Values of a column of any type which are not NA (or NaN), as R !is.na()
+	 */
+	public static RNamedPredicate<RPrimitive> notNa(String name) {
+		return primitive(name, v -> naTest(v).negate());
+	}
+
+	private static IntPredicate naTest(RVector<?> v) {
+		if (v instanceof RNumericVector) {
+			double[] x = ((RNumericVector) v).values;
+			return i -> Double.isNaN(x[i]);
+		}
+		if (v instanceof RIntBackedVector) {
+			int[] x = ((RIntBackedVector<?>) v).values;
+			return i -> x[i] == RIntBackedVector.NA_VALUE;
+		}
+		if (v instanceof RUntypedNaVector) {
+			return i -> true;
+		}
+		return v::isNa;
+	}
+
+	/**
+	 * @return the same test of a differently named column
+	 */
+	RNamedPredicate<X> renamed(String name) {
+		RNamedPredicate<X> out = new RNamedPredicate<X>(name, this.predicate);
+		out.rowTest = this.rowTest;
+		return out;
+	}
+
+	/**
+	 * Test every value of a vector.
+	 * @param vector - the column to test
+	 * @return a bitset with the rows which pass the test set
+	 */
+	BitSet matches(RVector<?> vector) {
+		if (rowTest == null) return vector.matches(predicate);
+		return evaluate(vector.size(), rowTest.forVector(vector));
+	}
+
+	// columns at least this long are tested in parallel
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	// the number of 64 bit words of the result filled by each parallel task
+	private static final int CHUNK_WORDS = 1 << 10;
+
+	// Each task fills whole 64 bit words of the result so tasks never write to the same word
+	private static BitSet evaluate(int size, IntPredicate test) {
+		long[] words = new long[(size + 63) >>> 6];
+		int nchunks = (words.length + CHUNK_WORDS - 1) / CHUNK_WORDS;
+		IntStream chunks = IntStream.range(0, nchunks);
+		if (size >= PARALLEL_THRESHOLD) chunks = chunks.parallel();
+		chunks.forEach(c -> {
+			int toWord = Math.min(words.length, (c+1) * CHUNK_WORDS);
+			for (int w=c*CHUNK_WORDS; w<toWord; w++) {
+				int base = w << 6;
+				int end = Math.min(size, base + 64);
+				long bits = 0;
+				for (int i=base; i<end; i++) {
+					if (test.test(i)) bits |= 1L << (i - base);
+				}
+				words[w] = bits;
+			}
+		});
+		return BitSet.valueOf(words);
+	}
+
+	private static boolean isNaValue(double x) {
+		return Double.doubleToRawLongBits(x) == RNumeric.NA_VALUE_LONG;
+	}
+
+	private static IncompatibleTypeException incompatible(String name, RVector<?> vector) {
+		return new IncompatibleTypeException("Column "+name+" is a "+vector.getClass().getSimpleName()+" which cannot be tested with this predicate");
+	}
+
+	// creates a test of the rows of a specific vector
+	@FunctionalInterface
+	interface RowTest {
+		IntPredicate forVector(RVector<?> vector);
+	}
 }
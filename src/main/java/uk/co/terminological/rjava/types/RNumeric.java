@@ -39,7 +39,7 @@ public class RNumeric implements RPrimitive, JNIPrimitive  {
 	
 	Double self;
 	
-	private static final long NA_VALUE_LONG = 0x7ff00000000007a2L;
+	static final long NA_VALUE_LONG = 0x7ff00000000007a2L;
 	static final double NA_VALUE = Double.longBitsToDouble(NA_VALUE_LONG);
 	public static final RNumeric NA = new RNumeric(NA_VALUE);
 	
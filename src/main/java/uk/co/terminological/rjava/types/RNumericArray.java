@@ -43,7 +43,7 @@ public class RNumericArray extends RArray<RNumeric> implements JNIPrimitive {
 		int elements = 1;
 		for (int dim: dimensions) elements *= dim;
 		if (primitives.length != elements) throw new IndexOutOfBoundsException("expected "+elements+" elements but found "+primitives.length);
-		for (int i=0; i<primitives.length; i++) this.vector.add(new RNumeric(primitives[i]));
+		this.vector = new RNumericVector(primitives);
 		this.dimensions = dimensions;
 	}
 	
@@ -59,7 +59,7 @@ public class RNumericArray extends RArray<RNumeric> implements JNIPrimitive {
 	}
 
 	public double[] rPrimitive() {
-		return this.vector.stream().mapToDouble(ri -> ri.rPrimitive()).toArray();
+		return this.vector.rPrimitive();
 	}
 	
 	public int[] rDim() {
@@ -1,8 +1,10 @@
 package uk.co.terminological.rjava.types;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import uk.co.terminological.rjava.RDataType;
@@ -32,16 +34,156 @@ public class RNumericVector extends RVector<RNumeric> implements JNIPrimitive {
 	
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	
+	// values are held as R primitives, NA values being the R NA bit pattern (RNumeric.NA_VALUE).
+	// RNumeric instances are only created when an element is accessed
+	double[] values;
+	int size;
+	
 	public RNumericVector(double[] primitives) {
-		for (int i=0; i<primitives.length; i++) this.add(new RNumeric(primitives[i]));
+		this.values = Arrays.copyOf(primitives, primitives.length);
+		this.size = primitives.length;
+	}
+	public RNumericVector() {this(10);}
+	public RNumericVector(int length) {
+		this.values = new double[length];
+		this.size = 0;
 	}
-	public RNumericVector() {super();}
-	public RNumericVector(int length) {super(length);}
 	public RNumericVector(List<RNumeric> subList) {
-		super(subList);
+		this(subList.size());
+		subList.forEach(this::add);
+	}
+	// a vector which takes ownership of an array of R primitives without copying it
+	static RNumericVector wrap(double[] primitives) {
+		RNumericVector out = new RNumericVector(0);
+		out.values = primitives;
+		out.size = primitives.length;
+		return out;
 	}
+	/**
+	 * The values of the vector as passed to R. This array is reused until the vector is modified and must not 
+	 * be changed by the caller.
+	 * @return the values with NA as the R NA value
+	 */
 	public double[] rPrimitive() {
-		return this.stream().mapToDouble(ri -> ri.rPrimitive()).toArray();
+		return cachedPrimitive(double[].class, () -> Arrays.copyOf(values, size));
+	}
+	
+	/**
+	 * Get the value at a given position in the form it is passed to R, without creating an {@link RNumeric}.
+	 * @param index - the zero based index
+	 * @return a double which may be the R NA value
+	 */
+	public double rPrimitive(int index) {
+		rangeCheck(index);
+		return values[index];
+	}
+	
+	@Override
+	public boolean isNa(int index) {
+		return Double.doubleToRawLongBits(rPrimitive(index)) == RNumeric.NA_VALUE_LONG;
+	}
+	
+	// a key for grouping on which equal values (including NA) agree. As in R and ROrdering, -0.0 is the same as 0.0
+	long groupingKey(int index) {
+		return groupingKeyOf(values[index]);
+	}
+	
+	static long groupingKeyOf(double value) {
+		long raw = Double.doubleToRawLongBits(value);
+		if (raw == RNumeric.NA_VALUE_LONG) return raw;
+		return value == 0.0 ? 0L : Double.doubleToLongBits(value);
+	}
+	
+	@Override
+	public RNumericVector subset(int[] rows) {
+		RNumericVector out = new RNumericVector(rows.length);
+		for (int i=0; i<rows.length; i++) out.values[i] = rows[i] < 0 ? RNumeric.NA_VALUE : rPrimitive(rows[i]);
+		out.size = rows.length;
+		return out;
+	}
+	
+	@Override
+	public RNumeric get(int index) {
+		return new RNumeric(rPrimitive(index));
+	}
+	
+	@Override
+	public RNumeric set(int index, RNumeric element) {
+		beforeModification();
+		RNumeric out = get(index);
+		values[index] = primitive(element);
+		invalidateCache();
+		return out;
+	}
+	
+	@Override
+	public void add(int index, RNumeric element) {
+		if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		if (index < size) beforeModification();
+		ensureCapacity(size+1);
+		System.arraycopy(values, index, values, index+1, size-index);
+		values[index] = primitive(element);
+		size++;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public RNumeric remove(int index) {
+		beforeModification();
+		RNumeric out = get(index);
+		System.arraycopy(values, index+1, values, index, size-index-1);
+		size--;
+		modCount++;
+		invalidateCache();
+		return out;
+	}
+	
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		beforeModification();
+		System.arraycopy(values, toIndex, values, fromIndex, size-toIndex);
+		size -= toIndex-fromIndex;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public boolean addAll(Collection<? extends RNumeric> c) {
+		if (!(c instanceof RNumericVector)) return super.addAll(c);
+		RNumericVector other = (RNumericVector) c;
+		int length = other.size;
+		ensureCapacity(size+length);
+		System.arraycopy(other.values, 0, values, size, length);
+		size += length;
+		modCount++;
+		invalidateCache();
+		return length > 0;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	private static double primitive(RNumeric element) {
+		return element == null ? RNumeric.NA_VALUE : element.rPrimitive();
+	}
+	
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(minCapacity, values.length + (values.length >> 1) + 1));
+		}
+	}
+	
+	@Override
+	public RNumericVector fill(RNumeric x, int length) {
+		ensureCapacity(size+length);
+		Arrays.fill(values, size, size+length, primitive(x));
+		size += length;
+		modCount++;
+		invalidateCache();
+		return this;
 	}
 	
 	@Override
@@ -58,12 +200,12 @@ public class RNumericVector extends RVector<RNumeric> implements JNIPrimitive {
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Double> get() {
-		return this.stream().map(r -> r.get());
+		return IntStream.range(0, size).mapToObj(i -> isNa(i) ? null : values[i]);
 	}
 	
 	@SuppressWarnings("unchecked")
 	public Stream<Optional<Double>> opt() {
-		return this.stream().map(s -> s.opt());
+		return IntStream.range(0, size).mapToObj(i -> isNa(i) ? Optional.empty() : Optional.of(values[i]));
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -78,6 +220,8 @@ public class RNumericVector extends RVector<RNumeric> implements JNIPrimitive {
 	public void fillNA(int length) {this.fill(RNumeric.NA, length);}
 	
 	public double[] javaPrimitive(double naValue) {
-		return this.stream().mapToDouble(ri -> ri.javaPrimitive(naValue)).toArray();
+		double[] out = new double[size];
+		for (int i=0; i<size; i++) out[i] = isNa(i) ? naValue : values[i];
+		return out;
 	} 
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package uk.co.terminological.rjava.types;
 
+import java.io.BufferedInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,7 +13,7 @@ import uk.co.terminological.rjava.RObjectVisitor;
 
 public interface RObject extends Serializable {
 
-	public static final long datatypeVersion = 1L;
+	public static final long datatypeVersion = 3L;
 	
 	/** Derives the R code representation of this object. This is used for some objects
 	 * as a wire serialisation ({@link RList} and {@link RNamedList}) to copy them accross to R.
@@ -24,7 +25,17 @@ public interface RObject extends Serializable {
 	
 	public <X> X accept(RObjectVisitor<X> visitor); 
 	
+	/**
+	 * Write this object to a file, to be read by {@link #readRDS(Class, InputStream)}. Dataframes and vectors are 
+	 * written in a columnar binary format, other objects with java serialisation.
+	 * @param os - the stream, which is closed when the object is written
+	 */
 	public default void writeRDS(FileOutputStream os) throws IOException {
+		if (RBinaryFormat.supports(this)) {
+			RBinaryFormat.write(this, os);
+			os.close();
+			return;
+		}
 		ObjectOutputStream oos = new ObjectOutputStream(os);
 		oos.writeObject(this);
 		oos.flush();
@@ -33,7 +44,13 @@ public interface RObject extends Serializable {
 	}
 	
 	public static <X extends RObject> X readRDS(Class<X> clazz, InputStream is) throws IOException {
-		ObjectInputStream ois = new ObjectInputStream(is);
+		InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+		if (RBinaryFormat.isFormat(in)) {
+			RObject out = RBinaryFormat.read(in);
+			if (!clazz.isInstance(out)) throw new IOException("Could not read class: "+clazz.getCanonicalName()+", found a "+out.getClass().getSimpleName());
+			return clazz.cast(out);
+		}
+		ObjectInputStream ois = new ObjectInputStream(in);
 		try {
 			@SuppressWarnings("unchecked")
 			X out = (X) ois.readObject();
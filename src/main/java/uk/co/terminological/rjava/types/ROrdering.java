@@ -0,0 +1,238 @@
+package uk.co.terminological.rjava.types;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+
+import uk.co.terminological.rjava.IncompatibleTypeException;
+
+/**
+ * Comparisons of vector elements by position, working directly on the primitive storage of each vector type
+ * without creating element objects. Values are ordered as R orders them, with NA values last. NA values compare
+ * equal to each other, and numeric NaN values are placed before NA. Strings are compared by unicode code point,
+ * which is the R ordering in the C locale.
+ * @author terminological
+ *
+ */
+final class ROrdering {
+
+	private ROrdering() {}
+
+	/**
+	 * @param left - a vector
+	 * @param right - a vector of the same type
+	 * @return a function comparing the element at the first argument position in the left vector with the
+	 * element at the second argument position in the right vector
+	 */
+	static IntBinaryOperator comparator(RVector<?> left, RVector<?> right) {
+		if (left.getClass() != right.getClass()) throw new IncompatibleTypeException(
+				"Cannot compare a "+left.getClass().getSimpleName()+" with a "+right.getClass().getSimpleName());
+		if (left instanceof RNumericVector) {
+			double[] x = ((RNumericVector) left).values;
+			double[] y = ((RNumericVector) right).values;
+			return (i,j) -> compareDouble(x[i], y[j]);
+		}
+		if (left instanceof RFactorVector) {
+			RFactorVector lf = (RFactorVector) left;
+			RFactorVector rf = (RFactorVector) right;
+			if (lf == rf || Arrays.equals(lf.rLevels(), rf.rLevels())) {
+				// factors are ordered by level
+				int[] x = lf.values;
+				int[] y = rf.values;
+				return (i,j) -> compareInt(x[i], y[j]);
+			}
+			String[] x = labels(lf);
+			String[] y = labels(rf);
+			return (i,j) -> compareString(x[i], y[j]);
+		}
+		if (left instanceof RIntBackedVector) {
+			int[] x = ((RIntBackedVector<?>) left).values;
+			int[] y = ((RIntBackedVector<?>) right).values;
+			return (i,j) -> compareInt(x[i], y[j]);
+		}
+		if (left instanceof RCharacterVector) {
+			RCharacterVector lc = (RCharacterVector) left;
+			RCharacterVector rc = (RCharacterVector) right;
+			if (lc == rc && lc.isDictionaryEncoded()) {
+				// compare the ranks of the dictionary entries rather than the strings
+				int[] rank = ranks(lc.dictionary, lc.dictionarySize);
+				int[] codes = lc.codes;
+				return (i,j) -> compareInt(
+						codes[i] == RCharacterVector.NA_CODE ? RIntBackedVector.NA_VALUE : rank[codes[i]],
+						codes[j] == RCharacterVector.NA_CODE ? RIntBackedVector.NA_VALUE : rank[codes[j]]);
+			}
+			return (i,j) -> compareString(lc.rPrimitive(i), rc.rPrimitive(j));
+		}
+		if (left instanceof RUntypedNaVector) {
+			return (i,j) -> 0;
+		}
+		throw new IncompatibleTypeException("Cannot order a "+left.getClass().getSimpleName());
+	}
+
+	/**
+	 * @param vector - a vector
+	 * @param descending - reverse the order of the values, but keep NA (and NaN) values last, as dplyr::desc
+	 * @return a function comparing two elements of the vector by position
+	 */
+	static IntBinaryOperator comparator(RVector<?> vector, boolean descending) {
+		IntBinaryOperator asc = comparator(vector, vector);
+		if (!descending) return asc;
+		IntPredicate missing;
+		if (vector instanceof RNumericVector) {
+			double[] x = ((RNumericVector) vector).values;
+			missing = i -> Double.isNaN(x[i]);
+		} else if (vector instanceof RIntBackedVector) {
+			int[] x = ((RIntBackedVector<?>) vector).values;
+			missing = i -> x[i] == RIntBackedVector.NA_VALUE;
+		} else {
+			missing = vector::isNa;
+		}
+		return (i,j) -> missing.test(i) || missing.test(j) ? asc.applyAsInt(i, j) : asc.applyAsInt(j, i);
+	}
+
+	// below this size ranges are sorted by insertion sort
+	private static final int INSERTION_SORT_THRESHOLD = 32;
+	// below this size ranges are not split into parallel tasks
+	private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+	/**
+	 * A stable sort of the positions 0 to n-1 by a comparator of positions.
+	 * @param n - the number of positions
+	 * @param cmp - a comparison of two positions
+	 * @param pool - a pool in which to sort in parallel, or null to sort in the calling thread
+	 * @return the positions in sorted order
+	 */
+	static int[] order(int n, IntBinaryOperator cmp, ForkJoinPool pool) {
+		int[] out = new int[n];
+		for (int i=0; i<n; i++) out[i] = i;
+		int[] tmp = out.clone();
+		if (pool == null || n < PARALLEL_THRESHOLD) {
+			mergeSort(tmp, out, 0, n, cmp);
+		} else {
+			try {
+				pool.submit(new SortTask(tmp, out, 0, n, cmp)).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted during sort", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		return out;
+	}
+
+	// sorts src[from,to) into dest[from,to). src and dest must start with the same contents and src is used as workspace.
+	private static void mergeSort(int[] src, int[] dest, int from, int to, IntBinaryOperator cmp) {
+		if (to - from < INSERTION_SORT_THRESHOLD) {
+			insertionSort(dest, from, to, cmp);
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(dest, src, from, mid, cmp);
+		mergeSort(dest, src, mid, to, cmp);
+		merge(src, dest, from, mid, to, cmp);
+	}
+
+	private static void insertionSort(int[] a, int from, int to, IntBinaryOperator cmp) {
+		for (int i=from+1; i<to; i++) {
+			int x = a[i];
+			int j = i-1;
+			while (j >= from && cmp.applyAsInt(a[j], x) > 0) {
+				a[j+1] = a[j];
+				j--;
+			}
+			a[j+1] = x;
+		}
+	}
+
+	// merges the sorted ranges src[from,mid) and src[mid,to) into dest, taking from the left range first on ties
+	private static void merge(int[] src, int[] dest, int from, int mid, int to, IntBinaryOperator cmp) {
+		if (cmp.applyAsInt(src[mid-1], src[mid]) <= 0) {
+			System.arraycopy(src, from, dest, from, to-from);
+			return;
+		}
+		for (int i=from, p=from, q=mid; i<to; i++) {
+			if (q >= to || (p < mid && cmp.applyAsInt(src[p], src[q]) <= 0)) dest[i] = src[p++];
+			else dest[i] = src[q++];
+		}
+	}
+
+	private static class SortTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final int[] src;
+		private final int[] dest;
+		private final int from;
+		private final int to;
+		private final IntBinaryOperator cmp;
+
+		SortTask(int[] src, int[] dest, int from, int to, IntBinaryOperator cmp) {
+			this.src = src;
+			this.dest = dest;
+			this.from = from;
+			this.to = to;
+			this.cmp = cmp;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from < PARALLEL_THRESHOLD) {
+				mergeSort(src, dest, from, to, cmp);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new SortTask(dest, src, from, mid, cmp), new SortTask(dest, src, mid, to, cmp));
+			merge(src, dest, from, mid, to, cmp);
+		}
+	}
+
+	// NaN sorts after numbers and before NA, with NA last
+	static int compareDouble(double x, double y) {
+		boolean nx = Double.isNaN(x);
+		boolean ny = Double.isNaN(y);
+		if (!nx && !ny) return x < y ? -1 : (x > y ? 1 : 0);
+		if (nx && ny) return Boolean.compare(isNa(x), isNa(y));
+		return nx ? 1 : -1;
+	}
+
+	private static boolean isNa(double x) {
+		return Double.doubleToRawLongBits(x) == RNumeric.NA_VALUE_LONG;
+	}
+
+	static int compareInt(int x, int y) {
+		if (x == y) return 0;
+		if (x == RIntBackedVector.NA_VALUE) return 1;
+		if (y == RIntBackedVector.NA_VALUE) return -1;
+		return x < y ? -1 : 1;
+	}
+
+	static int compareString(String x, String y) {
+		if (x == y) return 0;
+		if (x == null) return 1;
+		if (y == null) return -1;
+		return x.compareTo(y);
+	}
+
+	private static String[] labels(RFactorVector vector) {
+		String[] out = new String[vector.size()];
+		for (int i=0; i<out.length; i++) {
+			int code = vector.values[i];
+			out[i] = code == RIntBackedVector.NA_VALUE ? null : vector.label(code);
+		}
+		return out;
+	}
+
+	// the position of each dictionary entry in sorted order
+	private static int[] ranks(String[] dictionary, int size) {
+		Integer[] order = new Integer[size];
+		for (int i=0; i<size; i++) order[i] = i;
+		Arrays.sort(order, (a,b) -> compareString(dictionary[a], dictionary[b]));
+		int[] rank = new int[size];
+		for (int i=0; i<size; i++) rank[order[i]] = i;
+		return rank;
+	}
+}
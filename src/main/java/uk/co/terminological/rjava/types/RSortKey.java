@@ -0,0 +1,36 @@
+package uk.co.terminological.rjava.types;
+
+/**
+ * A column to sort a dataframe by, for use with {@link RDataframe#arrange(RSortKey...)}. As in dplyr NA values
+ * are sorted last whichever the direction.
+ * @author terminological
+ *
+ */
+public class RSortKey {
+
+	private final String column;
+	private final boolean descending;
+
+	private RSortKey(String column, boolean descending) {
+		this.column = column;
+		this.descending = descending;
+	}
+
+	public String column() {return column;}
+	public boolean isDescending() {return descending;}
+
+	public static RSortKey asc(String column) {
+		return new RSortKey(column, false);
+	}
+
+	/**
+	 * Sort by a column in descending order, as dplyr::desc
+	 */
+	public static RSortKey desc(String column) {
+		return new RSortKey(column, true);
+	}
+
+	public String toString() {
+		return descending ? "desc("+column+")" : column;
+	}
+}
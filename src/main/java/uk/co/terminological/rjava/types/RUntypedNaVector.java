@@ -22,6 +22,11 @@ import uk.co.terminological.rjava.RObjectVisitor;
 	)
 public class RUntypedNaVector extends RVector<RUntypedNa> {
 
+	private static final long serialVersionUID = RObject.datatypeVersion;
+	
+	// every element is NA so only the length needs to be stored
+	private int size;
+	
 	@Override
 	public <X> X accept(RObjectVisitor<X> visitor) {
 		return visitor.visit(this);
@@ -29,10 +34,73 @@ public class RUntypedNaVector extends RVector<RUntypedNa> {
 
 	public RUntypedNaVector() {super();}
 	public RUntypedNaVector(int length) {
-		super(length);
+		super();
 		this.fillNA(length);
 	}
 	
+	@Override
+	public RUntypedNaVector subset(int[] rows) {
+		for (int i: rows) if (i >= 0) rangeCheck(i);
+		return new RUntypedNaVector(rows.length);
+	}
+	
+	@Override
+	public RUntypedNa get(int index) {
+		rangeCheck(index);
+		return RUntypedNa.NA;
+	}
+	
+	@Override
+	public RUntypedNa set(int index, RUntypedNa element) {
+		rangeCheck(index);
+		return RUntypedNa.NA;
+	}
+	
+	@Override
+	public void add(int index, RUntypedNa element) {
+		if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		size++;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public RUntypedNa remove(int index) {
+		beforeModification();
+		rangeCheck(index);
+		size--;
+		modCount++;
+		invalidateCache();
+		return RUntypedNa.NA;
+	}
+	
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		beforeModification();
+		size -= toIndex-fromIndex;
+		modCount++;
+		invalidateCache();
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isNa(int index) {
+		rangeCheck(index);
+		return true;
+	}
+	
+	@Override
+	public RUntypedNaVector fill(RUntypedNa x, int length) {
+		size += length;
+		modCount++;
+		invalidateCache();
+		return this;
+	}
+	
 	@Override
 	public void fillNA(int length) {
 		this.fill(RUntypedNa.NA, length);
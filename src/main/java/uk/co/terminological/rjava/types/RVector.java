@@ -2,13 +2,16 @@ package uk.co.terminological.rjava.types;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Optional;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,21 +21,92 @@ import org.slf4j.LoggerFactory;
 import uk.co.terminological.rjava.IncompatibleTypeException;
 import uk.co.terminological.rjava.RConverter;
 
-public abstract class RVector<X extends RPrimitive> extends ArrayList<X> implements RObject {
+/**
+ * The base class of all R vectors. This presents a java List view of the vector contents, but the storage of the
+ * values is left to the subclasses, so that vectors of primitive types can be held as primitive arrays rather than
+ * as lists of boxed objects. 
+ * @author terminological
+ *
+ * @param <X> the RPrimitive type of the elements
+ */
+public abstract class RVector<X extends RPrimitive> extends AbstractList<X> implements RandomAccess, RObject {
 
 	private static final long serialVersionUID = RObject.datatypeVersion;
 	private static Logger log = LoggerFactory.getLogger(RVector.class);
 	
+	// the array most recently produced for transfer to R, which is reused until the vector is next modified
+	private transient volatile Object rPrimitiveCache;
+	// incremented on every modification, so that indexes over the vector can detect changes
+	private transient int version;
+	
 	public RVector() {
 		super();
 	}
 	
-	public RVector(int length) {
-		super(length);
+	/**
+	 * Get the primitive array representation of this vector, reusing the array produced by a previous call if the 
+	 * vector has not been modified since. Arrays returned from this are shared and must not be modified.
+	 * @param arrayType - the class of the array
+	 * @param supplier - creates a new primitive array from the vector
+	 * @return the primitive array
+	 */
+	protected <Y> Y cachedPrimitive(Class<Y> arrayType, Supplier<Y> supplier) {
+		Object tmp = rPrimitiveCache;
+		if (arrayType.isInstance(tmp)) return arrayType.cast(tmp);
+		Y out = supplier.get();
+		rPrimitiveCache = out;
+		return out;
+	}
+	
+	/**
+	 * Must be called by subclasses whenever the content of the vector changes.
+	 */
+	protected void invalidateCache() {
+		rPrimitiveCache = null;
+		version++;
+	}
+	
+	int version() {
+		return version;
+	}
+	
+	// filtered dataframe views of this vector which have not yet gathered their rows
+	private transient Set<RDataframeView> views;
+	
+	synchronized void addView(RDataframeView view) {
+		if (views == null) views = Collections.newSetFromMap(new WeakHashMap<>());
+		views.add(view);
+	}
+	
+	synchronized void removeView(RDataframeView view) {
+		if (views != null) views.remove(view);
+	}
+	
+	/**
+	 * Must be called by subclasses before existing elements of the vector are changed, moved or removed, so that
+	 * filtered views of the vector can gather their rows first. Appending elements does not affect views.
+	 */
+	protected void beforeModification() {
+		Set<RDataframeView> tmp;
+		synchronized(this) {
+			if (views == null) return;
+			tmp = views;
+			views = null;
+		}
+		for (RDataframeView view: tmp.toArray(new RDataframeView[0])) view.detach();
+	}
+	
+	/**
+	 * Test for a NA value at a given position without necessarily creating the element.
+	 * @param index - the zero based index
+	 * @return true if the value at this position is NA
+	 */
+	public boolean isNa(int index) {
+		return this.get(index).isNa();
 	}
 	
-	public RVector(List<X> subList) {
-		super(subList);
+	protected void rangeCheck(int index) {
+		if (index < 0 || index >= this.size()) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+this.size());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -60,6 +134,23 @@ public abstract class RVector<X extends RPrimitive> extends ArrayList<X> impleme
 		throw new IncompatibleTypeException("No vector defined for: "+clazz.getCanonicalName());
 	}
 	
+	/**
+	 * @param clazz - the RPrimitive type of the vector
+	 * @param capacity - the expected number of elements
+	 * @return an empty vector with storage allocated for a number of elements
+	 */
+	@SuppressWarnings("unchecked")
+	public static <Y extends RPrimitive> RVector<Y> empty(Class<Y> clazz, int capacity) {
+		if (RCharacter.class.equals(clazz)) return (RVector<Y>) new RCharacterVector(capacity); 
+		if (RInteger.class.equals(clazz)) return (RVector<Y>) new RIntegerVector(capacity);
+		if (RNumeric.class.equals(clazz)) return (RVector<Y>) new RNumericVector(capacity);
+		if (RFactor.class.equals(clazz)) return (RVector<Y>) new RFactorVector(capacity);
+		if (RLogical.class.equals(clazz)) return (RVector<Y>) new RLogicalVector(capacity);
+		if (RDate.class.equals(clazz)) return (RVector<Y>) new RDateVector(capacity);
+		if (RUntypedNa.class.equals(clazz)) return (RVector<Y>) new RUntypedNaVector();
+		throw new IncompatibleTypeException("No vector defined for: "+clazz.getCanonicalName());
+	}
+	
 	public static RCharacterVector rep(RCharacter primitive, int length) {return (RCharacterVector) new RCharacterVector(length).fill(primitive, length);}
 	public static RNumericVector rep(RNumeric primitive, int length) {return (RNumericVector) new RNumericVector(length).fill(primitive, length);}
 	public static RIntegerVector rep(RInteger primitive, int length) {return (RIntegerVector) new RIntegerVector(length).fill(primitive, length);}
@@ -227,11 +318,20 @@ public abstract class RVector<X extends RPrimitive> extends ArrayList<X> impleme
 	
 	public RVector<X> subset(BitSet filter) {
 		if(filter.length() > this.size()) throw new IndexOutOfBoundsException("Filter length greater than vector length");
+		return subset(filter.stream().toArray());
+	}
+	
+	/**
+	 * Creates a new vector from the elements at the given positions, in the order given. Positions may be repeated,
+	 * and a negative position gives an NA in the output, like an NA index in R.
+	 * @param rows - zero based indexes into this vector
+	 * @return a new vector of the same type
+	 */
+	public RVector<X> subset(int[] rows) {
 		RVector<X> out = RVector.empty(this.getType());
-		for (int i = 0; i<this.size(); i++) {
-			if (filter.get(i)) {
-				out.add(this.get(i));
-			}
+		for (int i: rows) {
+			if (i < 0) out.fillNA(1);
+			else out.add(this.get(i));
 		}
 		return out;
 	}
@@ -13,16 +13,34 @@ import uk.co.terminological.rjava.NameNotFoundException;
 import uk.co.terminological.rjava.RConverter;
 import uk.co.terminological.rjava.RFunctions;
 import uk.co.terminological.rjava.RName;
+import uk.co.terminological.rjava.StreamRule;
 // CE01
 import uk.co.terminological.rjava.UnconvertableTypeException;
+import uk.co.terminological.rjava.UnexpectedNaValueException;
 import uk.co.terminological.rjava.ZeroDimensionalArrayException;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -181,6 +199,120 @@ class TestDatatypes {
 		// CE02
 	}
 
+	@Test
+	final void testNumericVectorStorage() {
+		double[] tmp = {1.0, RNumeric.NA_VALUE, Double.NaN, 4.0};
+		RNumericVector col = convert(tmp);
+		assertTrue(col.get(1).isNa());
+		assertTrue(col.isNa(1));
+		assertTrue(!col.isNa(2));
+		assertEquals(Double.doubleToRawLongBits(RNumeric.NA_VALUE), Double.doubleToRawLongBits(col.rPrimitive()[1]));
+		
+		col.add(RNumeric.from(5.0));
+		col.add(0, RNumeric.NA);
+		col.remove(2);
+		assertEquals(5, col.size());
+		assertTrue(col.equals(RVector.singleton(RNumeric.NA).and(RVector.with(1.0, Double.NaN, 4.0, 5.0).toArray(new RNumeric[] {}))));
+		assertArrayEquals(new double[] {-1.0, 1.0, Double.NaN, 4.0, 5.0}, col.javaPrimitive(-1.0));
+		
+		col.addAll(RVector.rep(RNumeric.NA, 3));
+		assertEquals(8, col.size());
+		assertTrue(col.subList(5, 8).stream().allMatch(RNumeric::isNa));
+	}
+	
+	@Test
+	final void testDictionaryCharacterVector() {
+		String[] tmp = IntStream.range(0, 100).mapToObj(i -> i % 10 == 0 ? null : (i % 2 == 0 ? "even" : "odd")).toArray(String[]::new);
+		RCharacterVector col = convert(tmp);
+		assertTrue(col.isDictionaryEncoded());
+		assertTrue(!convert(new String[] {"one","two"}).isDictionaryEncoded());
+		assertArrayEquals(tmp, col.rPrimitive());
+		assertEquals(40, col.matches(RCharacter.from("even")).cardinality());
+		assertEquals(10, col.matches(RCharacter.NA).cardinality());
+		assertEquals(0, col.matches(RCharacter.from("unknown")).cardinality());
+		
+		col.add(RCharacter.from("unknown"));
+		col.set(0, RCharacter.from("odd"));
+		assertEquals(1, col.matches(RCharacter.from("unknown")).cardinality());
+		assertEquals("odd", col.get(0).get());
+		tmp[0] = "odd";
+		assertTrue(col.equals(new RCharacterVector(tmp).and(RCharacter.from("unknown"))));
+		
+		// subsets share the dictionary until an entry is added to either vector
+		RCharacterVector first = col.subset(new int[] {0,1,100});
+		RCharacterVector second = col.subset(new int[] {2,3});
+		assertSame(col.dictionary, first.dictionary);
+		first.add(RCharacter.from("first"));
+		second.add(RCharacter.from("second"));
+		col.add(RCharacter.from("col"));
+		assertArrayEquals(new String[] {"odd","odd","unknown","first"}, first.rPrimitive());
+		assertArrayEquals(new String[] {"even","odd","second"}, second.rPrimitive());
+		assertEquals("col", col.get(101).get());
+		assertEquals(1, col.matches(RCharacter.from("unknown")).cardinality());
+		assertEquals(0, col.matches(RCharacter.from("first")).cardinality());
+	}
+	
+	@Test
+	final void testFactorVector() {
+		String[] levels = {"ONE","TWO","THREE"};
+		RFactorVector col = convert(new int[] {1,3,RFactor.NA_VALUE,2}, levels);
+		assertEquals("THREE", col.get(1).get());
+		assertTrue(col.get(2).isNa());
+		assertArrayEquals(levels, col.rLevels());
+		assertArrayEquals(new int[] {1,3,RFactor.NA_VALUE,2}, col.rValues());
+		
+		RFactorVector col2 = RVector.with(TestEnum.THREE, TestEnum.ONE);
+		assertArrayEquals(new String[] {"ONE","TWO","THREE"}, col2.rLevels());
+		col2.addAll(col);
+		assertEquals(6, col2.size());
+		assertEquals(RFactor.from(TestEnum.THREE), col2.get(3));
+		
+		// codes are remapped by label when the levels are in a different order
+		RFactorVector ab = new RFactorVector(new int[] {1,2}, new String[] {"a","b"});
+		ab.addAll(new RFactorVector(new int[] {1,2,RFactor.NA_VALUE}, new String[] {"b","a"}));
+		ab.addAll(new RFactorVector(new int[] {1}, new String[] {"c"}));
+		ab.add(new RFactor(1, "b"));
+		assertEquals(Arrays.asList("a","b","b","a",RFactor.NA_LABEL,"c","b"), ab.get().collect(Collectors.toList()));
+		assertArrayEquals(new String[] {"a","b","c"}, ab.rLevels());
+	}
+	
+	@Test
+	final void testDateVectorEpochDays() {
+		int[] days = {0, 18322, RDate.NA_EPOCH_DAY, -719162};
+		RDateVector col = new RDateVector(days);
+		assertEquals(LocalDate.of(2020,3,1), col.get(1).get());
+		assertTrue(col.get(2).isNa());
+		assertEquals(LocalDate.of(1,1,1), col.get(3).get());
+		assertArrayEquals(days, col.rEpochDays());
+		assertArrayEquals(new String[] {"1970-01-01","2020-03-01","NA","001-01-01"}, col.rPrimitive());
+		assertTrue(col.equals(new RDateVector(new String[] {"1970-01-01","2020-03-01",null,"001-01-01"})));
+	}
+	
+	@Test
+	final void testPrimitiveCaching() {
+		RNumericVector col = testNumeric();
+		double[] first = col.rPrimitive();
+		assertSame(first, col.rPrimitive());
+		col.set(0, RNumeric.from(10.0));
+		assertNotSame(first, col.rPrimitive());
+		assertEquals(10.0, col.rPrimitive()[0]);
+		
+		RDateVector dates = new RDateVector(new int[] {1,2,3});
+		String[] formatted = dates.rPrimitive();
+		assertSame(formatted, dates.rPrimitive());
+		dates.add(RDate.NA);
+		assertEquals(4, dates.rEpochDays().length);
+		assertEquals(4, dates.rPrimitive().length);
+		// the epoch days and the strings are cached separately
+		formatted = dates.rPrimitive();
+		int[] days = dates.rEpochDays();
+		assertSame(formatted, dates.rPrimitive());
+		assertSame(days, dates.rEpochDays());
+		dates.set(0, RDate.NA);
+		assertNotSame(days, dates.rEpochDays());
+		assertEquals(RDate.NA_EPOCH_DAY, dates.rEpochDays()[0]);
+	}
+	
 	@Test
 	final void testOtherCollectors() {
 		
@@ -340,6 +472,666 @@ class TestDatatypes {
 			
 	}
 	
+	@Test
+	final void testGroupIndex() {
+		RDataframe test = testData().withCol("flag", RVector.with(true,false,true,false,true,false,true,false,true,false)).groupBy("group","flag");
+		Map<RNamedPrimitives,RDataframe> groups = test.groupData();
+		assertEquals(4, groups.size());
+		RNamedPrimitives first = groups.keySet().iterator().next();
+		assertEquals(RCharacter.from("One"), first.get("group"));
+		assertEquals(RLogical.from(1), first.get("flag"));
+		assertEquals(3, groups.get(first).nrow());
+		
+		RDataframe count = test.count();
+		assertArrayEquals(new int[] {3,2,3,2}, count.pull("n", RIntegerVector.class).rPrimitive());
+		assertEquals(10, test.distinct().size());
+		assertEquals(4, test.select("group").distinct().size());
+		assertEquals(2, testData().select("group").distinct().size());
+		
+		// index must be rebuilt when grouping columns change
+		test.pull("group", RCharacterVector.class).set(0, RCharacter.from("Three"));
+		assertEquals(5, test.count().nrow());
+	}
+	
+	@Test
+	final void testGroupModifyOrdering() {
+		RDataframe test = testData().groupBy("group");
+		RDataframe out = test.groupModify((d,g) -> {
+			RDataframe tmp = RDataframe.create().withCol("value", d.pull("value", RNumericVector.class));
+			if (g.get("group").equals(RCharacter.from("Two"))) tmp.addCol("extra", RCharacter.from("x"));
+			return tmp;
+		}, new ForkJoinPool(4));
+		assertTrue(out.pull("value").equals(testNumeric()));
+		assertTrue(out.pull("group").equals(testData().pull("group")));
+		assertEquals(5, out.pull("extra").matches(RCharacter.NA).cardinality());
+		assertArrayEquals(new String[] {"group"}, out.getGroups());
+	}
+	
+	@Test
+	final void testSummarise() {
+		RDataframe test = testData()
+				.withCol("count", new RIntegerVector(new int[] {1,2,3,4,5,6,7,8,9,RInteger.NA_VALUE}))
+				.groupBy("group");
+		RDataframe out = test.summarise(
+				RAggregate.n("n"),
+				RAggregate.sum("sum", "count"),
+				RAggregate.sum("sumNaRm", "count").naRm(),
+				RAggregate.mean("mean", "value"),
+				RAggregate.max("max", "value"),
+				RAggregate.quantile("median", "count", 0.5).naRm(),
+				RAggregate.nDistinct("distinct", "count"),
+				RAggregate.last("last", "value")
+		);
+		assertEquals(2, out.nrow());
+		assertEquals(0, out.getGroups().length);
+		assertArrayEquals(new int[] {5,5}, out.pull("n", RIntegerVector.class).rPrimitive());
+		assertEquals(RInteger.from(15), out.pull("sum").get(0));
+		assertEquals(RInteger.NA, out.pull("sum").get(1));
+		assertEquals(RInteger.from(30), out.pull("sumNaRm").get(1));
+		assertArrayEquals(new double[] {0.3,1.3}, out.pull("mean", RNumericVector.class).rPrimitive(), 0.000001);
+		assertArrayEquals(new double[] {0.5,1.5}, out.pull("max", RNumericVector.class).rPrimitive(), 0.000001);
+		assertArrayEquals(new double[] {3,7.5}, out.pull("median", RNumericVector.class).rPrimitive(), 0.000001);
+		assertArrayEquals(new int[] {5,5}, out.pull("distinct", RIntegerVector.class).rPrimitive());
+		assertTrue(out.pull("last").equals(RVector.with(0.5,1.5)));
+		assertThrows(UnexpectedNaValueException.class, () -> test.summarise(RAggregate.quantile("median", "count", 0.5)));
+
+		RDataframe empty = testData().filter("value", RNumeric.class, v -> v.get() > 10).summarise(RAggregate.n("n"), RAggregate.min("min","value"));
+		assertEquals(1, empty.nrow());
+		assertEquals(RInteger.from(0), empty.pull("n").get(0));
+		assertEquals(RNumeric.from(Double.POSITIVE_INFINITY), empty.pull("min").get(0));
+	}
+
+	@Test
+	final void testJoins() {
+		RDataframe left = RDataframe.create()
+				.withCol("key", new RCharacterVector(new String[] {"a","b","c","a",null}))
+				.withCol("x", RVector.with(1.0,2.0,3.0,4.0,5.0));
+		RDataframe right = RDataframe.create()
+				.withCol("key", new RCharacterVector(new String[] {"a","a","c",null,"d"}))
+				.withCol("y", RVector.with(10,11,12,13,14))
+				.withCol("x", RVector.with("p","q","r","s","t"));
+
+		RDataframe inner = left.innerJoin(right, "key");
+		assertEquals(6, inner.nrow());
+		assertArrayEquals(new String[] {"key","x.x","y","x.y"}, inner.keySet().toArray(new String[] {}));
+		assertArrayEquals(new int[] {10,11,12,10,11,13}, inner.pull("y", RIntegerVector.class).rPrimitive());
+
+		RDataframe leftJoin = left.leftJoin(right, "key");
+		assertEquals(7, leftJoin.nrow());
+		assertTrue(leftJoin.pull("y").isNa(2));
+		assertTrue(leftJoin.pull("x.y").isNa(2));
+
+		assertArrayEquals(new double[] {1.0,3.0,4.0,5.0}, left.semiJoin(right, "key").pull("x", RNumericVector.class).rPrimitive(), 0.0);
+		assertArrayEquals(new double[] {2.0}, left.antiJoin(right.select("key"), "key").pull("x", RNumericVector.class).rPrimitive(), 0.0);
+		assertThrows(IncompatibleTypeException.class, () -> left.innerJoin(right, "key", "x"));
+
+		// merge joins on sorted input give the same result as hash joins
+		RDataframe sortedLeft = left.subset(new int[] {0,3,1,2,4});
+		RDataframe sortedRight = right.subset(new int[] {0,1,2,4,3});
+		for (RDataframe.JoinType type: RDataframe.JoinType.values()) {
+			assertEquals(sortedLeft.join(sortedRight, type, false, "key"), sortedLeft.join(sortedRight, type, true, "key"));
+		}
+		assertThrows(IncompatibleTypeException.class, () -> left.join(right, RDataframe.JoinType.INNER, true, "key"));
+
+		// -0.0 and 0.0 are the same key for both join strategies
+		RDataframe negZero = RDataframe.create().withCol("key", RVector.with(-0.0,1.0)).withCol("x", RVector.with(1,2));
+		RDataframe zero = RDataframe.create().withCol("key", RVector.with(0.0,1.0)).withCol("y", RVector.with(3,4));
+		assertEquals(2, negZero.join(zero, RDataframe.JoinType.INNER, false, "key").nrow());
+		for (RDataframe.JoinType type: RDataframe.JoinType.values()) {
+			assertEquals(negZero.join(zero, type, false, "key"), negZero.join(zero, type, true, "key"));
+		}
+
+		// factors sorted by differently ordered levels give the same result for both join strategies
+		RDataframe ba = RDataframe.create().withCol("k", new RFactorVector(new int[] {1,2}, new String[] {"b","a"})).withCol("x", RVector.with(1,2));
+		RDataframe ab = RDataframe.create().withCol("k", new RFactorVector(new int[] {1,2}, new String[] {"a","b"})).withCol("y", RVector.with(3,4));
+		assertEquals(2, ba.join(ab, RDataframe.JoinType.INNER, true, "k").nrow());
+		for (RDataframe.JoinType type: RDataframe.JoinType.values()) {
+			assertEquals(ba.join(ab, type, false, "k"), ba.join(ab, type, true, "k"));
+		}
+
+		// factor codes which are not levels cannot be joined on
+		RDataframe badCodes = RDataframe.create().withCol("key", new RFactorVector(new int[] {1,0}, new String[] {"a"}));
+		RDataframe levels = RDataframe.create().withCol("key", new RFactorVector(new int[] {1}, new String[] {"a"}));
+		assertThrows(IncompatibleTypeException.class, () -> badCodes.innerJoin(levels, "key"));
+	}
+
+	@Test
+	final void testArrange() {
+		RDataframe test = RDataframe.create()
+				.withCol("group", new RCharacterVector(new String[] {"b","a",null,"b","a"}))
+				.withCol("value", RVector.with(1.0,RNumeric.NA_VALUE,3.0,4.0,Double.NaN))
+				.groupBy("group");
+		RDataframe asc = test.arrange("group","value");
+		assertArrayEquals(new String[] {"a","a","b","b",null}, asc.pull("group", RCharacterVector.class).rPrimitive());
+		assertTrue(asc.pull("value").isNa(1));
+		assertArrayEquals(new String[] {"group"}, asc.getGroups());
+
+		RDataframe desc = test.arrange(RSortKey.desc("value"));
+		assertArrayEquals(new double[] {4.0,3.0,1.0}, Arrays.copyOf(desc.pull("value", RNumericVector.class).rPrimitive(), 3), 0.0);
+		assertTrue(desc.pull("value").isNa(4));
+
+		// a parallel sort is stable and gives the same result as a sequential sort
+		int n = 100000;
+		RDataframe large = RDataframe.create()
+				.withCol("key", new RIntegerVector(IntStream.range(0, n).map(i -> (i * 7919) % 100).toArray()))
+				.withCol("row", new RIntegerVector(IntStream.range(0, n).toArray()));
+		RDataframe sorted = large.arrange(new ForkJoinPool(4), RSortKey.asc("key"));
+		assertEquals(large.arrange("key"), sorted);
+		int[] keys = sorted.pull("key", RIntegerVector.class).rPrimitive();
+		int[] rows = sorted.pull("row", RIntegerVector.class).rPrimitive();
+		for (int i=1; i<n; i++) assertTrue(keys[i-1] < keys[i] || (keys[i-1] == keys[i] && rows[i-1] < rows[i]));
+	}
+
+	@Test
+	final void testLazyFilter() {
+		RDataframe test = testData().withCol("flag", RVector.with(true,false,true,false,true,false,true,false,true,false)).groupBy("group");
+		RDataframe filtered = test
+				.filter("value", RNumeric.class, v -> v.get() > 0.25)
+				.filter("flag", RLogical.class, f -> f.get())
+				.select("value");
+		assertTrue(filtered.isView());
+		assertEquals(4, filtered.nrow());
+		assertEquals(2, filtered.ncol());
+		assertTrue(filtered.containsKey("group"));
+		assertTrue(filtered.isView());
+		assertTrue(filtered.pull("value").equals(RVector.with(0.3,0.5,1.2,1.4)));
+		assertTrue(!filtered.isView());
+		assertArrayEquals(new String[] {"group"}, filtered.getGroups());
+
+		// a view keeps the rows it selected when the source is modified
+		RDataframe expected = testData().groupBy("group").filter("value", RNumeric.class, v -> v.get() > 0.25).select("value");
+		RDataframe view = test.filter("value", RNumeric.class, v -> v.get() > 0.25).select("value");
+		RDataframe appended = test.filter("value", RNumeric.class, v -> v.get() > 0.25).select("value");
+		test.bindRows(testData().withCol("flag", RVector.ofNA(RLogical.class, 10)));
+		assertEquals(expected, appended);
+		test.pull("value", RNumericVector.class).set(2, RNumeric.from(2.0));
+		test.pull("group", RCharacterVector.class).remove(0);
+		assertTrue(view.isView());
+		assertEquals(expected, view);
+		assertEquals(expected, view.filter("value", RNumeric.class, v -> v.get() > 0.25));
+	}
+
+	@Test
+	final void testPrimitivePredicates() {
+		RDataframe test = testData()
+				.withCol("count", new RIntegerVector(new int[] {1,2,3,4,5,6,7,8,9,RInteger.NA_VALUE}))
+				.withCol("maybe", RVector.with(1.0,RNumeric.NA_VALUE,Double.NaN,4.0,5.0,6.0,7.0,8.0,9.0,10.0));
+		assertEquals(4, test.filter(RNamedPredicate.between("value", 0.2, 0.5)).nrow());
+		assertEquals(3, test.filter(RNamedPredicate.ints("count", i -> i > 6)).nrow());
+		assertEquals(5, test.filter(RNamedPredicate.doubles("count", x -> x > 4.5)).nrow());
+		assertEquals(5, test.filter(RNamedPredicate.in("group", "Two", "Three")).nrow());
+		assertEquals(2, test.filter(RNamedPredicate.in("count", 1, 9, 11)).nrow());
+		assertEquals(2, test.filter(RNamedPredicate.in("maybe", 1.0, RNumeric.NA_VALUE)).nrow());
+		assertEquals(2, test.filter(RNamedPredicate.isNa("maybe")).nrow());
+		assertEquals(9, test.filter(RNamedPredicate.notNa("count")).nrow());
+		assertEquals(1, test.filter(RNamedPredicate.isNa("count"), RNamedPredicate.in("group", "Two")).nrow());
+		assertThrows(IncompatibleTypeException.class, () -> test.filter(RNamedPredicate.in("group", 1, 2)).nrow());
+		assertTrue(RNamedPredicate.between("value", 0.0, 1.0).predicate().test(RNumeric.from(0.5)));
+
+		// large columns are tested in parallel
+		int n = 1000003;
+		RNumericVector large = new RNumericVector(IntStream.range(0, n).mapToDouble(i -> i % 1000).toArray());
+		assertEquals(n / 1000 * 100 + 3, RNamedPredicate.between("x", 0, 99).matches(large).cardinality());
+		assertEquals(large.matches(RNamedPredicate.<RNumeric>from("x", x -> x.get() < 100).predicate()), RNamedPredicate.between("x", 0, 99).matches(large));
+	}
+
+	@Test
+	final void testLazyPipeline() {
+		RDataframe source = testData().withCol("flag", RVector.with(true,false,true,false,true,false,true,false,true,false));
+		RLazyDataframe plan = source.lazy()
+				.mutate("value", RNumeric.class, v -> RNumeric.from(v.get()*10))
+				.mutate("value", RNumeric.class, v -> RNumeric.from(v.get()+1))
+				.mutate("flag", RLogical.class, f -> RPrimitive.of(!f.get()))
+				.groupBy("group")
+				.filter("group", RCharacter.class, g -> g.get().equals("Two"))
+				.rename("result", "value")
+				.filter(RNamedPredicate.between("result", 12, 14))
+				.select("result");
+		RDataframe eager = testData().withCol("flag", RVector.with(true,false,true,false,true,false,true,false,true,false))
+				.mutate("value", RNumeric.class, v -> RNumeric.from(v.get()*10))
+				.mutate("value", RNumeric.class, v -> RNumeric.from(v.get()+1))
+				.mutate("flag", RLogical.class, f -> RPrimitive.of(!f.get()))
+				.groupBy("group")
+				.filter("group", RCharacter.class, g -> g.get().equals("Two"))
+				.rename("result", "value")
+				.filter(RNamedPredicate.between("result", 12, 14))
+				.select("result");
+		
+		// filters move ahead of operations they do not depend on, the mutations of value are fused and the unused flag is not mutated
+		assertEquals("project(group, value)\nfilter(group)\nmutate(value)\nfilter(value)\ngroupBy(group)\nrename(result = value)\nselect(result)", plan.explain());
+		RDataframe lazy = plan.collect();
+		assertEquals(eager, lazy);
+		assertArrayEquals(new double[] {12,13,14}, lazy.pull("result", RNumericVector.class).rPrimitive(), 0.000001);
+		// the source is not modified
+		assertTrue(source.pull("value").equals(testNumeric()));
+		assertThrows(NameNotFoundException.class, () -> source.lazy().select("value").filter(RNamedPredicate.isNa("group")).collect());
+	}
+
+	@Test
+	final void testPrimitiveMutate() {
+		RDataframe test = testData()
+				.withCol("count", new RIntegerVector(new int[] {1,2,3,4,5,6,7,8,9,RInteger.NA_VALUE}))
+				.mutateDouble("value", x -> x * 10)
+				.mutateInt("count", i -> i * 2)
+				.mutateRows("total", r -> ((RNumeric) r.get("value")).get() + ((RInteger) r.get("count")).javaPrimitive(0));
+		assertArrayEquals(new double[] {1,2,3,4,5,11,12,13,14,15}, test.pull("value", RNumericVector.class).rPrimitive(), 0.000001);
+		assertArrayEquals(new int[] {2,4,6,8,10,12,14,16,18,RInteger.NA_VALUE}, test.pull("count", RIntegerVector.class).rPrimitive());
+		assertEquals(6.0, test.pull("total", RNumericVector.class).get(1).get(), 0.000001);
+		assertThrows(IncompatibleTypeException.class, () -> test.mutateInt("value", i -> i));
+		assertThrows(NameNotFoundException.class, () -> test.mutateDouble("missing", x -> x));
+		
+		// large columns are mapped in parallel
+		int n = 100003;
+		RDataframe large = RDataframe.create().withCol("x", new RNumericVector(IntStream.range(0, n).mapToDouble(i -> i).toArray()));
+		large.mutateDouble("x", x -> x * 2, ForkJoinPool.commonPool());
+		assertArrayEquals(IntStream.range(0, n).mapToDouble(i -> i * 2).toArray(), large.pull("x", RNumericVector.class).rPrimitive(), 0.000001);
+		
+		// mutating an empty column
+		RDataframe empty = testData().filter("group", RCharacter.class, g -> false);
+		assertEquals(0, empty.mutate("value", RNumeric.class, v -> RNumeric.from(v.get()*10)).nrow());
+		assertEquals(0, empty.mutateDouble("value", x -> x * 10).nrow());
+	}
+	
+	@Test
+	final void testRowCursor() {
+		RDataframe test = testData();
+		Iterator<RDataframeRow> it = test.iterator();
+		RDataframeRow first = it.next();
+		RDataframeRow kept = first.copy();
+		RDataframeRow second = it.next();
+		// the row is moved rather than recreated
+		assertSame(first, second);
+		assertEquals(1, second.getRowNumber());
+		assertEquals(RNumeric.from(0.2), second.get("value"));
+		assertEquals(0, kept.getRowNumber());
+		assertEquals(RNumeric.from(0.1), kept.get("value"));
+		assertEquals(Arrays.asList("group","value"), new ArrayList<>(kept.keySet()));
+		assertEquals("'One',0.1\n", kept.asCsv());
+		
+		// modifying a row copies its values, and does not change the dataframe
+		kept.put("value", RNumeric.from(5.0));
+		assertEquals(RNumeric.from(5.0), kept.get("value"));
+		assertEquals(RNumeric.from(0.1), test.getRow(0).get("value"));
+		assertEquals(test.getRow(2), test.getRow(2).copy());
+		assertEquals(new RNamedPrimitives(test.getRow(3)), test.getRow(3));
+		
+		double total = test.parallelStream().mapToDouble(r -> ((RNumeric) r.get("value")).get()).sum();
+		assertEquals(8.0, total, 0.000001);
+		assertEquals(10, test.stream().map(RDataframeRow::copy).map(RDataframeRow::getRowNumber).distinct().count());
+	}
+	
+	static interface Grouped {
+		@RName("group") public RCharacter getGroup();
+		public RNumeric value();
+		public default double doubled() {
+			return this.value().get()*2;
+		}
+	}
+	
+	@Test
+	final void testBoundCoercion() throws UnconvertableTypeException {
+		RBoundDataframe<Grouped> bound = testData().attach(Grouped.class);
+		List<Grouped> rows = bound.streamCoerce().collect(Collectors.toList());
+		assertEquals(10, rows.size());
+		assertEquals("One", rows.get(0).getGroup().get());
+		assertEquals(RNumeric.from(1.5), rows.get(9).value());
+		assertEquals(3.0, rows.get(9).doubled(), 0.000001);
+		assertEquals(2.4, bound.getCoercedRow(6).doubled(), 0.000001);
+		assertEquals(0.2, bound.getRow(2).lag().coerce().value().get(), 0.000001);
+		double[] total = new double[1];
+		bound.forEachCoerced(g -> total[0] += g.doubled());
+		assertEquals(16.0, total[0], 0.000001);
+		assertThrows(UnsupportedOperationException.class, () -> rows.get(0).hashCode());
+		
+		// missing columns are NA unless binding is strict
+		RDataframe values = testData().select("value");
+		assertTrue(values.attach(Grouped.class).getCoercedRow(0).getGroup().isNa());
+		assertTrue(values.attachPermissive(Grouped.class).getCoercedRow(0).getGroup().isNa());
+		assertTrue(values.stream(Grouped.class).allMatch(g -> g.getGroup().isNa()));
+		assertThrows(UnconvertableTypeException.class, () -> new RBoundDataframe<>(Grouped.class, values, true));
+	}
+	
+	public static class Exported {
+		int i;
+		Exported(int i) {this.i = i;}
+		@RName("id") public int getId() {return i;}
+		@RName("score") public Double getScore() {return i % 3 == 0 ? null : i / 2.0;}
+		@RName("flag") public boolean isFlag() {return i % 2 == 0;}
+		@RName("name") public String getName() {return "item"+i;}
+		@RName("level") public TestEnum getLevel() {return TestEnum.values()[i % 3];}
+		@RName("date") public LocalDate getDate() {return LocalDate.of(2020,1,1).plusDays(i);}
+		@RName("big") public BigDecimal getBig() {return BigDecimal.valueOf(i);}
+		@RName("numeric") public RNumeric getNumeric() {return RNumeric.from((double) i);}
+	}
+	
+	private static class Hidden {
+		@RName("value") public long getValue() {return 42L;}
+	}
+	
+	@Test
+	final void testAnnotatedCollector() {
+		RDataframe df = IntStream.range(0, 1000).mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		assertEquals(1000, df.nrow());
+		assertEquals(RIntegerVector.class, df.get("id").getClass());
+		assertEquals(RNumericVector.class, df.get("score").getClass());
+		assertEquals(RLogicalVector.class, df.get("flag").getClass());
+		assertEquals(RCharacterVector.class, df.get("name").getClass());
+		assertEquals(RFactorVector.class, df.get("level").getClass());
+		assertEquals(RDateVector.class, df.get("date").getClass());
+		assertEquals(RNumericVector.class, df.get("numeric").getClass());
+		RDataframeRow row = df.getRow(5);
+		assertEquals(RInteger.from(5), row.get("id"));
+		assertEquals(RNumeric.from(2.5), row.get("score"));
+		assertTrue(df.getRow(6).get("score").isNa());
+		assertEquals(RPrimitive.of(false), row.get("flag"));
+		assertEquals(RCharacter.from("item5"), row.get("name"));
+		assertEquals(RFactor.from(TestEnum.THREE), row.get("level"));
+		assertEquals(RPrimitive.of(LocalDate.of(2020,1,6)), row.get("date"));
+		assertEquals(RNumeric.from(5.0), row.get("big"));
+		
+		// parallel collection keeps the order of the stream
+		RDataframe par = IntStream.range(0, 1000).parallel().mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		assertEquals(df, par);
+		
+		// getters of inaccessible classes are called through method handles
+		RDataframe hidden = Stream.of(new Hidden(), new Hidden()).collect(annotatedCollector(Hidden.class));
+		assertArrayEquals(new double[] {42,42}, hidden.pull("value", RNumericVector.class).rPrimitive(), 0.000001);
+	}
+	
+	@Test
+	final void testColumnarCollector() {
+		List<String> words = Arrays.asList(null, "Hello","World","Stream","Support","in","Java");
+		RDataframe df = words.stream().collect(dataframeCollector(
+			mapping("original", s-> s),
+			mapping("length", s-> s == null ? null : s.length()),
+			mapping("mixed", s-> s == null ? null : s.length() > 4 ? RInteger.from(s.length()) : s.length()),
+			mapping("missing", s-> null),
+			integerMapping("typedLength", s-> s == null ? Integer.MIN_VALUE : s.length()),
+			doubleMapping("half", s-> s == null ? Double.NaN : s.length()/2.0)
+		));
+		assertEquals(7, df.nrow());
+		// the type of each column is decided by its first non null value
+		assertEquals(RCharacterVector.class, df.get("original").getClass());
+		assertEquals(RIntegerVector.class, df.get("length").getClass());
+		assertEquals(RIntegerVector.class, df.get("typedLength").getClass());
+		assertEquals(RNumericVector.class, df.get("half").getClass());
+		assertEquals(RUntypedNaVector.class, df.get("missing").getClass());
+		assertTrue(df.getRow(0).get("original").isNa());
+		assertTrue(df.getRow(0).get("length").isNa());
+		assertTrue(df.getRow(0).get("typedLength").isNa());
+		assertEquals(RInteger.from(6), df.getRow(3).get("typedLength"));
+		assertEquals(RNumeric.from(3.0), df.getRow(3).get("half"));
+		// columns of values of different java types are converted value by value
+		assertEquals(RIntegerVector.class, df.get("mixed").getClass());
+		assertEquals(RInteger.from(2), df.getRow(5).get("mixed"));
+		assertEquals(RInteger.from(5), df.getRow(1).get("mixed"));
+		
+		// parallel collection keeps the order of the stream
+		RDataframe seq = IntStream.range(0, 10000).boxed().collect(dataframeCollector(
+				integerMapping("i", i -> i), doubleMapping("d", i -> i/2.0), mapping("s", i -> "s"+i)));
+		RDataframe par = IntStream.range(0, 10000).boxed().parallel().collect(dataframeCollector(
+				integerMapping("i", i -> i), doubleMapping("d", i -> i/2.0), mapping("s", i -> "s"+i)));
+		assertEquals(seq, par);
+		assertEquals(RCharacter.from("s9999"), par.getRow(9999).get("s"));
+	}
+	
+	@Test
+	final void testConcurrentCollectors() {
+		List<Map<String,Object>> maps = new ArrayList<>();
+		maps.add(Collections.singletonMap("a", 1));
+		maps.add(Collections.singletonMap("b", "x"));
+		RDataframe df = maps.stream().collect(dataframeCollector());
+		assertEquals(2, df.nrow());
+		assertTrue(df.getRow(0).get("b").isNa());
+		assertTrue(df.getRow(1).get("a").isNa());
+		assertEquals(RInteger.from(1), df.getRow(0).get("a"));
+		
+		// ordered collection of a parallel stream of maps
+		RDataframe ordered = IntStream.range(0, 100000).parallel()
+				.mapToObj(i -> Collections.<String,Object>singletonMap(i % 2 == 0 ? "even" : "odd", i))
+				.collect(dataframeCollector());
+		assertEquals(RInteger.from(99999), ordered.getRow(99999).get("odd"));
+		assertTrue(ordered.getRow(99999).get("even").isNa());
+		
+		// unordered collection has all the rows in any order
+		RDataframe unordered = IntStream.range(0, 100000).parallel()
+				.mapToObj(i -> Collections.<String,Object>singletonMap(i % 2 == 0 ? "even" : "odd", i))
+				.collect(unorderedDataframeCollector());
+		assertEquals(100000, unordered.nrow());
+		assertEquals(50000, unordered.pull("odd", RIntegerVector.class).stream().filter(x -> !x.isNa()).count());
+		
+		RDataframe rules = IntStream.range(0, 100000).boxed().parallel().collect(unorderedDataframeCollector(
+				integerMapping("i", i -> i), doubleMapping("d", i -> i/2.0)));
+		int[] is = rules.pull("i", RIntegerVector.class).rPrimitive();
+		double[] ds = rules.pull("d", RNumericVector.class).rPrimitive();
+		for (int k=0; k<is.length; k++) assertEquals(is[k]/2.0, ds[k]);
+		Arrays.sort(is);
+		assertArrayEquals(IntStream.range(0, 100000).toArray(), is);
+		
+		RDataframe annotated = IntStream.range(0, 1000).parallel().mapToObj(Exported::new).collect(unorderedAnnotatedCollector(Exported.class));
+		assertEquals(1000, annotated.nrow());
+		assertEquals(0, Stream.<Exported>empty().collect(unorderedAnnotatedCollector(Exported.class)).nrow());
+	}
+	
+	@Test
+	final void testFlatteningCollector() {
+		RDataframe df = IntStream.range(0, 4).boxed().collect(flatteningDataframeCollector(
+				flatMapping(i -> IntStream.range(0, i).boxed(),
+					integerMapping("child", j -> j),
+					mapping("label", j -> "c"+j)),
+				integerMapping("parent", i -> i),
+				mapping("name", i -> "p"+i)));
+		// parent 0 has no children, 1 has one, 2 two and 3 three
+		assertEquals(6, df.nrow());
+		assertArrayEquals(new String[] {"parent","name","child","label"}, df.keySet().toArray());
+		assertArrayEquals(new int[] {1,2,2,3,3,3}, df.pull("parent", RIntegerVector.class).rPrimitive());
+		assertArrayEquals(new int[] {0,0,1,0,1,2}, df.pull("child", RIntegerVector.class).rPrimitive());
+		assertEquals(RCharacter.from("p3"), df.getRow(5).get("name"));
+		assertEquals(RCharacter.from("c2"), df.getRow(5).get("label"));
+		
+		StreamRule<Integer,Integer> children = flatMapping(i -> IntStream.range(0, i % 50).boxed(), integerMapping("child", j -> j));
+		RDataframe seq = IntStream.range(0, 2000).boxed().collect(flatteningDataframeCollector(children, integerMapping("parent", i -> i)));
+		RDataframe par = IntStream.range(0, 2000).boxed().parallel().collect(flatteningDataframeCollector(children, integerMapping("parent", i -> i)));
+		assertEquals(seq, par);
+		RDataframe unordered = IntStream.range(0, 2000).boxed().parallel().collect(unorderedFlatteningDataframeCollector(children, integerMapping("parent", i -> i)));
+		assertEquals(seq.nrow(), unordered.nrow());
+		assertEquals(
+			seq.pull("child", RIntegerVector.class).stream().mapToInt(x -> x.get()).sum(),
+			unordered.pull("child", RIntegerVector.class).stream().mapToInt(x -> x.get()).sum());
+	}
+	
+	@Test
+	final void testColumnarRDS() throws IOException {
+		RDataframe df = IntStream.range(0, 1000).mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		String[] dict = new String[1000];
+		for (int i=0; i<dict.length; i++) dict[i] = i % 7 == 0 ? null : "d"+(i % 5);
+		RCharacterVector dictionary = new RCharacterVector(dict);
+		assertTrue(dictionary.isDictionaryEncoded());
+		df.withCol("dict", dictionary).withCol("na", new RUntypedNaVector(1000)).groupBy("level");
+		
+		File tmp = File.createTempFile("rjava", ".rds");
+		tmp.deleteOnExit();
+		df.writeRDS(new FileOutputStream(tmp));
+		RDataframe in = RObject.readRDS(RDataframe.class, new FileInputStream(tmp));
+		assertEquals(df, in);
+		assertArrayEquals(new String[] {"level"}, in.getGroups());
+		assertTrue(((RCharacterVector) in.get("dict")).isDictionaryEncoded());
+		assertTrue(in.getRow(3).get("score").isNa());
+		assertThrows(IOException.class, () -> RObject.readRDS(RNumericVector.class, new FileInputStream(tmp)));
+		
+		// vectors larger than the write buffer, and other objects
+		RNumericVector v = new RNumericVector(IntStream.range(0, 100001).mapToDouble(i -> i % 10 == 0 ? RNumeric.NA.rPrimitive() : i).toArray());
+		v.writeRDS(new FileOutputStream(tmp));
+		assertEquals(v, RObject.readRDS(RNumericVector.class, new FileInputStream(tmp)));
+		RList list = RList.with(RInteger.from(1), RCharacter.from("a"));
+		list.writeRDS(new FileOutputStream(tmp));
+		assertEquals(list, RObject.readRDS(RList.class, new FileInputStream(tmp)));
+	}
+	
+	@Test
+	final void testMappedDataframe() throws IOException {
+		RDataframe df = IntStream.range(0, 200000).mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		String[] dict = new String[df.nrow()];
+		for (int i=0; i<dict.length; i++) dict[i] = i % 7 == 0 ? null : "d"+(i % 5);
+		df.withCol("dict", new RCharacterVector(dict)).withCol("na", new RUntypedNaVector(df.nrow())).groupBy("level");
+		File tmp = File.createTempFile("rjava", ".rds");
+		tmp.deleteOnExit();
+		df.writeRDS(new FileOutputStream(tmp));
+		
+		try (RMappedDataframe mapped = RMappedDataframe.open(tmp.toPath())) {
+			assertEquals(df.nrow(), mapped.nrow());
+			assertEquals(RDate.class, mapped.getTypeOfColumn("date"));
+			assertEquals(df, mapped.collect());
+			assertEquals(df.get("name"), mapped.pull("name"));
+			
+			// filters are evaluated a chunk at a time and read the selected rows
+			RNamedPredicate<?> test = RNamedPredicate.in("dict", "d1", "d3");
+			RMappedDataframe filtered = mapped.filter(test).filter("id", RInteger.class, x -> x.get() % 1000 < 10).select("id","name","dict");
+			RDataframe expected = df.filter(test).filter("id", RInteger.class, x -> x.get() % 1000 < 10).select("id","name","dict");
+			assertEquals(expected.nrow(), filtered.nrow());
+			assertEquals(Arrays.asList("level","id","name","dict"), filtered.columnNames());
+			assertEquals(expected, filtered.collect());
+			assertEquals(expected.get("name"), filtered.pull("name"));
+			
+			// sent to R in chunks
+			assertEquals(mapped.nrow(), mapped.chunks(30000).mapToInt(RDataframe::nrow).sum());
+			assertEquals(df.getRow(123456).get("name"), mapped.chunks(30000).skip(4).findFirst().get().getRow(3456).get("name"));
+			assertThrows(NameNotFoundException.class, () -> filtered.pull("score"));
+		}
+	}
+	
+	@Test
+	final void testArrow() throws IOException {
+		RDataframe df = IntStream.range(0, 1000).mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		String[] names = df.pull("name", RCharacterVector.class).rPrimitive().clone();
+		names[3] = null;
+		names[4] = "\u00e9t\u00e9";
+		df.put("name", new RCharacterVector(names));
+		df.withCol("na", new RUntypedNaVector(1000));
+		
+		RDataframe stream = RDataframe.fromArrow(df.toArrow());
+		assertEquals(df, stream);
+		assertTrue(stream.getRow(3).get("name").isNa());
+		assertTrue(stream.getRow(3).get("score").isNa());
+		assertEquals(RCharacter.from("\u00e9t\u00e9"), stream.getRow(4).get("name"));
+		
+		File tmp = File.createTempFile("rjava", ".arrow");
+		tmp.deleteOnExit();
+		df.writeArrow(tmp.toPath());
+		assertEquals(df, RDataframe.readArrow(tmp.toPath()));
+		
+		// more rows than a record batch
+		RDataframe large = RDataframe.create().withCol("x", new RNumericVector(IntStream.range(0, (1 << 20) + 5).mapToDouble(i -> i).toArray()));
+		assertEquals(large, RDataframe.fromArrow(large.toArrow()));
+		
+		// record batches are sized by their bytes, and a file of many batches is read one batch at a time
+		ByteArrayOutputStream small = new ByteArrayOutputStream();
+		RArrowFormat.write(df, small, true, 4096);
+		assertTrue(small.size() > Files.size(tmp.toPath()));
+		Files.write(tmp.toPath(), small.toByteArray());
+		assertEquals(df, RDataframe.readArrow(tmp.toPath()));
+		RDataframe wide = RDataframe.create().withCol("s", new RCharacterVector(new String[] {"a", String.join("", Collections.nCopies(5000, "x")), null, "b"}));
+		small.reset();
+		RArrowFormat.write(wide, small, false, 4096);
+		assertEquals(wide, RDataframe.fromArrow(small.toByteArray()));
+		large.writeArrow(tmp.toPath());
+		assertEquals(large, RDataframe.readArrow(tmp.toPath()));
+		assertThrows(IOException.class, () -> RDataframe.fromArrow(new byte[] {1,2,3}));
+	}
+	
+	// The files in /arrow were written by the Arrow Java 12.0.1 ArrowStreamWriter (.arrows) and ArrowFileWriter (.arrow)
+	private static byte[] arrowResource(String name) throws IOException, URISyntaxException {
+		return Files.readAllBytes(Paths.get(TestDatatypes.class.getResource("/arrow/"+name).toURI()));
+	}
+	
+	@Test
+	final void testArrowReference() throws IOException, URISyntaxException {
+		RDataframe simple = RDataframe.create()
+				.withCol("i", new RIntegerVector(new int[] {1, RInteger.NA_VALUE, 3}))
+				.withCol("x", new RNumericVector(new double[] {1.5, 2.5, RNumeric.NA_VALUE}));
+		assertArrayEquals(arrowResource("simple.arrows"), simple.toArrow());
+		File tmp = File.createTempFile("rjava", ".arrow");
+		tmp.deleteOnExit();
+		simple.writeArrow(tmp.toPath());
+		assertArrayEquals(arrowResource("simple.arrow"), Files.readAllBytes(tmp.toPath()));
+		assertEquals(simple, RDataframe.fromArrow(arrowResource("simple.arrows")));
+		
+		RDataframe stream = RDataframe.fromArrow(arrowResource("types.arrows"));
+		File file = File.createTempFile("rjava", ".arrow");
+		file.deleteOnExit();
+		Files.write(file.toPath(), arrowResource("types.arrow"));
+		assertEquals(stream, RDataframe.readArrow(file.toPath()));
+		
+		assertEquals(Arrays.asList("x","i","b","d","s","f","l","t","h","n"), new ArrayList<>(stream.keySet()));
+		assertEquals(3, stream.nrow());
+		assertEquals(new RNumericVector(new double[] {1.5, RNumeric.NA_VALUE, -2.25}), stream.pull("x"));
+		assertEquals(new RIntegerVector(new int[] {7, -1, RInteger.NA_VALUE}), stream.pull("i"));
+		assertEquals(RVector.with(true, false, null), stream.pull("b"));
+		assertEquals(RVector.with(LocalDate.of(1970,1,1), LocalDate.of(2020,3,1), null), stream.pull("d"));
+		assertEquals(RVector.with("a", null, "\u00e9t\u00e9"), stream.pull("s"));
+		RFactorVector f = stream.pull("f", RFactorVector.class);
+		assertArrayEquals(new String[] {"lo","hi"}, f.rLevels());
+		assertArrayEquals(new int[] {2, RInteger.NA_VALUE, 1}, f.rValues());
+		assertEquals(new RNumericVector(new double[] {5000000000D, -3, RNumeric.NA_VALUE}), stream.pull("l"));
+		assertEquals(RVector.with(LocalDate.of(2020,3,1), null, LocalDate.of(1970,1,1)), stream.pull("t"));
+		assertEquals(new RIntegerVector(new int[] {-5, 300, RInteger.NA_VALUE}), stream.pull("h"));
+		assertEquals(new RUntypedNaVector(3), stream.pull("n"));
+	}
+	
+	// the groups of a regular expression matched in some text, as a map from the first to the second group
+	private static Map<String,String> matches(String regex, String text) {
+		Map<String,String> out = new LinkedHashMap<>();
+		Matcher m = Pattern.compile(regex).matcher(text);
+		while (m.find()) out.put(m.group(1), m.group(2));
+		return out;
+	}
+	
+	@Test
+	final void testChunkedConversion() {
+		RDataframe df = IntStream.range(0, 5).mapToObj(Exported::new).collect(annotatedCollector(Exported.class));
+		df.withCol("na", new RUntypedNaVector(5));
+		df.groupBy("level");
+		
+		// chunks are the same as subsets by row index, including the grouping
+		List<RDataframe> chunks = df.chunks(2).collect(Collectors.toList());
+		assertEquals(3, chunks.size());
+		assertEquals(1, chunks.get(2).nrow());
+		for (int i=0; i<chunks.size(); i++) {
+			RDataframe expected = df.subset(IntStream.range(i*2, Math.min(5, i*2+2)).toArray());
+			assertEquals(expected, chunks.get(i));
+			assertEquals(expected, df.subset(i*2, Math.min(5, i*2+2)));
+			assertArrayEquals(new String[] {"level"}, chunks.get(i).getGroups());
+		}
+		assertEquals(df.pull("date"), chunks.stream().map(c -> c.pull("date")).reduce((x,y) -> x.addAllUnsafe(y)).get());
+		
+		assertFalse(df.rConversion().contains("method='subset'"));
+		assertEquals(df.rConversion(), df.rConversion(5));
+		String chunked = df.rConversion(2);
+		// each column of the tibble is allocated in full and, unless it is all NA, filled from each chunk
+		Map<String,String> columns = matches("`(\\w+)`\\s*=\\s*(col_\\d+)", chunked);
+		assertEquals(new ArrayList<>(df.keySet()), new ArrayList<>(columns.keySet()));
+		Map<String,String> allocated = matches("(col_\\d+)\\s*=\\s*(\\w+)\\(\\s*(?:NA,\\s*)?nrow\\s*\\)", chunked);
+		Map<String,String> filled = matches("(col_\\d+)\\[\\(start\\+1L\\):end\\]\\s*=.*method='(\\w+)'", chunked);
+		Map<String,String> expectedAllocations = new LinkedHashMap<>();
+		Map<String,String> expectedFills = new LinkedHashMap<>();
+		String[][] expected = {
+				{"id","integer","rPrimitive"}, {"score","numeric","rPrimitive"}, {"flag","logical","rPrimitive"}, 
+				{"name","character","rPrimitive"}, {"level","integer","rValues"}, {"date","double","rEpochDays"}, 
+				{"big","numeric","rPrimitive"}, {"numeric","numeric","rPrimitive"}, {"na","rep",null}};
+		for (String[] col: expected) {
+			expectedAllocations.put(columns.get(col[0]), col[1]);
+			if (col[2] != null) expectedFills.put(columns.get(col[0]), col[2]);
+		}
+		assertEquals(expectedAllocations, allocated);
+		assertEquals(expectedFills, filled);
+		// chunks of 2 rows are fetched with subset(int,int)
+		assertTrue(Pattern.compile("for\\s*\\(start in seq\\(0L,\\s*nrow\\s*-\\s*1L,\\s*by\\s*=\\s*2L\\)\\)").matcher(chunked).find());
+		assertTrue(Pattern.compile("method='subset',\\s*start,\\s*end\\)").matcher(chunked).find());
+		// dates and factors get their attributes once filled
+		assertTrue(Pattern.compile("class\\("+columns.get("date")+"\\)\\s*=\\s*'Date'").matcher(chunked).find());
+		assertTrue(Pattern.compile("attributes\\("+columns.get("level")+"\\)\\s*=\\s*list\\(levels\\s*=.*method='rLevels'").matcher(chunked).find());
+	}
+	
 	@Test
 	final void testDiamondsGroupBy() throws IOException, UnconvertableTypeException {
 		RDataframe dia = getDiamonds();